@@ -1,22 +1,29 @@
 package com.jonkimbel.catfeeder.backend;
 
+import com.jonkimbel.catfeeder.backend.auth.Authenticator;
 import com.jonkimbel.catfeeder.backend.server.Http;
 import com.jonkimbel.catfeeder.backend.server.HttpHeader;
-import com.jonkimbel.catfeeder.backend.storage.api.PasswordStorage;
-import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class ActionDeterminer {
+  /** The cookie holding the session token of a user who has logged in. */
+  public static final String SESSION_COOKIE = "session";
+
   private final HttpHeader requestHeader;
 
   public enum Action {
     // Photon actions.
     SERVE_PHOTON,
+    LONG_POLL_PHOTON,
+
+    // Monitoring actions.
+    SERVE_METRICS,
 
     // Logged-in actions.
     SERVE_HOME,
     UPDATE_PREFERENCES_REDIRECT_TO_HOME,
     FEED_NOW_REDIRECT_TO_HOME,
     REDIRECT_TO_HOME,
+    EXPORT_HISTORY,
 
     // Login actions.
     SERVE_LOGIN,
@@ -31,14 +38,24 @@ public class ActionDeterminer {
     this.requestHeader = requestHeader;
   }
 
+  /** Returns whether the request is a device checking in, without looking any further into it. */
+  public static boolean isPhotonRequest(HttpHeader requestHeader) {
+    return requestHeader.path.startsWith("/photon");
+  }
+
   public Action determine() {
-    if (requestHeader.path.startsWith("/photon")) {
-      return Action.SERVE_PHOTON;
+    if (isPhotonRequest(requestHeader)) {
+      return requestHeader.getQueryParameter("hold_ms") != null
+          ? Action.LONG_POLL_PHOTON
+          : Action.SERVE_PHOTON;
+    }
+
+    // Metrics scrapers can't log in. Nothing in the metrics identifies a device or a user.
+    if (requestHeader.path.equals("/metrics") && requestHeader.method == Http.Method.GET) {
+      return Action.SERVE_METRICS;
     }
 
-    @Nullable String passcode = PasswordStorage.get();
-    boolean isLoggedIn = passcode == null || passcode.equals(requestHeader.getCookie("passcode"));
-    if (!isLoggedIn) {
+    if (!Authenticator.INSTANCE.isLoggedIn(requestHeader.getCookie(SESSION_COOKIE))) {
       return determineNotLoggedInAction();
     }
 
@@ -87,6 +104,8 @@ public class ActionDeterminer {
     if (requestHeader.method == Http.Method.GET) {
       if (requestHeader.path.equals("/")) {
         return Action.SERVE_HOME;
+      } else if (requestHeader.path.equals("/history")) {
+        return Action.EXPORT_HISTORY;
       }
       return Action.REDIRECT_TO_HOME;
     }
@@ -2,101 +2,385 @@ package com.jonkimbel.catfeeder.backend;
 
 import com.jonkimbel.catfeeder.backend.ActionDeterminer.Action;
 import com.jonkimbel.catfeeder.backend.alert.OutageNotifier;
+import com.jonkimbel.catfeeder.backend.auth.Authenticator;
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
+import com.jonkimbel.catfeeder.backend.metrics.RequestMetrics;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
 import com.jonkimbel.catfeeder.backend.server.*;
+import com.jonkimbel.catfeeder.backend.storage.DiskWriter;
+import com.jonkimbel.catfeeder.backend.storage.api.PreferencesStorage;
 import com.jonkimbel.catfeeder.backend.template.Template;
+import com.jonkimbel.catfeeder.backend.time.CheckInPlanner;
 import com.jonkimbel.catfeeder.backend.time.Time;
 import com.jonkimbel.catfeeder.proto.CatFeeder.EmbeddedRequest;
 import com.jonkimbel.catfeeder.backend.server.HttpServer.RequestHandler;
+import com.google.protobuf.CodedInputStream;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 // TODO [V3]: Add nullability tests.
 // TODO [V3]: Add unit tests.
 
 public class Backend implements RequestHandler {
   private static final int PORT = 80;
+  private static final int DEFAULT_EVENT_LOOPS = 2;
+  private static final int DEFAULT_WORKERS = 8;
+  private static final String PHOTON_PATH_PREFIX = "/photon/";
 
   // TODO [V2]: find a way to kill the server gracefully so the embedded device isn't stuck trying
   //            to transfer data. OR get the device to be resilient to such cases.
 
   private final int port;
+  private final KeepAlivePolicy keepAlivePolicy;
+  private final AdmissionControl admissionControl;
+  // Whether long-poll check-ins are held. Only the NIO server can park one without a thread.
+  private final boolean holdCheckIns;
   private final HttpBodyRenderer httpBodyRenderer = new HttpBodyRenderer();
+  private final RenderCache renderCache = new RenderCache(httpBodyRenderer);
   private final ProtoBodyRenderer protoBodyRenderer = new ProtoBodyRenderer();
   private final PreferencesUpdater preferencesUpdater = new PreferencesUpdater();
   private final FeedingTimeUpdater feedingTimeUpdater = new FeedingTimeUpdater();
+  private final PushChannel pushChannel = new PushChannel();
+  private final Map<Action, RequestMetrics> requestMetrics = new EnumMap<>(Action.class);
+  // The login page never changes, so it's rendered and compressed once.
+  private final Compression.Precompressed loginPage;
 
+  /**
+   * Runs the backend. Pass {@code --nio} to serve connections from a fixed set of non-blocking event
+   * loops instead of a thread per connection, optionally with {@code --event_loops=N}. Requests are
+   * handled on a pool of {@code --workers=N} threads.
+   *
+   * <p>Long-poll check-ins ({@code ?hold_ms=N}) are only held with {@code --nio}. Otherwise they're
+   * answered right away like any other check-in, rather than tie up a thread for the whole hold. A
+   * held check-in still keeps its connection open, so {@code --max_connections} needs room for
+   * every device that long-polls on top of everyone else.
+   *
+   * <p>Persistent connections are tuned with {@code --keep_alive_timeout_ms=N} and
+   * {@code --max_requests_per_connection=N}, both at least 1. Pass
+   * {@code --max_requests_per_connection=1} to close every connection after one request.
+   *
+   * <p>Pass {@code --write_behind_ms=N} to write storage to disk in the background every N ms
+   * instead of on every update.
+   *
+   * <p>Pass {@code --storage=sqlite} to keep preferences in a SQLite database instead of files.
+   *
+   * <p>Pass {@code --max_devices=N} to change how many devices may register by checking in, 1024 by
+   * default. Check-ins from further new devices are rejected.
+   *
+   * <p>Pass {@code --log_level=WARNING} to stop logging every request.
+   *
+   * <p>Pass {@code --check_ins_per_second=N} to change the arrival rate device check-ins are spread
+   * out to stay under, see {@link CheckInPlanner}.
+   *
+   * <p>Pass {@code --max_connections=N}, {@code --max_connections_per_client=N},
+   * {@code --max_in_flight_requests=N}, {@code --max_queued_requests=N} and
+   * {@code --accept_backlog=N} to change how much work the server takes on at once, see
+   * {@link AdmissionControl}.
+   *
+   * <p>Pass {@code --alert_sinks=file:<path>} to write alerts to a file instead of sending SMS
+   * messages, see {@link OutageNotifier#SINKS_PROPERTY}.
+   */
   public static void main(String[] args) throws IOException {
+    boolean useNio = false;
+    int eventLoops = DEFAULT_EVENT_LOOPS;
+    int workers = DEFAULT_WORKERS;
+    int keepAliveTimeoutMs = KeepAlivePolicy.DEFAULT.idleTimeoutMs;
+    int maxRequestsPerConnection = KeepAlivePolicy.DEFAULT.maxRequestsPerConnection;
+    long writeBehindMs = 0;
+    boolean useSqlite = false;
+    AdmissionControl.Builder admissionControl = AdmissionControl.builder();
+    for (String arg : args) {
+      if (arg.equals("--nio")) {
+        useNio = true;
+      } else if (arg.startsWith("--event_loops=")) {
+        eventLoops = Integer.parseInt(arg.substring("--event_loops=".length()));
+      } else if (arg.startsWith("--workers=")) {
+        workers = Integer.parseInt(arg.substring("--workers=".length()));
+      } else if (arg.startsWith("--keep_alive_timeout_ms=")) {
+        keepAliveTimeoutMs = Integer.parseInt(arg.substring("--keep_alive_timeout_ms=".length()));
+      } else if (arg.startsWith("--max_requests_per_connection=")) {
+        maxRequestsPerConnection =
+            Integer.parseInt(arg.substring("--max_requests_per_connection=".length()));
+      } else if (arg.startsWith("--write_behind_ms=")) {
+        writeBehindMs = Long.parseLong(arg.substring("--write_behind_ms=".length()));
+      } else if (arg.equals("--storage=sqlite")) {
+        useSqlite = true;
+      } else if (arg.startsWith("--max_devices=")) {
+        PreferencesStorage.setMaxDevices(
+            Integer.parseInt(arg.substring("--max_devices=".length())));
+      } else if (arg.startsWith("--alert_sinks=")) {
+        System.setProperty(OutageNotifier.SINKS_PROPERTY,
+            arg.substring("--alert_sinks=".length()));
+      } else if (arg.startsWith("--check_ins_per_second=")) {
+        CheckInPlanner.INSTANCE.setMaxCheckInsPerSecond(
+            Integer.parseInt(arg.substring("--check_ins_per_second=".length())));
+      } else if (arg.startsWith("--max_connections=")) {
+        admissionControl.setMaxConnections(
+            Integer.parseInt(arg.substring("--max_connections=".length())));
+      } else if (arg.startsWith("--max_connections_per_client=")) {
+        admissionControl.setMaxConnectionsPerClient(
+            Integer.parseInt(arg.substring("--max_connections_per_client=".length())));
+      } else if (arg.startsWith("--max_in_flight_requests=")) {
+        admissionControl.setMaxInFlightRequests(
+            Integer.parseInt(arg.substring("--max_in_flight_requests=".length())));
+      } else if (arg.startsWith("--max_queued_requests=")) {
+        admissionControl.setMaxQueuedRequests(
+            Integer.parseInt(arg.substring("--max_queued_requests=".length())));
+      } else if (arg.startsWith("--accept_backlog=")) {
+        admissionControl.setAcceptBacklog(
+            Integer.parseInt(arg.substring("--accept_backlog=".length())));
+      } else if (arg.startsWith("--log_level=")) {
+        Log.setLevel(Log.Level.valueOf(arg.substring("--log_level=".length())));
+      } else {
+        Log.warning("unrecognized argument: %s", arg);
+      }
+    }
+
     OutageNotifier.INSTANCE.alert(
         "CatFeeder backend restarted!");
 
+    Authenticator.INSTANCE.hashStoredPassword();
+
+    if (writeBehindMs > 0) {
+      DiskWriter.getDiskWriter().enableWriteBehind(writeBehindMs);
+    }
+    if (useSqlite) {
+      PreferencesStorage.useSqlite();
+    }
+    // Make sure writes that are still waiting in memory reach the disk.
+    Runtime.getRuntime().addShutdownHook(
+        new Thread(DiskWriter.getDiskWriter()::flush, "DiskWriterShutdownFlush"));
+
     // TODO [V3]: take port as an argument.
-    new Backend(PORT).runBlocking();
+    Backend backend = new Backend(PORT,
+        new KeepAlivePolicy(keepAliveTimeoutMs, maxRequestsPerConnection),
+        admissionControl.build(), /* holdCheckIns = */ useNio);
+    if (useNio) {
+      new NioHttpServer(PORT, eventLoops, workers, backend, backend.keepAlivePolicy,
+          backend.admissionControl).runBlocking();
+    } else {
+      backend.runBlocking();
+    }
   }
 
-  private Backend(int port) {
+  /** Returns a handler for requests that isn't attached to a server, for benchmarks. */
+  public static RequestHandler createRequestHandler() throws IOException {
+    return new Backend(PORT, KeepAlivePolicy.DEFAULT, AdmissionControl.builder().build(),
+        /* holdCheckIns = */ true);
+  }
+
+  private Backend(int port, KeepAlivePolicy keepAlivePolicy, AdmissionControl admissionControl,
+      boolean holdCheckIns) throws IOException {
     this.port = port;
+    this.keepAlivePolicy = keepAlivePolicy;
+    this.admissionControl = admissionControl;
+    this.holdCheckIns = holdCheckIns;
+    this.loginPage = new Compression.Precompressed(
+        render(Template.LOGIN, PreferencesStorage.DEFAULT_DEVICE_ID).toByteArray());
+    for (Action action : Action.values()) {
+      requestMetrics.put(action, Metrics.INSTANCE.forAction(action.name()));
+    }
   }
 
   private void runBlocking() throws IOException {
-    ServerSocket socket = new ServerSocket(port);
-    System.out.printf("%s - listening on port %s\n", new Date(), port);
+    // Accept through a channel so each connection can write its responses with gathering writes.
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port), admissionControl.getAcceptBacklog());
+    Log.info("listening on port %s", port);
 
     while (true) {
-      Thread thread = HttpServer.threadForConnection(socket.accept(), this);
+      // Past the connection limit, new connections wait in the listen backlog.
+      admissionControl.awaitConnectionSlot();
+      SocketChannel channel = serverChannel.accept();
+      if (!admissionControl.admit(channel)) {
+        continue;
+      }
+      Thread thread = HttpServer.threadForConnection(
+          channel.socket(), this, keepAlivePolicy, admissionControl);
       thread.start();
     }
   }
 
   @Override
-  public HttpResponse handleRequest(HttpHeader requestHeader, String requestBody)
+  public HttpResponse handleRequest(HttpHeader requestHeader, ByteBuffer requestBody)
       throws IOException {
-    Action action = new ActionDeterminer(requestHeader).determine();
+    long startNanos = System.nanoTime();
+    Action determinedAction = new ActionDeterminer(requestHeader).determine();
+    Action action = determinedAction == Action.LONG_POLL_PHOTON && !holdCheckIns
+        ? Action.SERVE_PHOTON
+        : determinedAction;
+    RequestMetrics metrics = requestMetrics.get(action);
+    int requestBodyBytes = requestBody.remaining();
+
+    HttpResponse response;
+    try {
+      response = handleRequest(action, requestHeader, requestBody).compressFor(requestHeader);
+    } catch (IOException | RuntimeException e) {
+      metrics.recordFailure(startNanos, requestBodyBytes);
+      throw e;
+    }
+
+    @Nullable CompletableFuture<HttpResponse> deferredResponse = response.getDeferredResponse();
+    if (deferredResponse == null) {
+      record(action, requestHeader, startNanos, requestBodyBytes, response);
+      return response;
+    }
+    // Recorded once it's answered, so the latency of a held check-in includes the hold.
+    deferredResponse.whenComplete((answer, e) -> {
+      if (answer != null) {
+        record(action, requestHeader, startNanos, requestBodyBytes, answer);
+      } else if (!(e instanceof CancellationException)) {
+        // A device that went away during the hold isn't a failure.
+        metrics.recordFailure(startNanos, requestBodyBytes);
+      }
+    });
+    return response;
+  }
+
+  @Override
+  public HttpResponse handleOverload(HttpHeader requestHeader, ByteBuffer requestBody,
+      int retryAfterSeconds) throws IOException {
+    if (!ActionDeterminer.isPhotonRequest(requestHeader)) {
+      return RequestHandler.super.handleOverload(requestHeader, requestBody, retryAfterSeconds);
+    }
+    // A device that can't reach the server retries within seconds, which only adds to the load.
+    // Send it away for a few minutes instead, with its feeding schedule so it still feeds on time.
+    EmbeddedRequest embeddedRequest =
+        EmbeddedRequest.parseFrom(CodedInputStream.newInstance(requestBody));
+    @Nullable String deviceId = getPhotonDeviceId(requestHeader, embeddedRequest);
+    if (deviceId == null) {
+      return RequestHandler.super.handleOverload(requestHeader, requestBody, retryAfterSeconds);
+    }
+    long delayUntilNextCheckInMs = CheckInPlanner.INSTANCE.getDelayAfterOverloadMs(deviceId);
+    expectCheckInWithin(deviceId, delayUntilNextCheckInMs);
+    // The feeding the device reported isn't written, it reports it again at its next check-in.
+    return photonResponse(deviceId, /* wroteLastFeedingTime = */ false, delayUntilNextCheckInMs);
+  }
+
+  private void record(Action action, HttpHeader requestHeader, long startNanos,
+      int requestBodyBytes, HttpResponse response) {
+    requestMetrics.get(action).record(startNanos, requestBodyBytes, response.getBodyLength(),
+        response.getResponseCode().isError());
+    Log.request(requestHeader.method.name(), requestHeader.path, action.name(),
+        response.getResponseCode().code, System.nanoTime() - startNanos, requestBodyBytes,
+        response.getBodyLength());
+  }
+
+  private HttpResponse handleRequest(Action action, HttpHeader requestHeader,
+      ByteBuffer requestBody) throws IOException {
     HttpResponse.Builder responseBuilder = HttpResponse.builder();
 
+    @Nullable String deviceId;
     switch (action) {
       // Photon actions.
       case SERVE_PHOTON:
-        boolean wroteLastFeedingTime = feedingTimeUpdater.update(
-            EmbeddedRequest.parseFrom(requestBody.getBytes()));
-            OutageNotifier.INSTANCE.alertIfNotCalledWithin(
-                Time.getTimeToNextCheckInMs() + 60000L,
-                "The CatFeeder is now 60s late for check-in!");
+      case LONG_POLL_PHOTON:
+        @Nullable Long holdMs = action == Action.LONG_POLL_PHOTON ? getHoldMs(requestHeader) : 0L;
+        if (holdMs == null) {
+          break;
+        }
+        // Parsed straight from the server's buffer, the body is never copied or decoded as text.
+        EmbeddedRequest embeddedRequest =
+            EmbeddedRequest.parseFrom(CodedInputStream.newInstance(requestBody));
+        deviceId = getPhotonDeviceId(requestHeader, embeddedRequest);
+        if (deviceId == null) {
+          break;
+        }
+        boolean wroteLastFeedingTime = feedingTimeUpdater.update(deviceId, embeddedRequest);
+        // Read before the preferences, so a change made after they're read still ends a hold.
+        long versionSeen = PreferencesStorage.getVersion(deviceId);
+        Preferences prefs = PreferencesStorage.get(deviceId);
+        if (action == Action.LONG_POLL_PHOTON) {
+          // Never held longer than the device would otherwise wait, so it checks in at least as
+          // often as the outage alert expects.
+          long maxHoldMs = CheckInPlanner.INSTANCE.getMaxHoldMs(deviceId, prefs);
+          expectCheckInWithin(deviceId, maxHoldMs);
+          return holdCheckIn(deviceId, prefs, versionSeen, wroteLastFeedingTime,
+              Math.min(holdMs, maxHoldMs));
+        }
+        long delayUntilNextCheckInMs =
+            CheckInPlanner.INSTANCE.getDelayUntilNextCheckInMs(deviceId, prefs);
+        expectCheckInWithin(deviceId, delayUntilNextCheckInMs);
+        return photonResponse(deviceId, wroteLastFeedingTime, delayUntilNextCheckInMs);
+
+      // Monitoring actions.
+      case SERVE_METRICS:
         return responseBuilder
-            .setProtobufBody(protoBodyRenderer.render(wroteLastFeedingTime))
+            .setPrometheusTextBody(Metrics.INSTANCE.toPrometheusText())
             .setResponseCode(Http.ResponseCode.OK)
             .build();
 
       // Logged-in actions.
       case SERVE_HOME:
+        deviceId = getWebDeviceId(requestHeader);
+        if (deviceId == null) {
+          break;
+        }
+        RenderCache.Page homePage = renderCache.getHomePage(deviceId);
+        Http.ContentEncoding encoding = homePage.body.encodingFor(requestHeader);
+        if (requestHeader.ifNoneMatchIncludes(homePage.etagFor(encoding))) {
+          return responseBuilder
+              .setETag(homePage.etagFor(encoding))
+              .setVariesByAcceptEncoding()
+              .setResponseCode(Http.ResponseCode.NOT_MODIFIED)
+              .build();
+        }
         return responseBuilder
-            .setHtmlBody(httpBodyRenderer.render(Template.INDEX))
+            .setHtmlBody(homePage.body, encoding)
+            .setETag(homePage.etagFor(encoding))
             .setResponseCode(Http.ResponseCode.OK)
             .build();
       case FEED_NOW_REDIRECT_TO_HOME:
-        preferencesUpdater.feedAsap();
+        deviceId = getWebDeviceId(requestHeader);
+        if (deviceId == null) {
+          break;
+        }
+        preferencesUpdater.feedAsap(deviceId);
         return responseBuilder
             .setResponseCode(Http.ResponseCode.FOUND)
-            .setLocation("/")
+            .setLocation("/" + HttpBodyRenderer.deviceQuery(deviceId))
             .build();
       case UPDATE_PREFERENCES_REDIRECT_TO_HOME:
-        preferencesUpdater.update(MapParser.parsePostBody(requestBody));
+        deviceId = getWebDeviceId(requestHeader);
+        if (deviceId == null) {
+          break;
+        }
+        preferencesUpdater.update(deviceId, MapParser.parsePostBody(decodeForm(requestBody)));
         return responseBuilder
             .setResponseCode(Http.ResponseCode.FOUND)
-            .setLocation("/")
+            .setLocation("/" + HttpBodyRenderer.deviceQuery(deviceId))
             .build();
       case REDIRECT_TO_HOME:
         return responseBuilder
             .setResponseCode(Http.ResponseCode.FOUND)
             .setLocation("/")
             .build();
+      case EXPORT_HISTORY:
+        deviceId = getWebDeviceId(requestHeader);
+        @Nullable HistoryExporter exporter =
+            deviceId == null ? null : HistoryExporter.forRequest(deviceId, requestHeader);
+        if (exporter == null) {
+          break;
+        }
+        return responseBuilder
+            .setStreamingBody(exporter.getContentType(), exporter)
+            .setResponseCode(Http.ResponseCode.OK)
+            .build();
 
       // Login actions.
       case SERVE_LOGIN:
         return responseBuilder
-            .setHtmlBody(httpBodyRenderer.render(Template.LOGIN))
+            .setHtmlBody(loginPage, loginPage.encodingFor(requestHeader))
             .setResponseCode(Http.ResponseCode.OK)
             .build();
       case REDIRECT_TO_LOGIN:
@@ -105,17 +389,140 @@ public class Backend implements RequestHandler {
             .setLocation("/login")
             .build();
       case SET_COOKIE_REDIRECT_TO_HOME:
-        return responseBuilder
-            .setCookie("passcode", MapParser.parsePostBody(requestBody).get("passcode"))
-            .setResponseCode(Http.ResponseCode.FOUND)
-            .setLocation("/")
-            .build();
+        // The password is checked off the server's threads, the response waits for it.
+        @Nullable CompletableFuture<@Nullable String> sessionToken =
+            Authenticator.INSTANCE.logInLater(
+                MapParser.parsePostBody(decodeForm(requestBody)).get("passcode"));
+        if (sessionToken == null) {
+          return responseBuilder
+              .setResponseCode(Http.ResponseCode.SERVICE_UNAVAILABLE)
+              .setRetryAfter(admissionControl.getRetryAfterSeconds())
+              .build();
+        }
+        return HttpResponse.deferred(sessionToken.thenApply(Backend::loginResponse));
 
       // Error actions.
       case NOT_IMPLEMENTED:
-        break;
+        return responseBuilder.setResponseCode(Http.ResponseCode.NOT_IMPLEMENTED).build();
     }
 
-    return responseBuilder.setResponseCode(Http.ResponseCode.NOT_IMPLEMENTED).build();
+    // Only reachable when the request named an invalid device or had invalid parameters.
+    return responseBuilder.setResponseCode(Http.ResponseCode.BAD_REQUEST).build();
+  }
+
+  private static HttpResponse loginResponse(@Nullable String sessionToken) {
+    if (sessionToken == null) {
+      return HttpResponse.builder()
+          .setResponseCode(Http.ResponseCode.FOUND)
+          .setLocation("/login")
+          .build();
+    }
+    return HttpResponse.builder()
+        .setCookie(ActionDeterminer.SESSION_COOKIE, sessionToken)
+        // Overwrites the password that logins used to leave in a cookie.
+        .setCookie("passcode", "")
+        .setResponseCode(Http.ResponseCode.FOUND)
+        .setLocation("/")
+        .build();
+  }
+
+  /**
+   * Answers a long-poll check-in: right away if the device has something to do, otherwise once
+   * anything about the device changes or the hold ends. Either way the device is told to check in
+   * again straight away, so it's always waiting on a hold and hears about changes within moments.
+   */
+  private HttpResponse holdCheckIn(String deviceId, Preferences prefs, long versionSeen,
+      boolean wroteLastFeedingTime, long maxHoldMs) {
+    // Never hold past the next feeding, which the device needs a response to carry out.
+    long holdMs = maxHoldMs;
+    @Nullable Long timeToNextFeedingMs = Time.getTimeToNextFeedingMs(prefs);
+    if (timeToNextFeedingMs != null) {
+      holdMs = Math.min(holdMs, timeToNextFeedingMs);
+    }
+
+    // A reported feeding is acknowledged right away, so it isn't reported twice if the connection
+    // drops during the hold.
+    if (holdMs <= 0 || wroteLastFeedingTime || prefs.getFeedingPreferences().getFeedAsap()) {
+      return photonResponse(deviceId, wroteLastFeedingTime, /* delayUntilNextCheckInMs = */ 0);
+    }
+    return HttpResponse.deferred(pushChannel.hold(deviceId, versionSeen, holdMs,
+        () -> photonResponse(deviceId, /* wroteLastFeedingTime = */ false,
+            /* delayUntilNextCheckInMs = */ 0)));
+  }
+
+  /** Alerts if the device doesn't check in again within a minute of when it was told to. */
+  private static void expectCheckInWithin(String deviceId, long delayUntilNextCheckInMs) {
+    OutageNotifier.INSTANCE.alertIfNotCalledWithin(
+        deviceId,
+        delayUntilNextCheckInMs + 60000L,
+        deviceId.equals(PreferencesStorage.DEFAULT_DEVICE_ID)
+            ? "The CatFeeder is now 60s late for check-in!"
+            : String.format("CatFeeder %s is now 60s late for check-in!", deviceId));
+  }
+
+  private HttpResponse photonResponse(String deviceId, boolean wroteLastFeedingTime,
+      long delayUntilNextCheckInMs) {
+    return HttpResponse.builder()
+        .setProtobufBody(
+            protoBodyRenderer.render(deviceId, wroteLastFeedingTime, delayUntilNextCheckInMs))
+        .setResponseCode(Http.ResponseCode.OK)
+        .build();
+  }
+
+  /**
+   * Returns how long a long-poll check-in asked to be held, from the "hold_ms" query parameter, or
+   * null if that isn't a valid number of milliseconds.
+   */
+  @Nullable
+  private static Long getHoldMs(HttpHeader requestHeader) {
+    try {
+      long holdMs = Long.parseLong(requestHeader.getQueryParameter("hold_ms"));
+      return holdMs >= 0 ? holdMs : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Decodes a form submitted by the home or login page. */
+  private static String decodeForm(ByteBuffer requestBody) {
+    return StandardCharsets.UTF_8.decode(requestBody).toString();
+  }
+
+  private ResponseBuffer render(Template template, String deviceId) throws IOException {
+    ResponseBuffer body = new ResponseBuffer();
+    httpBodyRenderer.render(template, deviceId, body);
+    return body;
+  }
+
+  /**
+   * Identifies the device checking in, from the request path (/photon/<device id>) or the request
+   * body, and registers it if it's new. Returns null if the device ID is invalid, or the device is
+   * new and the backend already has as many as it takes, see {@code --max_devices}.
+   */
+  @Nullable
+  private static String getPhotonDeviceId(HttpHeader requestHeader, EmbeddedRequest request) {
+    String deviceId = PreferencesStorage.DEFAULT_DEVICE_ID;
+    if (requestHeader.path.startsWith(PHOTON_PATH_PREFIX)
+        && requestHeader.path.length() > PHOTON_PATH_PREFIX.length()) {
+      deviceId = requestHeader.path.substring(PHOTON_PATH_PREFIX.length());
+    } else if (request.hasDeviceId()) {
+      deviceId = request.getDeviceId();
+    }
+    return PreferencesStorage.isValidDeviceId(deviceId)
+        && PreferencesStorage.registerDevice(deviceId) ? deviceId : null;
+  }
+
+  /**
+   * Identifies the device a web page is showing, from the "device" query parameter. Returns null
+   * if the device ID is invalid, or names a device that has never checked in.
+   */
+  @Nullable
+  private static String getWebDeviceId(HttpHeader requestHeader) {
+    @Nullable String deviceId = requestHeader.getQueryParameter("device");
+    if (deviceId == null) {
+      return PreferencesStorage.DEFAULT_DEVICE_ID;
+    }
+    return PreferencesStorage.isValidDeviceId(deviceId)
+        && PreferencesStorage.isKnownDevice(deviceId) ? deviceId : null;
   }
 }
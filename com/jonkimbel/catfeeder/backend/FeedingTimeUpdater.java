@@ -1,42 +1,35 @@
 package com.jonkimbel.catfeeder.backend;
 
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
+import com.jonkimbel.catfeeder.backend.storage.api.EventStorage;
 import com.jonkimbel.catfeeder.backend.storage.api.PreferencesStorage;
 import com.jonkimbel.catfeeder.proto.CatFeeder.EmbeddedRequest;
 
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
-
 public class FeedingTimeUpdater {
   /**
-  * Updates preferences with any new feeding times reported by the embedded client. Returns whether
-  * a new feeding time was written to storage.
+  * Records the device's check-in and any new feeding time reported by the embedded client.
+  * Returns whether a new feeding time was written to storage.
   */
-  public boolean update(EmbeddedRequest request) {
-    Preferences.Builder preferencesBuilder = PreferencesStorage.get().toBuilder()
-        .setLastPhotonCheckInMsSinceEpoch(System.currentTimeMillis());
-
-    boolean wroteLastFeedingTime = false;
-    if (request.hasTimeSinceLastFeedingMs()) {
-      List<Long> feedingHistory = new ArrayList<>(
-          preferencesBuilder.getFeedingPreferencesBuilder()
-              .getLastTenFeedingTimesMsSinceEpochList());
-      while (feedingHistory.size() >= 10) {
-        feedingHistory.remove(feedingHistory.size() - 1);
-      }
-      feedingHistory.add(0, Instant.now().toEpochMilli() - request.getTimeSinceLastFeedingMs());
+  public boolean update(String deviceId, EmbeddedRequest request) {
+    long now = System.currentTimeMillis();
+    EventStorage.recordCheckIn(deviceId, now);
 
-      preferencesBuilder.getFeedingPreferencesBuilder()
-          .clearLastTenFeedingTimesMsSinceEpoch()
-          .addAllLastTenFeedingTimesMsSinceEpoch(feedingHistory)
-          .clearFeedAsap();
-
-      wroteLastFeedingTime = true;
+    if (!request.hasTimeSinceLastFeedingMs()) {
+      return false;
     }
 
-    PreferencesStorage.set(preferencesBuilder.build());
+    EventStorage.recordFeeding(deviceId, now - request.getTimeSinceLastFeedingMs());
+
+    // Preferences only need rewriting if the device just carried out a "feed now" request.
+    PreferencesStorage.update(deviceId, preferences -> {
+      if (!preferences.getFeedingPreferences().getFeedAsap()) {
+        return preferences;
+      }
+      Preferences.Builder preferencesBuilder = preferences.toBuilder();
+      preferencesBuilder.getFeedingPreferencesBuilder().clearFeedAsap();
+      return preferencesBuilder.build();
+    });
 
-    return wroteLastFeedingTime;
+    return true;
   }
 }
@@ -0,0 +1,140 @@
+package com.jonkimbel.catfeeder.backend;
+
+import com.jonkimbel.catfeeder.backend.proto.History.HistoryEvent;
+import com.jonkimbel.catfeeder.backend.server.Http;
+import com.jonkimbel.catfeeder.backend.server.HttpHeader;
+import com.jonkimbel.catfeeder.backend.server.StreamingBody;
+import com.jonkimbel.catfeeder.backend.storage.EventLog;
+import com.jonkimbel.catfeeder.backend.storage.api.EventStorage;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Streams a device's history out of the event log, a batch of events at a time, so exporting
+ * years of check-ins never holds more than one batch in memory.
+ *
+ * <p>The format is chosen with the "format" query parameter: "csv" (the default), or "proto" for
+ * length-delimited {@link HistoryEvent}s. "start" and "end" optionally limit the export to a range
+ * of milliseconds since the epoch.
+ */
+class HistoryExporter implements StreamingBody {
+  private static final int EVENTS_PER_BATCH = 512;
+  private static final byte[] CSV_HEADER =
+      "time,time_ms_since_epoch,type,value\n".getBytes(StandardCharsets.US_ASCII);
+
+  private enum Format {
+    CSV(Http.ContentType.CSV),
+    PROTO(Http.ContentType.DELIMITED_PROTOCOL_BUFFER);
+
+    private final Http.ContentType contentType;
+
+    Format(Http.ContentType contentType) {
+      this.contentType = contentType;
+    }
+  }
+
+  private final EventLog.Cursor cursor;
+  private final Format format;
+  private boolean wroteCsvHeader;
+  private final StringBuilder line = new StringBuilder();
+  private final HistoryEvent.Builder event = HistoryEvent.newBuilder();
+  // Where the batch being written goes.
+  private OutputStream out;
+
+  private HistoryExporter(EventLog.Cursor cursor, Format format) {
+    this.cursor = cursor;
+    this.format = format;
+  }
+
+  /** Returns an exporter for the request's parameters, or null if they're invalid. */
+  @Nullable
+  static HistoryExporter forRequest(String deviceId, HttpHeader requestHeader) {
+    @Nullable String formatParameter = requestHeader.getQueryParameter("format");
+    Format format;
+    if (formatParameter == null || formatParameter.equals("csv")) {
+      format = Format.CSV;
+    } else if (formatParameter.equals("proto")) {
+      format = Format.PROTO;
+    } else {
+      return null;
+    }
+
+    long startMsSinceEpoch;
+    long endMsSinceEpoch;
+    try {
+      startMsSinceEpoch = parseTime(requestHeader.getQueryParameter("start"), 0);
+      endMsSinceEpoch = parseTime(requestHeader.getQueryParameter("end"), Long.MAX_VALUE);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return new HistoryExporter(
+        EventStorage.cursor(deviceId, startMsSinceEpoch, endMsSinceEpoch), format);
+  }
+
+  Http.ContentType getContentType() {
+    return format.contentType;
+  }
+
+  @Override
+  public boolean writeNext(OutputStream out) throws IOException {
+    if (format == Format.CSV && !wroteCsvHeader) {
+      out.write(CSV_HEADER);
+      wroteCsvHeader = true;
+    }
+    this.out = out;
+    try {
+      return cursor.next(EVENTS_PER_BATCH, this::write);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private void write(EventLog.Type type, long timeMsSinceEpoch, long value) {
+    try {
+      if (format == Format.CSV) {
+        writeCsv(type, timeMsSinceEpoch, value);
+      } else {
+        writeProto(type, timeMsSinceEpoch, value);
+      }
+    } catch (IOException e) {
+      // EventLog.Visitor can't throw, writeNext() unwraps this.
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeCsv(EventLog.Type type, long timeMsSinceEpoch, long value)
+      throws IOException {
+    line.setLength(0);
+    line.append(Instant.ofEpochMilli(timeMsSinceEpoch)).append(',')
+        .append(timeMsSinceEpoch).append(',')
+        .append(type).append(',')
+        .append(value).append('\n');
+    out.write(line.toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private void writeProto(EventLog.Type type, long timeMsSinceEpoch, long value)
+      throws IOException {
+    event.clear().setTimeMsSinceEpoch(timeMsSinceEpoch);
+    switch (type) {
+      case FEEDING:
+        event.setType(HistoryEvent.Type.FEEDING);
+        break;
+      case CHECK_IN:
+        event.setType(HistoryEvent.Type.CHECK_IN);
+        break;
+      case FEEDING_SCHEDULE_CHANGE:
+        event.setType(HistoryEvent.Type.FEEDING_SCHEDULE_CHANGE).setValue(value);
+        break;
+    }
+    event.build().writeDelimitedTo(out);
+  }
+
+  private static long parseTime(@Nullable String parameter, long defaultMsSinceEpoch) {
+    return parameter == null ? defaultMsSinceEpoch : Long.parseLong(parameter);
+  }
+}
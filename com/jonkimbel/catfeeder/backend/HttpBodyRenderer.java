@@ -1,38 +1,43 @@
 package com.jonkimbel.catfeeder.backend;
 
+import com.jonkimbel.catfeeder.backend.log.Log;
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences;
-import com.jonkimbel.catfeeder.backend.server.HttpResponse;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
 import com.jonkimbel.catfeeder.backend.storage.api.PreferencesStorage;
 import com.jonkimbel.catfeeder.backend.template.Template;
-import com.jonkimbel.catfeeder.backend.template.TemplateFiller;
 import com.jonkimbel.catfeeder.backend.time.Time;
 
 import java.io.IOException;
-import java.util.Date;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class HttpBodyRenderer {
   private static final int MAX_FEEDINGS_TO_DISPLAY = 10;
 
-  public String render(Template template) throws IOException {
+  /** Renders the given template for the given device into {@code out} as UTF-8. */
+  public void render(Template template, String deviceId, OutputStream out) throws IOException {
     switch (template) {
       case INDEX:
-        return renderIndex(Template.INDEX.toString());
+        renderIndex(deviceId, out);
+        break;
       case LOGIN:
-        return Template.LOGIN.toString();
+        Template.LOGIN.getCompiledTemplate().render(Collections.emptyMap(), out);
+        break;
       default:
-        System.err.printf("%s - unrecognized template: %s\n", new Date(), template);
-        return "";
+        Log.warning("unrecognized template: %s", template);
+        break;
     }
   }
 
-  private static String renderIndex(String templateHtml) throws IOException {
-    // TODO [V2]: Implement support for user-defined feeding times - just take a # of scoops and a
-    //            time per feeding, pace the feedings out automatically.
-
+  private static void renderIndex(String deviceId, OutputStream out) throws IOException {
     Map<String, String> templateValues = new HashMap<>();
-    FeedingPreferences feedingPrefs = PreferencesStorage.get().getFeedingPreferences();
+    Preferences prefs = PreferencesStorage.get(deviceId);
+    FeedingPreferences feedingPrefs = prefs.getFeedingPreferences();
+
+    templateValues.put("device_id", deviceId);
+    templateValues.put("device_query", deviceQuery(deviceId));
 
     // Show recent feedings.
     int feedingsCount = feedingPrefs.getLastTenFeedingTimesMsSinceEpochCount();
@@ -49,15 +54,15 @@ public class HttpBodyRenderer {
       templateValues.put("recent_feedings", feedingTimeString.toString());
     }
 
-    templateValues.put("next_feeding", Time.format(Time.getTimeOfNextFeedingForDisplay()));
+    templateValues.put("next_feeding", Time.format(Time.getTimeOfNextFeedingForDisplay(prefs)));
     int scoopsPerFeeding = Math.max(
         feedingPrefs.getNumberOfScoopsPerFeeding(),
         /* min scoops per feeding */ 1);
     templateValues.put("number_of_scoops_per_feeding", String.valueOf(scoopsPerFeeding));
 
     templateValues.put("check_in_warning_display",
-        Time.wasLastCheckInRecent() ? "none" : "inherit");
-    templateValues.put("check_in_warning_time", Time.format(Time.getTimeOfLastCheckIn()));
+        Time.wasLastCheckInRecent(prefs) ? "none" : "inherit");
+    templateValues.put("check_in_warning_time", Time.format(Time.getTimeOfLastCheckIn(prefs)));
 
     if (feedingPrefs.getFeedingSchedule() ==
         FeedingPreferences.FeedingSchedule.FEED_HALF_CALORIES) {
@@ -65,10 +70,23 @@ public class HttpBodyRenderer {
     } else if (feedingPrefs.getFeedingSchedule() ==
         FeedingPreferences.FeedingSchedule.FEED_ALL_CALORIES) {
       templateValues.put("feed_schedule_all_calories", "checked");
+    } else if (feedingPrefs.getFeedingSchedule() ==
+        FeedingPreferences.FeedingSchedule.FEED_CUSTOM_TIMES) {
+      templateValues.put("feed_schedule_custom_times", "checked");
     } else {
       templateValues.put("feed_schedule_never", "checked");
     }
+    templateValues.put("custom_feeding_times",
+        Time.formatFeedingTimes(feedingPrefs.getCustomFeedingTimesMinutesIntoDayList()));
 
-    return new TemplateFiller(templateHtml).fill(templateValues);
+    Template.INDEX.getCompiledTemplate().render(templateValues, out);
+  }
+
+  /** The query string that keeps the web UI pointed at the given device across requests. */
+  public static String deviceQuery(String deviceId) {
+    if (deviceId.equals(PreferencesStorage.DEFAULT_DEVICE_ID)) {
+      return "";
+    }
+    return "?device=" + deviceId;
   }
 }
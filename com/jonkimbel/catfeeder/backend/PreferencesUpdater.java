@@ -1,88 +1,121 @@
 package com.jonkimbel.catfeeder.backend;
 
-import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass;
+import com.jonkimbel.catfeeder.backend.log.Log;
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences;
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences.FeedingSchedule;
+import com.jonkimbel.catfeeder.backend.storage.api.EventStorage;
 import com.jonkimbel.catfeeder.backend.storage.api.PreferencesStorage;
+import com.jonkimbel.catfeeder.backend.time.Time;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Instant;
-import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 public class PreferencesUpdater {
-  public void update(Map<String, String> formKeysAndValues) {
-    Preferences.Builder builder = PreferencesStorage.get().toBuilder();
+  public void update(String deviceId, Map<String, String> formKeysAndValues) {
+    // Parsed once, up front. The update below may run more than once, so it only applies them.
+    @Nullable FeedingSchedule newSchedule =
+        parseFeedingSchedule(formKeysAndValues.get("feed_schedule"));
+    @Nullable Integer newScoopsPerFeeding =
+        parseScoopsPerFeeding(formKeysAndValues.get("number_of_scoops_per_feeding"));
+    @Nullable List<Integer> newCustomFeedingTimes =
+        parseCustomFeedingTimes(formKeysAndValues.get("custom_feeding_times"));
+    long nowMs = Instant.now().toEpochMilli();
 
-    updateFeedingSchedule(formKeysAndValues.get("feed_schedule"),
-        builder.getFeedingPreferencesBuilder());
-    updateScoopsPerFeeding(formKeysAndValues.get("number_of_scoops_per_feeding"),
-        builder.getFeedingPreferencesBuilder());
+    Preferences newPreferences = PreferencesStorage.update(deviceId, preferences -> {
+      FeedingPreferences.Builder builder = preferences.getFeedingPreferences().toBuilder();
+      if (newSchedule != null && builder.getFeedingSchedule() != newSchedule) {
+        builder.setFeedingSchedule(newSchedule).setLastFeedingScheduleChangeMsSinceEpoch(nowMs);
+      }
+      if (newScoopsPerFeeding != null) {
+        builder.setNumberOfScoopsPerFeeding(newScoopsPerFeeding);
+      }
+      if (newCustomFeedingTimes != null
+          && !newCustomFeedingTimes.equals(builder.getCustomFeedingTimesMinutesIntoDayList())) {
+        builder.clearCustomFeedingTimesMinutesIntoDay()
+            .addAllCustomFeedingTimesMinutesIntoDay(newCustomFeedingTimes);
+        if (builder.getFeedingSchedule() == FeedingSchedule.FEED_CUSTOM_TIMES) {
+          // New times are a new schedule, feeding times that already passed today don't count.
+          builder.setLastFeedingScheduleChangeMsSinceEpoch(nowMs);
+        }
+      }
+
+      FeedingPreferences feedingPrefs = builder.build();
+      return feedingPrefs.equals(preferences.getFeedingPreferences())
+          ? preferences
+          : preferences.toBuilder().setFeedingPreferences(feedingPrefs).build();
+    });
 
-    PreferencesStorage.set(builder.build());
+    // Only this update stamps the schedule with nowMs, so the committed preferences say whether it
+    // started a new schedule.
+    FeedingPreferences feedingPrefs = newPreferences.getFeedingPreferences();
+    if (feedingPrefs.getLastFeedingScheduleChangeMsSinceEpoch() == nowMs) {
+      EventStorage.recordFeedingScheduleChange(deviceId, nowMs, feedingPrefs.getFeedingSchedule());
+    }
   }
 
-  public void feedAsap() {
-    Preferences.Builder builder = PreferencesStorage.get().toBuilder();
-    builder.getFeedingPreferencesBuilder().setFeedAsap(true);
-    PreferencesStorage.set(builder.build());
+  public void feedAsap(String deviceId) {
+    PreferencesStorage.update(deviceId, preferences -> {
+      if (preferences.getFeedingPreferences().getFeedAsap()) {
+        return preferences;
+      }
+      Preferences.Builder builder = preferences.toBuilder();
+      builder.getFeedingPreferencesBuilder().setFeedAsap(true);
+      return builder.build();
+    });
   }
 
-  private static void updateScoopsPerFeeding(String scoopsPerFeeding,
-      FeedingPreferences.Builder builder) {
-    Integer numberOfScoopsPerFeeding;
+  @Nullable
+  private static Integer parseScoopsPerFeeding(@Nullable String scoopsPerFeeding) {
+    if (scoopsPerFeeding == null) {
+      return null;
+    }
+    int numberOfScoopsPerFeeding;
     try {
       numberOfScoopsPerFeeding = Integer.parseInt(scoopsPerFeeding);
     } catch (NumberFormatException e) {
-      numberOfScoopsPerFeeding = null;
+      return null;
     }
 
-    if (numberOfScoopsPerFeeding == null
-        || numberOfScoopsPerFeeding < /* min scoops per feeding */ 1) {
-      return;
+    if (numberOfScoopsPerFeeding < /* min scoops per feeding */ 1) {
+      return null;
     }
-
-    builder.setNumberOfScoopsPerFeeding(numberOfScoopsPerFeeding);
+    return numberOfScoopsPerFeeding;
   }
 
-  private static void updateFeedingSchedule(String feedingScheduleArgument,
-      FeedingPreferences.Builder builder) {
-    if (feedingScheduleArgument == null) {
-      return;
+  @Nullable
+  private static List<Integer> parseCustomFeedingTimes(@Nullable String customFeedingTimes) {
+    if (customFeedingTimes == null) {
+      return null;
     }
 
-    boolean scheduleRecognized = false;
-    scheduleRecognized |= applyFeedingSchedule(
-        builder,
-        feedingScheduleArgument,
-        /* candidateScheduleString = */ "half_calories",
-        /* candidateSchedule = */ FeedingSchedule.FEED_HALF_CALORIES);
-    scheduleRecognized |= applyFeedingSchedule(
-        builder,
-        feedingScheduleArgument,
-        /* candidateScheduleString = */ "all_calories",
-        /* candidateSchedule = */ FeedingSchedule.FEED_ALL_CALORIES);
-    scheduleRecognized |= applyFeedingSchedule(
-        builder,
-        feedingScheduleArgument,
-        /* candidateScheduleString = */ "never",
-        /* candidateSchedule = */ FeedingSchedule.NEVER_AUTO_FEED);
-
-    if (!scheduleRecognized) {
-      System.err.printf("%s - Unrecognized feeding schedule:%s\n",
-          new Date(), feedingScheduleArgument);
+    List<Integer> feedingTimesMinutesIntoDay = Time.parseFeedingTimes(customFeedingTimes);
+    if (feedingTimesMinutesIntoDay == null) {
+      Log.warning("unrecognized custom feeding times: %s", customFeedingTimes);
     }
+    return feedingTimesMinutesIntoDay;
   }
 
-  private static boolean applyFeedingSchedule(FeedingPreferences.Builder builder,
-      String scheduleArgument, String candidateScheduleString, FeedingSchedule candidateSchedule) {
-    if (scheduleArgument.equals(candidateScheduleString)) {
-      if (builder.getFeedingSchedule() != candidateSchedule) {
-        builder.setFeedingSchedule(candidateSchedule)
-            .setLastFeedingScheduleChangeMsSinceEpoch(Instant.now().toEpochMilli());
-      }
-      return true;
+  @Nullable
+  private static FeedingSchedule parseFeedingSchedule(@Nullable String feedingScheduleArgument) {
+    if (feedingScheduleArgument == null) {
+      return null;
+    }
+
+    switch (feedingScheduleArgument) {
+      case "half_calories":
+        return FeedingSchedule.FEED_HALF_CALORIES;
+      case "all_calories":
+        return FeedingSchedule.FEED_ALL_CALORIES;
+      case "never":
+        return FeedingSchedule.NEVER_AUTO_FEED;
+      case "custom_times":
+        return FeedingSchedule.FEED_CUSTOM_TIMES;
+      default:
+        Log.warning("unrecognized feeding schedule: %s", feedingScheduleArgument);
+        return null;
     }
-    return false;
   }
 }
@@ -9,18 +9,21 @@ import com.jonkimbel.catfeeder.proto.CatFeeder;
 import java.io.IOException;
 
 public class ProtoBodyRenderer {
-  public byte[] render(boolean wroteLastFeedingTime) {
+  /** Renders a response that has the device check in again after the given delay. */
+  public byte[] render(String deviceId, boolean wroteLastFeedingTime,
+      long delayUntilNextCheckInMs) {
+    Preferences prefs = PreferencesStorage.get(deviceId);
     CatFeeder.EmbeddedResponse.Builder response = CatFeeder.EmbeddedResponse.newBuilder()
-        .setDelayUntilNextCheckInMs(Time.getTimeToNextCheckInMs())
+        .setDelayUntilNextCheckInMs(delayUntilNextCheckInMs)
         .setLastFeedingTimeConsumed(wroteLastFeedingTime);
 
-    if (PreferencesStorage.get().getFeedingPreferences().getFeedAsap()) {
+    if (prefs.getFeedingPreferences().getFeedAsap()) {
       response.setDelayUntilNextFeedingMs(0).setScoopsToFeed(1);
     } else {
-      response.setDelayUntilNextFeedingMs(Time.getTimeToNextFeedingMs());
+      response.setDelayUntilNextFeedingMs(Time.getTimeToNextFeedingMs(prefs));
 
       response.setScoopsToFeed(Math.max(
-          PreferencesStorage.get().getFeedingPreferences().getNumberOfScoopsPerFeeding(),
+          prefs.getFeedingPreferences().getNumberOfScoopsPerFeeding(),
           /* min scoops per feeding */ 1));
     }
 
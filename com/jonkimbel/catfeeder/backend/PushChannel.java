@@ -0,0 +1,107 @@
+package com.jonkimbel.catfeeder.backend;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.server.HttpResponse;
+import com.jonkimbel.catfeeder.backend.storage.api.PreferencesStorage;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Holds devices' long-poll check-ins open until there's news for them, so a "feed now" reaches a
+ * device moments after it's pressed instead of at the device's next check-in.
+ *
+ * <p>A held check-in is answered as soon as anything about its device changes, or once its hold
+ * runs out. No thread waits on a held check-in: each is just an entry here, answered from a single
+ * timer thread that the server hands the response back from.
+ */
+class PushChannel {
+  private final Map<String, Set<HeldCheckIn>> heldCheckIns = new ConcurrentHashMap<>();
+  private final ScheduledThreadPoolExecutor timer;
+
+  PushChannel() {
+    timer = new ScheduledThreadPoolExecutor(/* corePoolSize = */ 1, runnable -> {
+      Thread thread = new Thread(runnable, "PushChannelTimer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // Most holds end early, don't keep their timeouts queued until they would have gone off.
+    timer.setRemoveOnCancelPolicy(true);
+    PreferencesStorage.addChangeListener(this::onChanged);
+  }
+
+  /**
+   * Holds a check-in for up to {@code holdMs}, then answers it with what {@code responder}
+   * returns at that point. {@code versionSeen} is the device's {@link PreferencesStorage#getVersion}
+   * when the caller decided to hold, so a change made since then ends the hold straight away.
+   */
+  CompletableFuture<HttpResponse> hold(String deviceId, long versionSeen, long holdMs,
+      Supplier<HttpResponse> responder) {
+    HeldCheckIn checkIn = new HeldCheckIn(deviceId, responder);
+    // Added inside compute() so forget() can't drop the set from the map while it's being added to.
+    heldCheckIns.compute(deviceId, (key, checkIns) -> {
+      if (checkIns == null) {
+        checkIns = ConcurrentHashMap.newKeySet();
+      }
+      checkIns.add(checkIn);
+      return checkIns;
+    });
+    checkIn.timeout = timer.schedule(() -> answer(checkIn), holdMs, TimeUnit.MILLISECONDS);
+    // The server cancels the response if the device goes away first.
+    checkIn.response.whenComplete((response, e) -> forget(checkIn));
+
+    if (PreferencesStorage.getVersion(deviceId) != versionSeen) {
+      timer.execute(() -> answer(checkIn));
+    }
+    return checkIn.response;
+  }
+
+  private void onChanged(String deviceId) {
+    Set<HeldCheckIn> checkIns = heldCheckIns.get(deviceId);
+    if (checkIns == null) {
+      return;
+    }
+    for (HeldCheckIn checkIn : checkIns) {
+      // Answered on the timer thread, so whoever made the change isn't kept waiting.
+      timer.execute(() -> answer(checkIn));
+    }
+  }
+
+  private void answer(HeldCheckIn checkIn) {
+    if (checkIn.response.isDone()) {
+      return;
+    }
+    try {
+      checkIn.response.complete(checkIn.responder.get());
+    } catch (RuntimeException e) {
+      Log.warning("couldn't answer held check-in from %s: %s", checkIn.deviceId, e);
+      checkIn.response.completeExceptionally(e);
+    }
+  }
+
+  private void forget(HeldCheckIn checkIn) {
+    checkIn.timeout.cancel(/* mayInterruptIfRunning = */ false);
+    heldCheckIns.computeIfPresent(checkIn.deviceId, (key, checkIns) -> {
+      checkIns.remove(checkIn);
+      return checkIns.isEmpty() ? null : checkIns;
+    });
+  }
+
+  private static class HeldCheckIn {
+    private final String deviceId;
+    private final Supplier<HttpResponse> responder;
+    private final CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    private volatile ScheduledFuture<?> timeout;
+
+    private HeldCheckIn(String deviceId, Supplier<HttpResponse> responder) {
+      this.deviceId = deviceId;
+      this.responder = responder;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.jonkimbel.catfeeder.backend;
+
+import com.jonkimbel.catfeeder.backend.server.Compression;
+import com.jonkimbel.catfeeder.backend.server.Http;
+import com.jonkimbel.catfeeder.backend.server.ResponseBuffer;
+import com.jonkimbel.catfeeder.backend.storage.api.PreferencesStorage;
+import com.jonkimbel.catfeeder.backend.template.Template;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches each device's rendered home page.
+ *
+ * <p>A page only depends on the device's preferences and history, plus the current time to the
+ * minute, so it is kept until {@link PreferencesStorage#getVersion} or the minute changes. When
+ * several requests miss at once only one of them renders the page, the rest wait for it. Pages are
+ * compressed when they're rendered, not per request.
+ */
+class RenderCache {
+  private static final long TIME_BUCKET_MS = 60 * 1000;
+  private static final int MAX_PAGES = 1024;
+
+  /** A rendered page in each encoding, and its strong entity tag. */
+  static class Page {
+    final Compression.Precompressed body;
+    private final String etag;
+
+    private Page(Compression.Precompressed body, String etag) {
+      this.body = body;
+      this.etag = etag;
+    }
+
+    /** The entity tag of the page in {@code encoding}. Each encoding needs a different one. */
+    String etagFor(Http.ContentEncoding encoding) {
+      if (encoding == Http.ContentEncoding.IDENTITY) {
+        return etag;
+      }
+      return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+  }
+
+  private final HttpBodyRenderer httpBodyRenderer;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  RenderCache(HttpBodyRenderer httpBodyRenderer) {
+    this.httpBodyRenderer = httpBodyRenderer;
+  }
+
+  /** Returns the device's home page, rendering it if the cached one is out of date. */
+  Page getHomePage(String deviceId) throws IOException {
+    // Read the version before rendering, so a change made while rendering means a new version.
+    long version = PreferencesStorage.getVersion(deviceId);
+    long timeBucket = System.currentTimeMillis() / TIME_BUCKET_MS;
+
+    while (true) {
+      Entry entry = entries.get(deviceId);
+      if (entry != null && entry.version >= version && entry.timeBucket >= timeBucket) {
+        return await(entry.page);
+      }
+
+      Entry newEntry = new Entry(version, timeBucket);
+      boolean claimed = entry == null
+          ? entries.putIfAbsent(deviceId, newEntry) == null
+          : entries.replace(deviceId, entry, newEntry);
+      if (!claimed) {
+        // Another request got there first, use whatever it's rendering.
+        continue;
+      }
+      if (entries.size() > MAX_PAGES) {
+        // Pages are cheap to render again, so rather than track usage just start over.
+        entries.clear();
+      }
+
+      try {
+        Page page = render(deviceId);
+        newEntry.page.complete(page);
+        return page;
+      } catch (IOException | RuntimeException | Error e) {
+        // Fail the requests waiting on this render too, rather than leave them hanging.
+        newEntry.page.completeExceptionally(e);
+        entries.remove(deviceId, newEntry);
+        throw e;
+      }
+    }
+  }
+
+  private Page render(String deviceId) throws IOException {
+    ResponseBuffer buffer = new ResponseBuffer();
+    httpBodyRenderer.render(Template.INDEX, deviceId, buffer);
+    byte[] body = buffer.toByteArray();
+    return new Page(new Compression.Precompressed(body), etagOf(body));
+  }
+
+  /** A quoted tag that changes whenever the bytes do, even across restarts. */
+  private static String etagOf(byte[] body) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(body);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("every JVM supports SHA-256", e);
+    }
+    StringBuilder etag = new StringBuilder("\"");
+    for (int i = 0; i < 12; i++) {
+      etag.append(String.format("%02x", digest[i]));
+    }
+    return etag.append('"').toString();
+  }
+
+  private static Page await(CompletableFuture<Page> page) throws IOException {
+    try {
+      return page.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static class Entry {
+    private final long version;
+    private final long timeBucket;
+    private final CompletableFuture<Page> page = new CompletableFuture<>();
+
+    private Entry(long version, long timeBucket) {
+      this.version = version;
+      this.timeBucket = timeBucket;
+    }
+  }
+}
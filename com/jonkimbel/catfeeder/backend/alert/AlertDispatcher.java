@@ -0,0 +1,279 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers alerts to a set of {@link AlertSink}s from a background thread, so nobody raising an
+ * alert waits on the network.
+ *
+ * <p>Repeats of an alert within {@link #DEDUPLICATION_WINDOW_MS} of the first are held back and
+ * summarized once the window ends. Each destination gets at most one message per
+ * {@link #MIN_SEND_INTERVAL_MS}, however many sinks deliver to it. Alerts raised in the meantime
+ * are combined into that one message, so e.g. a whole fleet going offline at once is a single SMS.
+ * Any that don't fit go out in the next message, and the first says how many are to follow.
+ * Failed sends are retried with exponential backoff. At most {@link #MAX_PENDING_ALERTS} wait per
+ * destination, the oldest are dropped to make room.
+ */
+class AlertDispatcher {
+  private static final int QUEUE_CAPACITY = 1024;
+  private static final long DEDUPLICATION_WINDOW_MS = TimeUnit.MINUTES.toMillis(10);
+  private static final long MIN_SEND_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+  private static final long INITIAL_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+  private static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(5);
+  private static final int MAX_ATTEMPTS = 10;
+  // Far more than fit in one message, only reached when a destination keeps failing.
+  private static final int MAX_PENDING_ALERTS = 100;
+  // SMS messages over 1600 characters are rejected.
+  private static final int MAX_MESSAGE_CHARS = 1500;
+  // Room kept at the end of a message to say how many alerts didn't fit.
+  private static final int MORE_ALERTS_CHARS = moreAlerts(MAX_PENDING_ALERTS).length();
+  // How long to wait for new alerts when nothing is scheduled.
+  private static final long IDLE_POLL_MS = TimeUnit.SECONDS.toMillis(1);
+
+  private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final List<Destination> destinations;
+
+  // Only touched by the dispatcher thread.
+  private final Map<String, RecentAlert> recentAlerts = new HashMap<>();
+
+  AlertDispatcher(List<AlertSink> sinks) {
+    Map<String, Destination> destinationsByName = new LinkedHashMap<>();
+    for (AlertSink sink : sinks) {
+      destinationsByName.computeIfAbsent(sink.getDestination(), Destination::new).sinks.add(sink);
+    }
+    destinations = new ArrayList<>(destinationsByName.values());
+    Thread thread = new Thread(this::dispatchForever, "AlertDispatcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Queues {@code message} for delivery. Never blocks. */
+  void submit(String message) {
+    if (!queue.offer(message)) {
+      Metrics.INSTANCE.onOutageAlertDropped();
+      Log.error("alert queue full, dropped alert '%s'", message);
+    }
+  }
+
+  private void dispatchForever() {
+    while (true) {
+      try {
+        String message = queue.poll(getWaitMs(), TimeUnit.MILLISECONDS);
+        long nowMs = System.currentTimeMillis();
+        if (message != null) {
+          accept(message, nowMs);
+          // Collect everything else that's waiting, so it can go out together.
+          while ((message = queue.poll()) != null) {
+            accept(message, nowMs);
+          }
+        }
+        summarizeExpiredRepeats(nowMs);
+        for (Destination destination : destinations) {
+          destination.sendIfDue(nowMs);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        Log.error("alert dispatcher error: %s", e);
+      }
+    }
+  }
+
+  private void accept(String message, long nowMs) {
+    RecentAlert recentAlert = recentAlerts.get(message);
+    if (recentAlert != null && nowMs < recentAlert.windowEndMs) {
+      recentAlert.repeats++;
+      return;
+    }
+    recentAlerts.put(message, new RecentAlert(nowMs + DEDUPLICATION_WINDOW_MS));
+    enqueue(message);
+  }
+
+  private void summarizeExpiredRepeats(long nowMs) {
+    Iterator<Map.Entry<String, RecentAlert>> entries = recentAlerts.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, RecentAlert> entry = entries.next();
+      RecentAlert recentAlert = entry.getValue();
+      if (nowMs < recentAlert.windowEndMs) {
+        continue;
+      }
+      entries.remove();
+      if (recentAlert.repeats > 0) {
+        enqueue(String.format("%s (repeated %d more times in %d min)", entry.getKey(),
+            recentAlert.repeats, TimeUnit.MILLISECONDS.toMinutes(DEDUPLICATION_WINDOW_MS)));
+      }
+    }
+  }
+
+  private void enqueue(String message) {
+    // Shared by every destination, so it's only counted once however many it reaches.
+    Alert alert = new Alert(message);
+    for (Destination destination : destinations) {
+      destination.add(alert);
+    }
+  }
+
+  /** How long the dispatcher can sleep before a destination has something to send. */
+  private long getWaitMs() {
+    long waitMs = IDLE_POLL_MS;
+    long nowMs = System.currentTimeMillis();
+    for (Destination destination : destinations) {
+      if (!destination.pending.isEmpty()) {
+        waitMs = Math.min(waitMs, destination.nextSendMs - nowMs);
+      }
+    }
+    return Math.max(waitMs, 0);
+  }
+
+  private static class Alert {
+    private final String message;
+    private boolean sent;
+
+    private Alert(String message) {
+      this.message = message;
+    }
+  }
+
+  private static class RecentAlert {
+    private final long windowEndMs;
+    private int repeats;
+
+    private RecentAlert(long windowEndMs) {
+      this.windowEndMs = windowEndMs;
+    }
+  }
+
+  /**
+   * Alerts waiting for one destination, the sinks that deliver to it, and when it may next be sent
+   * to.
+   */
+  private static class Destination {
+    private final String name;
+    private final List<AlertSink> sinks = new ArrayList<>();
+    private final Deque<Alert> pending = new ArrayDeque<>();
+    private long nextSendMs;
+    private int failedAttempts;
+
+    private Destination(String name) {
+      this.name = name;
+    }
+
+    private void add(Alert alert) {
+      if (pending.size() >= MAX_PENDING_ALERTS) {
+        Alert dropped = pending.removeFirst();
+        Metrics.INSTANCE.onOutageAlertDropped();
+        Log.error("too many alerts waiting for %s, dropped alert '%s'", name, dropped.message);
+      }
+      pending.addLast(alert);
+    }
+
+    private void sendIfDue(long nowMs) {
+      if (pending.isEmpty() || nowMs < nextSendMs) {
+        return;
+      }
+
+      StringBuilder message = new StringBuilder();
+      int combinedAlerts = combine(pending, message);
+      try {
+        send(message.toString());
+      } catch (Exception e) {
+        failedAttempts++;
+        if (failedAttempts >= MAX_ATTEMPTS) {
+          Log.error("gave up sending alert to %s after %d attempts: %s",
+              name, failedAttempts, e);
+          pending.clear();
+          failedAttempts = 0;
+          nextSendMs = nowMs + MIN_SEND_INTERVAL_MS;
+          return;
+        }
+        long retryDelayMs = Math.min(
+            INITIAL_RETRY_DELAY_MS << (failedAttempts - 1), MAX_RETRY_DELAY_MS);
+        Log.warning("couldn't send alert to %s, retrying in %d ms: %s",
+            name, retryDelayMs, e);
+        nextSendMs = nowMs + retryDelayMs;
+        return;
+      }
+
+      // Alerts that didn't fit stay pending for the next message.
+      for (int i = 0; i < combinedAlerts; i++) {
+        Alert alert = pending.removeFirst();
+        if (!alert.sent) {
+          alert.sent = true;
+          Metrics.INSTANCE.onOutageAlertSent();
+        }
+      }
+      failedAttempts = 0;
+      nextSendMs = nowMs + MIN_SEND_INTERVAL_MS;
+    }
+
+    /** Sends through the first sink that works. They all reach the same destination. */
+    private void send(String message) throws Exception {
+      Exception failure = null;
+      for (AlertSink sink : sinks) {
+        try {
+          sink.send(message);
+          return;
+        } catch (Exception e) {
+          if (failure == null) {
+            failure = e;
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+      throw failure;
+    }
+
+    /**
+     * Joins as many messages as fit in one message into {@code combined}, one per line, followed by
+     * how many more are to follow. Returns how many it joined, always at least the first, cut short
+     * if it has to be.
+     */
+    private static int combine(Deque<Alert> alerts, StringBuilder combined) {
+      int combinedAlerts = 0;
+      for (Alert alert : alerts) {
+        int separatorChars = combinedAlerts == 0 ? 0 : 1;
+        int reservedChars = combinedAlerts == alerts.size() - 1 ? 0 : MORE_ALERTS_CHARS;
+        if (combined.length() + separatorChars + alert.message.length() + reservedChars
+            > MAX_MESSAGE_CHARS) {
+          if (combinedAlerts == 0) {
+            combined.append(truncate(alert.message, MAX_MESSAGE_CHARS - reservedChars));
+            combinedAlerts++;
+          }
+          break;
+        }
+        if (separatorChars > 0) {
+          combined.append('\n');
+        }
+        combined.append(alert.message);
+        combinedAlerts++;
+      }
+      if (combinedAlerts < alerts.size()) {
+        combined.append(moreAlerts(alerts.size() - combinedAlerts));
+      }
+      return combinedAlerts;
+    }
+
+    private static String truncate(String message, int maxChars) {
+      return message.length() <= maxChars
+          ? message : message.substring(0, maxChars - 3) + "...";
+    }
+  }
+
+  private static String moreAlerts(int count) {
+    return String.format("\n...and %d more alerts to follow", count);
+  }
+}
@@ -0,0 +1,13 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+/** Somewhere alerts can be delivered, e.g. an admin's phone. */
+public interface AlertSink {
+  /**
+   * Identifies who the sink delivers to. Alerts to the same destination are rate-limited
+   * together.
+   */
+  String getDestination();
+
+  /** Delivers {@code message}, throwing if it couldn't be. May block. */
+  void send(String message) throws Exception;
+}
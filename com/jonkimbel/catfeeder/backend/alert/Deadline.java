@@ -0,0 +1,41 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * When a {@link Watchdog} expects to hear from one key again. Created the first time the key
+ * checks in and reused from then on.
+ */
+class Deadline {
+  enum State {
+    NEW,
+    SCHEDULED,
+    // The ticker found the deadline passed and is about to report it, unless a check-in takes it
+    // back first.
+    DUE,
+    OVERDUE,
+  }
+
+  final String key;
+
+  // What the key's latest check-in asked for. Written without the wheel's lock, so the wheel may
+  // still hold an earlier time in scheduledMs.
+  volatile long deadlineMs;
+  volatile String message;
+  // Moves between states by compare-and-set, so a check-in and the ticker can't both claim a
+  // deadline that is passing, see Watchdog.
+  final AtomicReference<State> state = new AtomicReference<>(State.NEW);
+
+  // Owned by the wheel, only touched under its lock.
+  long scheduledMs;
+  Deadline previous;
+  Deadline next;
+
+  // The deadline the ticker found passed, and its message. Only touched by the ticker thread.
+  long missedDeadlineMs;
+  String missedMessage;
+
+  Deadline(String key) {
+    this.key = key;
+  }
+}
@@ -0,0 +1,29 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+/** Appends alerts to a local file, for running without sending real messages. */
+class FileAlertSink implements AlertSink {
+  private final Path path;
+
+  FileAlertSink(Path path) {
+    this.path = path;
+  }
+
+  @Override
+  public String getDestination() {
+    return "file:" + path;
+  }
+
+  @Override
+  public void send(String message) throws IOException {
+    String entry = String.format("%s - %s\n", new Date(), message);
+    Files.write(path, entry.getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+}
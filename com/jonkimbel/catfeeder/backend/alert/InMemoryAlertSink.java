@@ -0,0 +1,31 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/** Keeps the most recent alerts in memory, for benchmarks and tests. */
+public class InMemoryAlertSink implements AlertSink {
+  private static final int MAX_MESSAGES = 1000;
+
+  private final Deque<String> messages = new ArrayDeque<>();
+
+  @Override
+  public String getDestination() {
+    return "memory";
+  }
+
+  @Override
+  public synchronized void send(String message) {
+    if (messages.size() == MAX_MESSAGES) {
+      messages.removeFirst();
+    }
+    messages.addLast(message);
+  }
+
+  /** Returns the alerts delivered so far, oldest first. */
+  public synchronized List<String> getMessages() {
+    return new ArrayList<>(messages);
+  }
+}
@@ -1,60 +1,74 @@
 package com.jonkimbel.catfeeder.backend.alert;
 
-import org.checkerframework.checker.nullness.qual.Nullable;
-import com.twilio.Twilio;
-import com.twilio.rest.api.v2010.account.Message;
-import com.twilio.type.PhoneNumber;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class OutageNotifier {
+  /**
+   * System property listing where alerts go, separated by commas: "twilio" (the default),
+   * "file:<path>" or "memory".
+   */
+  public static final String SINKS_PROPERTY = "catfeeder.alert_sinks";
+
   public static final OutageNotifier INSTANCE = new OutageNotifier();
 
-  @Nullable private TimerTask ongoingTimeout;
+  private static final long WATCHDOG_TICK_MS = 1000;
 
-  private final Timer timer = new Timer(
-      "OutageNotifierTimer", /* isDaemon = */ true);
+  private final List<AlertSink> sinks = createSinks(System.getProperty(SINKS_PROPERTY, "twilio"));
+  private final AlertDispatcher dispatcher = new AlertDispatcher(sinks);
 
-  private OutageNotifier() {
-    Twilio.init(TwilioInfo.ACCOUNT_SID, TwilioInfo.AUTH_TOKEN);
-  }
+  private final Watchdog watchdog = new Watchdog(
+      "OutageNotifierWatchdog", WATCHDOG_TICK_MS, (key, deadlineMs, message) -> alert(message));
+
+  private OutageNotifier() {}
 
   /*
-   * After this message is called, if it isn't called again within
-   * {@code delayMs}, an SMS message will be sent to alert the admin of an
-   * outage.
+   * After this message is called, if it isn't called again with the same
+   * {@code key} within {@code delayMs}, an alert will be sent to the admin
+   * about an outage. Safe to call from many threads at once.
    */
-  public synchronized void alertIfNotCalledWithin(
-      long delayMs, String message) {
-    if (ongoingTimeout != null) {
-      ongoingTimeout.cancel();
-    }
+  public void alertIfNotCalledWithin(
+      String key, long delayMs, String message) {
+    watchdog.refresh(key, delayMs, message);
+  }
 
-    ongoingTimeout = onTimeout(() -> alert(message));
+  /*
+   * Returns every key that is currently overdue, i.e. wasn't passed to
+   * {@link #alertIfNotCalledWithin} again in time, with the time it was due.
+   */
+  public Map<String, Long> getOverdue() {
+    return watchdog.getOverdue();
+  }
 
-    timer.schedule(ongoingTimeout, delayMs);
+  /*
+   * Calling this method will send a message to the admin, e.g. by SMS. It
+   * returns right away, the message is sent in the background.
+   */
+  public void alert(String message) {
+    dispatcher.submit(message);
   }
 
-  /* Calling this method will send an SMS message to the admin. */
-  public synchronized void alert(String message) {
-    Message twilioMessage =
-        Message.creator(
-            /* to = */ new PhoneNumber(TwilioInfo.PHONE_NUMBER_TO_ALERT),
-            /* from = */ new PhoneNumber(TwilioInfo.TWILIO_PHONE_NUMBER),
-            /* message = */ message)
-        .create();
-
-    System.out.printf("%s - sending message '%s', sid %s\n",
-        new Date(), message, twilioMessage.getSid());
+  public List<AlertSink> getSinks() {
+    return sinks;
   }
 
-  private static TimerTask onTimeout(Runnable timeoutRunnable) {
-    return new TimerTask() {
-      @Override
-      public void run() {
-        timeoutRunnable.run();
+  private static List<AlertSink> createSinks(String sinkNames) {
+    List<AlertSink> sinks = new ArrayList<>();
+    for (String sinkName : sinkNames.split(",")) {
+      sinkName = sinkName.trim();
+      if (sinkName.equals("twilio")) {
+        sinks.add(new TwilioAlertSink());
+      } else if (sinkName.startsWith("file:")) {
+        sinks.add(new FileAlertSink(Paths.get(sinkName.substring("file:".length()))));
+      } else if (sinkName.equals("memory")) {
+        sinks.add(new InMemoryAlertSink());
+      } else {
+        throw new IllegalArgumentException("unknown alert sink: " + sinkName);
       }
-    };
+    }
+    return Collections.unmodifiableList(sinks);
   }
 }
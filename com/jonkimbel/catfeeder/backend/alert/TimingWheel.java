@@ -0,0 +1,123 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel of {@link Deadline}s, with one-tick resolution.
+ *
+ * <p>Level 0 has a slot for each of the next 64 ticks, level 1 a slot for each of the next 64
+ * spans of 64 ticks, and so on. Deadlines are linked into the slot for their tick, and move down a
+ * level each time the slot they're in comes up. Scheduling and unscheduling are O(1) and never
+ * allocate, since every deadline is its own list node.
+ *
+ * <p>Not thread-safe, the {@link Watchdog} owning the wheel locks around it.
+ */
+class TimingWheel {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+  // Deadlines further out than this wait in the top level and are rescheduled when they come up.
+  private static final long MAX_DELTA_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+  private final long tickMs;
+  private final Deadline[][] slots = new Deadline[LEVELS][SLOTS];
+  private long currentTick;
+
+  TimingWheel(long tickMs, long nowMs) {
+    this.tickMs = tickMs;
+    this.currentTick = nowMs / tickMs;
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        // Each slot is a circular list with a sentinel, so linking and unlinking need no checks.
+        Deadline sentinel = new Deadline(/* key = */ null);
+        sentinel.previous = sentinel;
+        sentinel.next = sentinel;
+        slots[level][slot] = sentinel;
+      }
+    }
+  }
+
+  /** Links {@code deadline} into the slot for its {@link Deadline#scheduledMs}. */
+  void schedule(Deadline deadline) {
+    // The current tick's slot has already been drained, so the earliest a deadline can come up is
+    // the next tick.
+    schedule(deadline, /* minDeltaTicks = */ 1);
+  }
+
+  private void schedule(Deadline deadline, long minDeltaTicks) {
+    unschedule(deadline);
+
+    // Round up, so a deadline never fires before it has passed.
+    long tick = (deadline.scheduledMs + tickMs - 1) / tickMs;
+    long delta = Math.min(Math.max(tick - currentTick, minDeltaTicks), MAX_DELTA_TICKS);
+    tick = currentTick + delta;
+
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    Deadline sentinel = slots[level][(int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+    deadline.previous = sentinel.previous;
+    deadline.next = sentinel;
+    sentinel.previous.next = deadline;
+    sentinel.previous = deadline;
+  }
+
+  void unschedule(Deadline deadline) {
+    if (deadline.next == null) {
+      return;
+    }
+    deadline.previous.next = deadline.next;
+    deadline.next.previous = deadline.previous;
+    deadline.previous = null;
+    deadline.next = null;
+  }
+
+  /**
+   * Moves the wheel forward to {@code nowMs}, unlinking every deadline whose slot comes up into
+   * {@code due}. Deadlines in {@code due} may have been pushed back since they were scheduled, the
+   * caller checks and reschedules them.
+   */
+  void advance(long nowMs, List<Deadline> due) {
+    long nowTick = nowMs / tickMs;
+    while (currentTick < nowTick) {
+      currentTick++;
+      // When a level's slot index wraps, bring the next slot of the level above down a level.
+      for (int level = 1; level < LEVELS; level++) {
+        if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+          break;
+        }
+        cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+      }
+      drain(slots[0][(int) (currentTick & (SLOTS - 1))], due);
+    }
+  }
+
+  private void cascade(int level, int slot) {
+    Deadline sentinel = slots[level][slot];
+    Deadline deadline = sentinel.next;
+    sentinel.previous = sentinel;
+    sentinel.next = sentinel;
+    while (deadline != sentinel) {
+      Deadline next = deadline.next;
+      deadline.previous = null;
+      deadline.next = null;
+      // Cascading happens before the current tick's slot is drained, so it can still go there.
+      schedule(deadline, /* minDeltaTicks = */ 0);
+      deadline = next;
+    }
+  }
+
+  private static void drain(Deadline sentinel, List<Deadline> due) {
+    Deadline deadline = sentinel.next;
+    sentinel.previous = sentinel;
+    sentinel.next = sentinel;
+    while (deadline != sentinel) {
+      Deadline next = deadline.next;
+      deadline.previous = null;
+      deadline.next = null;
+      due.add(deadline);
+      deadline = next;
+    }
+  }
+}
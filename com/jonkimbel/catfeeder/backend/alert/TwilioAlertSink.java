@@ -0,0 +1,30 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.twilio.Twilio;
+import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.type.PhoneNumber;
+
+/** Sends alerts to the admin as SMS messages through Twilio. */
+class TwilioAlertSink implements AlertSink {
+  TwilioAlertSink() {
+    Twilio.init(TwilioInfo.ACCOUNT_SID, TwilioInfo.AUTH_TOKEN);
+  }
+
+  @Override
+  public String getDestination() {
+    return "sms:" + TwilioInfo.PHONE_NUMBER_TO_ALERT;
+  }
+
+  @Override
+  public void send(String message) {
+    Message twilioMessage =
+        Message.creator(
+            /* to = */ new PhoneNumber(TwilioInfo.PHONE_NUMBER_TO_ALERT),
+            /* from = */ new PhoneNumber(TwilioInfo.TWILIO_PHONE_NUMBER),
+            /* message = */ message)
+        .create();
+
+    Log.info("sent message '%s', sid %s", message, twilioMessage.getSid());
+  }
+}
@@ -0,0 +1,145 @@
+package com.jonkimbel.catfeeder.backend.alert;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks a deadline per key, e.g. per device, and reports each key that lets its deadline pass.
+ *
+ * <p>Deadlines live in {@link TimingWheel}s, one per shard of keys, advanced by a single ticker
+ * thread. A check-in that pushes its deadline back, which is nearly every check-in, only writes
+ * the new time into the key's {@link Deadline} without taking a lock. The wheel notices the new
+ * time when the old one comes up and reschedules it then.
+ *
+ * <p>A deadline that passes is claimed by the ticker and only reported once the ticker has moved it
+ * from {@code DUE} to {@code OVERDUE}. A check-in that comes in first takes it back from
+ * {@code DUE} instead, so a passing deadline is either reported or rescheduled, never both.
+ */
+class Watchdog {
+  interface Listener {
+    void onOverdue(String key, long deadlineMs, String message);
+  }
+
+  private static final int SHARDS = 16;
+
+  private final Map<String, Deadline> deadlines = new ConcurrentHashMap<>();
+  private final TimingWheel[] wheels = new TimingWheel[SHARDS];
+  private final Listener listener;
+  // Only touched by the ticker thread.
+  private final List<Deadline> due = new ArrayList<>();
+  private final List<Deadline> overdue = new ArrayList<>();
+
+  Watchdog(String name, long tickMs, Listener listener) {
+    this.listener = listener;
+    long nowMs = System.currentTimeMillis();
+    for (int i = 0; i < SHARDS; i++) {
+      wheels[i] = new TimingWheel(tickMs, nowMs);
+    }
+
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Moves the deadline for {@code key} to {@code timeoutMs} from now. If it passes, the listener
+   * is called with {@code message}.
+   */
+  void refresh(String key, long timeoutMs, String message) {
+    Deadline deadline = deadlines.get(key);
+    if (deadline == null) {
+      deadline = deadlines.computeIfAbsent(key, Deadline::new);
+    }
+
+    long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    long previousDeadlineMs = deadline.deadlineMs;
+    deadline.message = message;
+    deadline.deadlineMs = deadlineMs;
+
+    // A later deadline is picked up by the wheel when the earlier one comes up. Only go through the
+    // wheel's lock if it isn't holding the deadline, or would hold it for too long.
+    if (deadline.state.get() == Deadline.State.SCHEDULED && deadlineMs >= previousDeadlineMs) {
+      return;
+    }
+    TimingWheel wheel = wheelFor(key);
+    synchronized (wheel) {
+      // Only the ticker moves the state while we hold the lock, from DUE to OVERDUE, so this
+      // retries at most once. Winning DUE stops the ticker reporting the deadline.
+      Deadline.State state;
+      do {
+        state = deadline.state.get();
+      } while (state != Deadline.State.SCHEDULED
+          && !deadline.state.compareAndSet(state, Deadline.State.SCHEDULED));
+      deadline.scheduledMs = deadline.deadlineMs;
+      wheel.schedule(deadline);
+    }
+  }
+
+  /** Returns every key whose deadline has passed without a refresh, and its missed deadline. */
+  Map<String, Long> getOverdue() {
+    Map<String, Long> overdueKeys = new TreeMap<>();
+    for (Deadline deadline : deadlines.values()) {
+      if (deadline.state.get() == Deadline.State.OVERDUE) {
+        overdueKeys.put(deadline.key, deadline.deadlineMs);
+      }
+    }
+    return overdueKeys;
+  }
+
+  private void tick() {
+    long nowMs = System.currentTimeMillis();
+    for (TimingWheel wheel : wheels) {
+      synchronized (wheel) {
+        wheel.advance(nowMs, due);
+        for (Deadline deadline : due) {
+          if (deadline.deadlineMs <= nowMs
+              && deadline.state.compareAndSet(Deadline.State.SCHEDULED, Deadline.State.DUE)) {
+            // A refresh that saw the old state left rescheduling to us. One that sees DUE waits
+            // for the lock and takes the deadline back.
+            long missedDeadlineMs = deadline.deadlineMs;
+            if (missedDeadlineMs <= nowMs) {
+              deadline.missedDeadlineMs = missedDeadlineMs;
+              deadline.missedMessage = deadline.message;
+              overdue.add(deadline);
+              continue;
+            }
+            deadline.state.set(Deadline.State.SCHEDULED);
+          }
+          deadline.scheduledMs = deadline.deadlineMs;
+          wheel.schedule(deadline);
+        }
+        due.clear();
+      }
+    }
+
+    // Outside the locks, so a slow listener doesn't hold up check-ins.
+    for (Deadline deadline : overdue) {
+      if (!deadline.state.compareAndSet(Deadline.State.DUE, Deadline.State.OVERDUE)) {
+        // A refresh came in since and rescheduled it.
+        continue;
+      }
+      try {
+        listener.onOverdue(deadline.key, deadline.missedDeadlineMs, deadline.missedMessage);
+      } catch (RuntimeException e) {
+        Log.error("couldn't report overdue %s: %s", deadline.key, e);
+      }
+    }
+    overdue.clear();
+  }
+
+  private TimingWheel wheelFor(String key) {
+    int hash = key.hashCode();
+    return wheels[Math.floorMod(hash ^ (hash >>> 16), SHARDS)];
+  }
+}
@@ -0,0 +1,101 @@
+package com.jonkimbel.catfeeder.backend.auth;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.storage.api.PasswordStorage;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides who is logged in to the web pages.
+ *
+ * <p>The password is stored as a {@link PasswordHash} and only checked when somebody logs in, which
+ * exchanges it for a session token. Every other request just looks its token up in the
+ * {@link SessionTable}, so the slow hash costs nothing on page loads and the password is only ever
+ * sent once. A password stored in plain text is replaced by its hash, see {@link
+ * #hashStoredPassword}.
+ *
+ * <p>Checking a password takes a good fraction of a second of CPU, so it's done on a couple of
+ * threads of its own with a short queue, see {@link #logInLater}. A burst of logins, or somebody
+ * guessing passwords, waits there instead of holding up the server's threads, and logins beyond the
+ * queue are turned away.
+ */
+public class Authenticator {
+  // As long as the session cookie lasts.
+  public static final long SESSION_LIFETIME_MS = TimeUnit.DAYS.toMillis(30);
+  private static final int LOGIN_THREADS = 2;
+  private static final int MAX_QUEUED_LOGINS = 8;
+
+  public static final Authenticator INSTANCE = new Authenticator();
+
+  private final SessionTable sessions = new SessionTable(SESSION_LIFETIME_MS);
+  private final ExecutorService loginExecutor;
+
+  private Authenticator() {
+    loginExecutor = new ThreadPoolExecutor(
+        /* corePoolSize = */ LOGIN_THREADS,
+        /* maximumPoolSize = */ LOGIN_THREADS,
+        /* keepAliveTime = */ 0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(MAX_QUEUED_LOGINS),
+        runnable -> {
+          Thread thread = new Thread(runnable, "Login");
+          thread.setDaemon(true);
+          return thread;
+        });
+    PasswordStorage.addChangeListener(sessions::clear);
+  }
+
+  /** Returns whether the request with session token {@code sessionToken} may see the pages. */
+  public boolean isLoggedIn(@Nullable String sessionToken) {
+    return PasswordStorage.get() == null || sessions.isValid(sessionToken);
+  }
+
+  /**
+   * Checks {@code password} on the login threads. The future completes with a new session token if
+   * it's right, otherwise with null. Returns null without checking if too many logins are waiting
+   * already.
+   */
+  @Nullable
+  public CompletableFuture<@Nullable String> logInLater(@Nullable String password) {
+    try {
+      return CompletableFuture.supplyAsync(() -> logIn(password), loginExecutor);
+    } catch (RejectedExecutionException e) {
+      Log.warning("too many logins waiting, turning one away");
+      return null;
+    }
+  }
+
+  /**
+   * Returns a new session token if {@code password} is right, otherwise null. Blocks while the
+   * password is checked, so the server uses {@link #logInLater} instead.
+   */
+  @Nullable
+  public String logIn(@Nullable String password) {
+    hashStoredPassword();
+    @Nullable String passwordHash = PasswordStorage.get();
+    if (passwordHash == null) {
+      return sessions.create();
+    }
+    if (password == null || !PasswordHash.matches(password, passwordHash)) {
+      return null;
+    }
+    return sessions.create();
+  }
+
+  /** Replaces a password stored in plain text with its hash. Does nothing if it's hashed already. */
+  public void hashStoredPassword() {
+    @Nullable String stored = PasswordStorage.get();
+    if (stored == null || PasswordHash.isHash(stored)) {
+      return;
+    }
+    Log.info("replacing the password stored in plain text with its hash");
+    PasswordStorage.update(password ->
+        password == null || PasswordHash.isHash(password) ? password : PasswordHash.hash(password));
+  }
+}
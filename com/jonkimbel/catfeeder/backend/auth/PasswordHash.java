@@ -0,0 +1,72 @@
+package com.jonkimbel.catfeeder.backend.auth;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes, encoded as "pbkdf2-sha256$<iterations>$<salt>$<hash>" so the
+ * iteration count can be raised later without invalidating hashes that are already stored.
+ *
+ * <p>Checking a password deliberately takes a good fraction of a second, which is what makes
+ * guessing slow. Only logins pay for it, see {@link Authenticator}.
+ */
+class PasswordHash {
+  private static final String PREFIX = "pbkdf2-sha256$";
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int ITERATIONS = 310_000;
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private PasswordHash() {}
+
+  /** Returns whether {@code stored} is a hash rather than a password stored in plain text. */
+  static boolean isHash(String stored) {
+    return stored.startsWith(PREFIX);
+  }
+
+  static String hash(String password) {
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+    return PREFIX + ITERATIONS + "$" + base64.encodeToString(salt) + "$"
+        + base64.encodeToString(pbkdf2(password, salt, ITERATIONS));
+  }
+
+  /** Returns whether {@code password} matches {@code hash}, in time that doesn't depend on it. */
+  static boolean matches(String password, String hash) {
+    if (!isHash(hash)) {
+      return false;
+    }
+    String[] parts = hash.substring(PREFIX.length()).split("\\$");
+    if (parts.length != 3) {
+      return false;
+    }
+    try {
+      int iterations = Integer.parseInt(parts[0]);
+      byte[] salt = Base64.getDecoder().decode(parts[1]);
+      byte[] expected = Base64.getDecoder().decode(parts[2]);
+      return MessageDigest.isEqual(expected, pbkdf2(password, salt, iterations));
+    } catch (IllegalArgumentException e) {
+      // A malformed number or Base64 in the stored hash.
+      return false;
+    }
+  }
+
+  private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      // Every JDK since 8 includes PBKDF2WithHmacSHA256.
+      throw new IllegalStateException(e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
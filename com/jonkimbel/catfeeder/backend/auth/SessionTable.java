@@ -0,0 +1,109 @@
+package com.jonkimbel.catfeeder.backend.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Sessions of users who have logged in, kept in memory only, so everybody has to log in again
+ * when the backend restarts.
+ *
+ * <p>A token is a random selector, which finds the session, and a random verifier, which proves the
+ * holder was given it. Only a digest of the verifier is kept and it's compared in constant time, so
+ * neither the table nor the time a lookup takes gives a token away. Sessions are spread over
+ * shards, and looking one up takes no locks.
+ */
+class SessionTable {
+  private static final int SHARD_COUNT = 16;
+  private static final int SELECTOR_BYTES = 12;
+  private static final int VERIFIER_BYTES = 32;
+
+  private final long sessionLifetimeMs;
+  private final SecureRandom random = new SecureRandom();
+  @SuppressWarnings("unchecked")
+  private final Map<String, Session>[] shards = new Map[SHARD_COUNT];
+
+  SessionTable(long sessionLifetimeMs) {
+    this.sessionLifetimeMs = sessionLifetimeMs;
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new ConcurrentHashMap<>();
+    }
+  }
+
+  /** Starts a session and returns its token. */
+  String create() {
+    Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+    String selector = base64.encodeToString(randomBytes(SELECTOR_BYTES));
+    String verifier = base64.encodeToString(randomBytes(VERIFIER_BYTES));
+    long nowMs = System.currentTimeMillis();
+
+    Map<String, Session> shard = shardFor(selector);
+    // Logins are rare, so it's cheap to sweep expired sessions out whenever one is added.
+    shard.values().removeIf(session -> session.expiresAtMs <= nowMs);
+    shard.put(selector, new Session(digest(verifier), nowMs + sessionLifetimeMs));
+    return selector + "." + verifier;
+  }
+
+  /** Returns whether {@code token} belongs to a session that hasn't expired. */
+  boolean isValid(@Nullable String token) {
+    if (token == null) {
+      return false;
+    }
+    int separator = token.indexOf('.');
+    if (separator < 0) {
+      return false;
+    }
+    String selector = token.substring(0, separator);
+    @Nullable Session session = shardFor(selector).get(selector);
+    if (session == null) {
+      return false;
+    }
+    if (session.expiresAtMs <= System.currentTimeMillis()) {
+      shardFor(selector).remove(selector, session);
+      return false;
+    }
+    return MessageDigest.isEqual(session.verifierDigest, digest(token.substring(separator + 1)));
+  }
+
+  /** Ends every session, e.g. because the password changed. */
+  void clear() {
+    for (Map<String, Session> shard : shards) {
+      shard.clear();
+    }
+  }
+
+  private Map<String, Session> shardFor(String selector) {
+    return shards[Math.floorMod(selector.hashCode(), SHARD_COUNT)];
+  }
+
+  private byte[] randomBytes(int count) {
+    byte[] bytes = new byte[count];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] digest(String verifier) {
+    try {
+      return MessageDigest.getInstance("SHA-256")
+          .digest(verifier.getBytes(StandardCharsets.US_ASCII));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java runtime is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Session {
+    private final byte[] verifierDigest;
+    private final long expiresAtMs;
+
+    private Session(byte[] verifierDigest, long expiresAtMs) {
+      this.verifierDigest = verifierDigest;
+      this.expiresAtMs = expiresAtMs;
+    }
+  }
+}
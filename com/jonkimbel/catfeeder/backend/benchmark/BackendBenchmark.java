@@ -0,0 +1,57 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.ActionDeterminer;
+import com.jonkimbel.catfeeder.backend.ActionDeterminer.Action;
+import com.jonkimbel.catfeeder.backend.Backend;
+import com.jonkimbel.catfeeder.backend.server.HttpHeader;
+import com.jonkimbel.catfeeder.backend.server.HttpHeaderParser;
+import com.jonkimbel.catfeeder.backend.server.HttpResponse;
+import com.jonkimbel.catfeeder.backend.server.HttpServer.RequestHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything the backend does with a request after reading it off the socket, once for each
+ * action. The header is parsed again for every request, like the server does. A deferred response,
+ * e.g. to a login, whose password is checked on the login threads, is waited for, so the work
+ * behind it is measured too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackendBenchmark {
+  // No values means every action.
+  @Param
+  public Action action;
+
+  private RequestHandler backend;
+  private Requests.Request request;
+
+  @Setup
+  public void setUp() throws IOException {
+    backend = Backend.createRequestHandler();
+    request = Requests.forAction(action);
+
+    HttpHeader header = HttpHeaderParser.parseComplete(request.header, request.header.length);
+    Action actualAction = new ActionDeterminer(header).determine();
+    if (actualAction != action) {
+      throw new IllegalStateException(
+          String.format("request for %s is handled as %s", action, actualAction));
+    }
+  }
+
+  @Benchmark
+  public HttpResponse handleRequest() throws IOException {
+    HttpHeader header = HttpHeaderParser.parseComplete(request.header, request.header.length);
+    HttpResponse response = backend.handleRequest(header, ByteBuffer.wrap(request.body));
+    CompletableFuture<HttpResponse> deferredResponse = response.getDeferredResponse();
+    return deferredResponse == null ? response : deferredResponse.join();
+  }
+}
@@ -0,0 +1,58 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.alert.OutageNotifier;
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.storage.serializer.LibraryDirectory;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Runs the benchmarks with JMH's GC profiler always on, so every result includes allocation per
+ * operation next to throughput.
+ *
+ * <p>The backend's state is kept in a fresh temporary directory, so benchmarks start from the same
+ * state every time and never touch real preferences, events or passwords.
+ */
+public class BenchmarkMain {
+  static final String PASSCODE = "benchmark";
+
+  public static void main(String[] args)
+      throws IOException, RunnerException, CommandLineOptionException {
+    Path libraryDirectory = Files.createTempDirectory("catfeeder-benchmark");
+    // A password lets the benchmarks reach the logged-out actions too.
+    Files.write(libraryDirectory.resolve("password.txt"),
+        PASSCODE.getBytes(StandardCharsets.UTF_8));
+
+    String libraryDirectoryArgument = String.format("-D%s=%s",
+        LibraryDirectory.OVERRIDE_PROPERTY, libraryDirectory.toAbsolutePath());
+    // Also set in this JVM, for runs that don't fork (-f 0).
+    System.setProperty(LibraryDirectory.OVERRIDE_PROPERTY, libraryDirectory.toString());
+    // Logging every request would measure the console more than the backend.
+    String logLevelArgument = String.format("-D%s=%s", Log.LEVEL_PROPERTY, Log.Level.WARNING);
+    System.setProperty(Log.LEVEL_PROPERTY, Log.Level.WARNING.name());
+    // Keep outage alerts for the benchmark devices off the network.
+    String alertSinksArgument = String.format("-D%s=memory", OutageNotifier.SINKS_PROPERTY);
+    System.setProperty(OutageNotifier.SINKS_PROPERTY, "memory");
+
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder()
+        .parent(commandLineOptions)
+        .addProfiler(GCProfiler.class)
+        .jvmArgsAppend(libraryDirectoryArgument, logLevelArgument, alertSinksArgument);
+    // Includes add up, so only run every benchmark if the command line didn't pick any.
+    if (commandLineOptions.getIncludes().isEmpty()) {
+      options.include(BenchmarkMain.class.getPackage().getName() + ".*");
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,33 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.server.HttpHeader;
+import com.jonkimbel.catfeeder.backend.server.HttpHeaderParser;
+import com.jonkimbel.catfeeder.backend.server.HttpParseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing request headers, which every request pays for before anything else happens. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpHeaderParserBenchmark {
+  private final byte[] photonCheckIn =
+      Requests.PHOTON_CHECK_IN.getBytes(StandardCharsets.ISO_8859_1);
+  private final byte[] browserHomePage =
+      Requests.BROWSER_HOME_PAGE.getBytes(StandardCharsets.ISO_8859_1);
+
+  @Benchmark
+  public HttpHeader parsePhotonCheckIn() throws HttpParseException {
+    return HttpHeaderParser.parseComplete(photonCheckIn, photonCheckIn.length);
+  }
+
+  @Benchmark
+  public HttpHeader parseBrowserHomePage() throws HttpParseException {
+    return HttpHeaderParser.parseComplete(browserHomePage, browserHomePage.length);
+  }
+}
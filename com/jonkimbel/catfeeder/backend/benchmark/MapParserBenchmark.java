@@ -0,0 +1,30 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.server.MapParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing form posts and cookies. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapParserBenchmark {
+  private final String postBody = Requests.PREFERENCES_FORM_BODY;
+  private final String cookies =
+      "passcode=" + BenchmarkMain.PASSCODE + "; _ga=GA1.2.1234567890.1583000000; _gid=GA1.2.1";
+
+  @Benchmark
+  public Map<String, String> parsePostBody() {
+    return MapParser.parsePostBody(postBody);
+  }
+
+  @Benchmark
+  public Map<String, String> parseCookies() {
+    return MapParser.parseCookies(cookies);
+  }
+}
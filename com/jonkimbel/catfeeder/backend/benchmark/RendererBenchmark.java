@@ -0,0 +1,36 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.HttpBodyRenderer;
+import com.jonkimbel.catfeeder.backend.ProtoBodyRenderer;
+import com.jonkimbel.catfeeder.backend.server.ResponseBuffer;
+import com.jonkimbel.catfeeder.backend.template.Template;
+import com.jonkimbel.catfeeder.backend.time.CheckInPlanner;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Rendering response bodies, including the storage reads and time math behind them. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RendererBenchmark {
+  private final HttpBodyRenderer httpBodyRenderer = new HttpBodyRenderer();
+  private final ProtoBodyRenderer protoBodyRenderer = new ProtoBodyRenderer();
+
+  @Benchmark
+  public ResponseBuffer renderIndex() throws IOException {
+    ResponseBuffer out = new ResponseBuffer();
+    httpBodyRenderer.render(Template.INDEX, Requests.DEVICE_ID, out);
+    return out;
+  }
+
+  @Benchmark
+  public byte[] renderPhotonResponse() {
+    return protoBodyRenderer.render(Requests.DEVICE_ID, /* wroteLastFeedingTime = */ false,
+        CheckInPlanner.MAX_DELAY_MS);
+  }
+}
@@ -0,0 +1,110 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.ActionDeterminer.Action;
+import com.jonkimbel.catfeeder.backend.auth.Authenticator;
+
+import java.nio.charset.StandardCharsets;
+
+/** Typical raw requests, as the backend receives them from the device and from browsers. */
+class Requests {
+  static final String DEVICE_ID = "benchmark-device";
+
+  // Sessions only live in memory, so each benchmark JVM logs in once for its own.
+  private static final String SESSION_TOKEN = Authenticator.INSTANCE.logIn(BenchmarkMain.PASSCODE);
+
+  /** What photon/app.cpp sends when it checks in. The body is an empty EmbeddedRequest. */
+  static final String PHOTON_CHECK_IN =
+      "GET /photon/" + DEVICE_ID + " HTTP/1.0\r\n"
+          + "Content-Length: 0\r\n"
+          + "\r\n";
+
+  /** A check-in asking for an immediate answer, so only the long-poll bookkeeping is measured. */
+  static final String PHOTON_LONG_POLL =
+      "GET /photon/" + DEVICE_ID + "?hold_ms=0 HTTP/1.0\r\n"
+          + "Content-Length: 0\r\n"
+          + "\r\n";
+
+  /** What a desktop browser sends when it loads the home page. */
+  static final String BROWSER_HOME_PAGE =
+      "GET / HTTP/1.1\r\n"
+          + "Host: catfeeder.example.com\r\n"
+          + "Connection: keep-alive\r\n"
+          + "Upgrade-Insecure-Requests: 1\r\n"
+          + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+          + "Chrome/80.0.3987.132 Safari/537.36\r\n"
+          + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,"
+          + "image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.9\r\n"
+          + "Accept-Encoding: gzip, deflate\r\n"
+          + "Accept-Language: en-US,en;q=0.9\r\n"
+          + "Cookie: session=" + SESSION_TOKEN + "; _ga=GA1.2.1234567890.1583000000\r\n"
+          + "\r\n";
+
+  static final String PREFERENCES_FORM_BODY =
+      "feed_schedule=all_calories\r\n"
+          + "number_of_scoops_per_feeding=2\r\n"
+          + "custom_feeding_times=6:00, 18:30\r\n";
+
+  /** A raw request header and its body. */
+  static class Request {
+    final byte[] header;
+    final byte[] body;
+
+    private Request(String header, String body) {
+      this.header = header.getBytes(StandardCharsets.ISO_8859_1);
+      this.body = body.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private Requests() {}
+
+  /** A request that the backend answers with {@code action}. */
+  static Request forAction(Action action) {
+    switch (action) {
+      case SERVE_PHOTON:
+        return new Request(PHOTON_CHECK_IN, "");
+      case LONG_POLL_PHOTON:
+        return new Request(PHOTON_LONG_POLL, "");
+      case SERVE_METRICS:
+        return get("/metrics", /* loggedIn = */ false);
+      case SERVE_HOME:
+        return new Request(BROWSER_HOME_PAGE, "");
+      case UPDATE_PREFERENCES_REDIRECT_TO_HOME:
+        return post("/", /* loggedIn = */ true, PREFERENCES_FORM_BODY);
+      case FEED_NOW_REDIRECT_TO_HOME:
+        return post("/feednow", /* loggedIn = */ true, "");
+      case REDIRECT_TO_HOME:
+        return get("/favicon.ico", /* loggedIn = */ true);
+      case EXPORT_HISTORY:
+        return get("/history", /* loggedIn = */ true);
+      case SERVE_LOGIN:
+        return get("/login", /* loggedIn = */ false);
+      case REDIRECT_TO_LOGIN:
+        return get("/", /* loggedIn = */ false);
+      case SET_COOKIE_REDIRECT_TO_HOME:
+        return post("/login", /* loggedIn = */ false,
+            "passcode=" + BenchmarkMain.PASSCODE + "\r\n");
+      case NOT_IMPLEMENTED:
+        return post("/feednow", /* loggedIn = */ false, "");
+      default:
+        throw new IllegalArgumentException("no request for " + action);
+    }
+  }
+
+  private static Request get(String path, boolean loggedIn) {
+    return new Request("GET " + path + " HTTP/1.1\r\n" + cookie(loggedIn) + "\r\n", "");
+  }
+
+  private static Request post(String path, boolean loggedIn, String body) {
+    return new Request(
+        "POST " + path + " HTTP/1.1\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+            + cookie(loggedIn)
+            + "\r\n",
+        body);
+  }
+
+  private static String cookie(boolean loggedIn) {
+    return loggedIn ? "Cookie: session=" + SESSION_TOKEN + "\r\n" : "";
+  }
+}
@@ -0,0 +1,51 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.server.ResponseBuffer;
+import com.jonkimbel.catfeeder.backend.template.Template;
+import com.jonkimbel.catfeeder.backend.template.TemplateFiller;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Filling the home page template, the old way and the compiled way. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+  private String indexTemplate;
+  private Map<String, String> values;
+
+  @Setup
+  public void setUp() {
+    indexTemplate = Template.INDEX.toString();
+    values = new HashMap<>();
+    values.put("device_id", Requests.DEVICE_ID);
+    values.put("device_query", "?device=" + Requests.DEVICE_ID);
+    values.put("recent_feedings_display", "inherit");
+    values.put("recent_feedings", "Mar 7, 2020, 6:00:00 AM<br>Mar 6, 2020, 6:10:00 PM<br>");
+    values.put("next_feeding", "Mar 7, 2020, 6:20:00 AM");
+    values.put("number_of_scoops_per_feeding", "1");
+    values.put("check_in_warning_display", "none");
+    values.put("check_in_warning_time", "Mar 7, 2020, 6:05:00 AM");
+    values.put("feed_schedule_all_calories", "checked");
+  }
+
+  @Benchmark
+  public String templateFillerFill() {
+    // TemplateFiller is single-use, it can't be created ahead of time.
+    return new TemplateFiller(indexTemplate).fill(values);
+  }
+
+  @Benchmark
+  public ResponseBuffer compiledTemplateRender() throws IOException {
+    ResponseBuffer out = new ResponseBuffer();
+    Template.INDEX.getCompiledTemplate().render(values, out);
+    return out;
+  }
+}
@@ -0,0 +1,50 @@
+package com.jonkimbel.catfeeder.backend.benchmark;
+
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences.FeedingSchedule;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
+import com.jonkimbel.catfeeder.backend.time.Time;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+/** Working out when a device should next feed, which every check-in does. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeBenchmark {
+  @Param({"FEED_HALF_CALORIES", "FEED_ALL_CALORIES", "FEED_CUSTOM_TIMES"})
+  public FeedingSchedule feedingSchedule;
+
+  private Preferences prefs;
+
+  @Setup
+  public void setUp() {
+    long now = System.currentTimeMillis();
+    prefs = Preferences.newBuilder()
+        .setLastPhotonCheckInMsSinceEpoch(now)
+        .setFeedingPreferences(FeedingPreferences.newBuilder()
+            .setFeedingSchedule(feedingSchedule)
+            .addCustomFeedingTimesMinutesIntoDay(6 * 60)
+            .addCustomFeedingTimesMinutesIntoDay(12 * 60)
+            .addCustomFeedingTimesMinutesIntoDay(18 * 60 + 30)
+            .setLastFeedingScheduleChangeMsSinceEpoch(now - TimeUnit.DAYS.toMillis(7))
+            .addLastTenFeedingTimesMsSinceEpoch(now - TimeUnit.HOURS.toMillis(1))
+            .build())
+        .build();
+  }
+
+  @Benchmark
+  public ZonedDateTime getTimeOfNextFeeding() {
+    return Time.getTimeOfNextFeeding(prefs);
+  }
+
+  @Benchmark
+  public Long getTimeToNextFeedingMs() {
+    return Time.getTimeToNextFeedingMs(prefs);
+  }
+}
@@ -0,0 +1,292 @@
+package com.jonkimbel.catfeeder.backend.log;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs to stdout (DEBUG and INFO) and stderr (WARNING and ERROR) without making the caller wait.
+ *
+ * <p>Entries go into a fixed ring of reusable slots and a single background thread formats and
+ * prints them, so request threads never contend on the console. Logging a request allocates
+ * nothing. Messages are formatted with {@link String#format} on the background thread, so their
+ * arguments must not change after they are logged.
+ *
+ * <p>Nothing ever blocks on a full ring. Once it is three quarters full only one in
+ * {@link #SAMPLE_ONE_IN} DEBUG and INFO entries is kept, and once it is full everything is
+ * dropped. The number of entries lost is logged when the ring drains.
+ */
+public class Log {
+  public enum Level {
+    DEBUG,
+    INFO,
+    WARNING,
+    ERROR,
+  }
+
+  /** System property that sets the minimum level, e.g. -Dcatfeeder.log_level=WARNING. */
+  public static final String LEVEL_PROPERTY = "catfeeder.log_level";
+
+  private static final int CAPACITY = 8192; // Must be a power of two.
+  private static final int SAMPLE_ABOVE = CAPACITY * 3 / 4;
+  private static final int SAMPLE_ONE_IN = 16;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long SHUTDOWN_FLUSH_TIMEOUT_MS = 1000;
+  private static final DateTimeFormatter SECOND_FORMATTER =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+  private static final Log log = new Log();
+
+  private volatile Level minimumLevel =
+      Level.valueOf(System.getProperty(LEVEL_PROPERTY, Level.INFO.name()));
+
+  private final Entry[] entries = new Entry[CAPACITY];
+  // The next sequence number to hand out. Entry n lives in slot n % CAPACITY.
+  private final AtomicLong claimed = new AtomicLong();
+  // The next sequence number to format, and the first one not yet written to the console. Only
+  // written by the drain thread.
+  private volatile long drained;
+  private volatile long printed;
+  // Counts DEBUG and INFO entries offered while the ring is nearly full, to pick which to keep.
+  private final AtomicLong sampleTickets = new AtomicLong();
+  private final LongAdder sampledOut = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  private final Thread drainThread;
+  private volatile boolean drainThreadParked;
+
+  // Only touched by the drain thread.
+  private final StringBuilder outBatch = new StringBuilder(64 * 1024);
+  private final StringBuilder errBatch = new StringBuilder(4 * 1024);
+  private long cachedSecond = Long.MIN_VALUE;
+  private String cachedSecondText = "";
+
+  private Log() {
+    for (int i = 0; i < CAPACITY; i++) {
+      entries[i] = new Entry();
+    }
+    drainThread = new Thread(this::drainForever, "LogDrain");
+    drainThread.setDaemon(true);
+    drainThread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "LogShutdownFlush"));
+  }
+
+  public static void setLevel(Level level) {
+    log.minimumLevel = level;
+  }
+
+  public static boolean isLoggable(Level level) {
+    return level.compareTo(log.minimumLevel) >= 0;
+  }
+
+  public static void debug(String format, Object... args) {
+    log.message(Level.DEBUG, format, args);
+  }
+
+  public static void info(String format, Object... args) {
+    log.message(Level.INFO, format, args);
+  }
+
+  public static void warning(String format, Object... args) {
+    log.message(Level.WARNING, format, args);
+  }
+
+  public static void error(String format, Object... args) {
+    log.message(Level.ERROR, format, args);
+  }
+
+  /** Logs a served request at INFO, as structured fields. */
+  public static void request(String method, String path, String action, int status,
+      long durationNanos, int bytesIn, int bytesOut) {
+    if (!isLoggable(Level.INFO)) {
+      return;
+    }
+    Entry entry = log.claim(Level.INFO);
+    if (entry == null) {
+      return;
+    }
+    entry.method = method;
+    entry.path = path;
+    entry.action = action;
+    entry.status = status;
+    entry.durationNanos = durationNanos;
+    entry.bytesIn = bytesIn;
+    entry.bytesOut = bytesOut;
+    log.publish(entry);
+  }
+
+  /** Waits up to a second for everything logged so far to be printed. */
+  public static void flush() {
+    long target = log.claimed.get();
+    long deadlineMs = System.currentTimeMillis() + SHUTDOWN_FLUSH_TIMEOUT_MS;
+    while (log.printed < target && System.currentTimeMillis() < deadlineMs) {
+      LockSupport.unpark(log.drainThread);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  private void message(Level level, String format, Object[] args) {
+    if (!isLoggable(level)) {
+      return;
+    }
+    Entry entry = claim(level);
+    if (entry == null) {
+      return;
+    }
+    entry.format = format;
+    entry.args = args;
+    publish(entry);
+  }
+
+  /** Reserves the next slot, or returns null if the entry should be sampled out or dropped. */
+  private Entry claim(Level level) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      long used = sequence - drained;
+      if (used >= CAPACITY) {
+        dropped.increment();
+        return null;
+      }
+      if (used >= SAMPLE_ABOVE && level.compareTo(Level.INFO) <= 0
+          && sampleTickets.getAndIncrement() % SAMPLE_ONE_IN != 0) {
+        sampledOut.increment();
+        return null;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    Entry entry = entries[(int) (sequence & (CAPACITY - 1))];
+    entry.sequence = sequence;
+    entry.level = level;
+    entry.timeMs = System.currentTimeMillis();
+    return entry;
+  }
+
+  private void publish(Entry entry) {
+    entry.publishedSequence = entry.sequence;
+    if (drainThreadParked) {
+      LockSupport.unpark(drainThread);
+    }
+  }
+
+  private void drainForever() {
+    while (true) {
+      long sequence = drained;
+      Entry entry = entries[(int) (sequence & (CAPACITY - 1))];
+      if (entry.publishedSequence != sequence) {
+        // Caught up, or the next entry is still being filled in.
+        printBatches();
+        drainThreadParked = true;
+        if (entry.publishedSequence != sequence) {
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        drainThreadParked = false;
+        continue;
+      }
+
+      format(entry, entry.level.compareTo(Level.WARNING) >= 0 ? errBatch : outBatch);
+      entry.clear();
+      drained = sequence + 1;
+
+      if (outBatch.length() > 60 * 1024 || errBatch.length() > 60 * 1024) {
+        printBatches();
+      }
+    }
+  }
+
+  private void printBatches() {
+    long printing = drained;
+    long sampledOutCount = sampledOut.sumThenReset();
+    long droppedCount = dropped.sumThenReset();
+    if (sampledOutCount > 0 || droppedCount > 0) {
+      appendPrefix(errBatch, System.currentTimeMillis(), Level.WARNING);
+      errBatch.append("log ring full, sampled out ").append(sampledOutCount)
+          .append(" and dropped ").append(droppedCount).append(" entries\n");
+    }
+    print(outBatch, System.out);
+    print(errBatch, System.err);
+    printed = printing;
+  }
+
+  private static void print(StringBuilder batch, PrintStream stream) {
+    if (batch.length() == 0) {
+      return;
+    }
+    stream.append(batch);
+    stream.flush();
+    batch.setLength(0);
+  }
+
+  private void format(Entry entry, StringBuilder out) {
+    appendPrefix(out, entry.timeMs, entry.level);
+    if (entry.format != null) {
+      try {
+        out.append(String.format(entry.format, entry.args));
+      } catch (RuntimeException e) {
+        // A bad format string, or an argument whose toString() threw. Either way, keep draining.
+        out.append(entry.format);
+      }
+    } else {
+      out.append("request method=").append(entry.method)
+          .append(" path=").append(entry.path)
+          .append(" action=").append(entry.action)
+          .append(" status=").append(entry.status)
+          .append(" duration_us=").append(entry.durationNanos / 1000)
+          .append(" bytes_in=").append(entry.bytesIn)
+          .append(" bytes_out=").append(entry.bytesOut);
+    }
+    out.append('\n');
+  }
+
+  private void appendPrefix(StringBuilder out, long timeMs, Level level) {
+    // Formatting a timestamp is slow, so only do it once a second and append the millis.
+    long second = Math.floorDiv(timeMs, 1000);
+    if (second != cachedSecond) {
+      cachedSecond = second;
+      cachedSecondText = SECOND_FORMATTER.format(Instant.ofEpochSecond(second));
+    }
+    int millis = Math.floorMod(timeMs, 1000);
+    out.append(cachedSecondText).append('.');
+    if (millis < 100) {
+      out.append('0');
+    }
+    if (millis < 10) {
+      out.append('0');
+    }
+    out.append(millis).append(' ').append(level).append(' ');
+  }
+
+  /** A reusable slot in the ring. Holds either a message or a request. */
+  private static class Entry {
+    // The sequence number of the entry in this slot once it's ready to print, -1 before that.
+    private volatile long publishedSequence = -1;
+    private long sequence;
+    private Level level;
+    private long timeMs;
+
+    private String format;
+    private Object[] args;
+
+    private String method;
+    private String path;
+    private String action;
+    private int status;
+    private long durationNanos;
+    private int bytesIn;
+    private int bytesOut;
+
+    /** Drops references so logged objects can be collected. */
+    private void clear() {
+      format = null;
+      args = null;
+      method = null;
+      path = null;
+      action = null;
+    }
+  }
+}
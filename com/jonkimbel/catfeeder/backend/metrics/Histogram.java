@@ -0,0 +1,77 @@
+package com.jonkimbel.catfeeder.backend.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in fixed buckets from 100us to 10s, the shape Prometheus expects. Recording is
+ * lock-free and doesn't allocate.
+ */
+public class Histogram {
+  // Upper bounds of each bucket, inclusive. A last, unbounded bucket catches everything slower.
+  private static final long[] BUCKET_BOUNDS_NANOS = {
+      TimeUnit.MICROSECONDS.toNanos(100),
+      TimeUnit.MICROSECONDS.toNanos(250),
+      TimeUnit.MICROSECONDS.toNanos(500),
+      TimeUnit.MILLISECONDS.toNanos(1),
+      TimeUnit.MICROSECONDS.toNanos(2500),
+      TimeUnit.MILLISECONDS.toNanos(5),
+      TimeUnit.MILLISECONDS.toNanos(10),
+      TimeUnit.MILLISECONDS.toNanos(25),
+      TimeUnit.MILLISECONDS.toNanos(50),
+      TimeUnit.MILLISECONDS.toNanos(100),
+      TimeUnit.MILLISECONDS.toNanos(250),
+      TimeUnit.MILLISECONDS.toNanos(500),
+      TimeUnit.SECONDS.toNanos(1),
+      TimeUnit.MILLISECONDS.toNanos(2500),
+      TimeUnit.SECONDS.toNanos(5),
+      TimeUnit.SECONDS.toNanos(10),
+  };
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_NANOS.length + 1);
+  private final AtomicLong sumNanos = new AtomicLong();
+
+  Histogram() {}
+
+  public void record(long durationNanos) {
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_NANOS.length && durationNanos > BUCKET_BOUNDS_NANOS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    sumNanos.addAndGet(durationNanos);
+  }
+
+  /** Records the time since {@code startNanos}, a {@link System#nanoTime()} reading. */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Writes the histogram's samples under {@code name}. {@code labels} is either empty or a
+   * comma-terminated list of labels, e.g. {@code action="SERVE_HOME",}.
+   */
+  void writePrometheus(StringBuilder out, String name, String labels) {
+    // Buckets are read one at a time while other threads record, so the count is taken from the
+    // same reads to keep it consistent with the +Inf bucket.
+    long cumulativeCount = 0;
+    for (int i = 0; i < BUCKET_BOUNDS_NANOS.length; i++) {
+      cumulativeCount += counts.get(i);
+      out.append(name).append("_bucket{").append(labels).append("le=\"")
+          .append(toSeconds(BUCKET_BOUNDS_NANOS[i])).append("\"} ").append(cumulativeCount)
+          .append('\n');
+    }
+    cumulativeCount += counts.get(BUCKET_BOUNDS_NANOS.length);
+    out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ")
+        .append(cumulativeCount).append('\n');
+    out.append(name).append("_sum").append(Metrics.braces(labels)).append(' ')
+        .append(toSeconds(sumNanos.get())).append('\n');
+    out.append(name).append("_count").append(Metrics.braces(labels)).append(' ')
+        .append(cumulativeCount).append('\n');
+  }
+
+  private static double toSeconds(long nanos) {
+    return nanos / 1e9;
+  }
+}
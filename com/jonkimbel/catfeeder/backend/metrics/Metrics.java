@@ -0,0 +1,143 @@
+package com.jonkimbel.catfeeder.backend.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation for the backend, exported in the Prometheus text format.
+ *
+ * <p>Callers look up their {@link RequestMetrics} or {@link Histogram} once and keep it, so that
+ * recording a sample never allocates or takes a lock.
+ */
+public class Metrics {
+  public static final Metrics INSTANCE = new Metrics();
+
+  // Sorted so the exported metrics come out in a stable order.
+  private final Map<String, RequestMetrics> requestMetrics = new ConcurrentSkipListMap<>();
+  private final Map<String, Histogram> storageWriteLatencies = new ConcurrentSkipListMap<>();
+  private final AtomicLong activeConnections = new AtomicLong();
+  private final LongAdder outageAlertsSent = new LongAdder();
+  private final LongAdder outageAlertsDropped = new LongAdder();
+  private final LongAdder connectionsRejected = new LongAdder();
+  private final LongAdder requestsShed = new LongAdder();
+
+  private Metrics() {}
+
+  /** Returns the metrics for requests served by {@code action}. */
+  public RequestMetrics forAction(String action) {
+    return requestMetrics.computeIfAbsent(action, key -> new RequestMetrics());
+  }
+
+  /** Returns the histogram of how long it takes {@code store} to save {@code item}. */
+  public Histogram storageWriteLatency(String store, String item) {
+    return storageWriteLatencies.computeIfAbsent(
+        String.format("store=\"%s\",item=\"%s\",", store, item), key -> new Histogram());
+  }
+
+  public void onConnectionOpened() {
+    activeConnections.incrementAndGet();
+  }
+
+  public void onConnectionClosed() {
+    activeConnections.decrementAndGet();
+  }
+
+  /** Called when a connection is turned away because its client has too many open. */
+  public void onConnectionRejected() {
+    connectionsRejected.increment();
+  }
+
+  /** Called when a request is answered with an overload response instead of being handled. */
+  public void onRequestShed() {
+    requestsShed.increment();
+  }
+
+  public void onOutageAlertSent() {
+    outageAlertsSent.increment();
+  }
+
+  /** Called when an outage alert is dropped because too many are waiting to be sent. */
+  public void onOutageAlertDropped() {
+    outageAlertsDropped.increment();
+  }
+
+  /** Renders every metric in the Prometheus text exposition format. */
+  public String toPrometheusText() {
+    StringBuilder out = new StringBuilder(16 * 1024);
+
+    writeHeader(out, "catfeeder_request_duration_seconds", "histogram",
+        "Time spent handling requests, by action.");
+    for (Map.Entry<String, RequestMetrics> entry : requestMetrics.entrySet()) {
+      entry.getValue().latency.writePrometheus(
+          out, "catfeeder_request_duration_seconds", actionLabel(entry.getKey()));
+    }
+    writeHeader(out, "catfeeder_requests_total", "counter", "Requests handled, by action.");
+    for (Map.Entry<String, RequestMetrics> entry : requestMetrics.entrySet()) {
+      writeSample(out, "catfeeder_requests_total", actionLabel(entry.getKey()),
+          entry.getValue().requests.sum());
+    }
+    writeHeader(out, "catfeeder_request_errors_total", "counter",
+        "Requests that failed or got a 4xx or 5xx response, by action.");
+    for (Map.Entry<String, RequestMetrics> entry : requestMetrics.entrySet()) {
+      writeSample(out, "catfeeder_request_errors_total", actionLabel(entry.getKey()),
+          entry.getValue().errors.sum());
+    }
+    writeHeader(out, "catfeeder_request_body_bytes_total", "counter",
+        "Bytes of request bodies received, by action.");
+    for (Map.Entry<String, RequestMetrics> entry : requestMetrics.entrySet()) {
+      writeSample(out, "catfeeder_request_body_bytes_total", actionLabel(entry.getKey()),
+          entry.getValue().requestBodyBytes.sum());
+    }
+    writeHeader(out, "catfeeder_response_body_bytes_total", "counter",
+        "Bytes of response bodies sent, by action.");
+    for (Map.Entry<String, RequestMetrics> entry : requestMetrics.entrySet()) {
+      writeSample(out, "catfeeder_response_body_bytes_total", actionLabel(entry.getKey()),
+          entry.getValue().responseBodyBytes.sum());
+    }
+
+    writeHeader(out, "catfeeder_active_connections", "gauge", "Open client connections.");
+    writeSample(out, "catfeeder_active_connections", "", activeConnections.get());
+    writeHeader(out, "catfeeder_connections_rejected_total", "counter",
+        "Connections turned away because their client had too many open.");
+    writeSample(out, "catfeeder_connections_rejected_total", "", connectionsRejected.sum());
+    writeHeader(out, "catfeeder_requests_shed_total", "counter",
+        "Requests answered with an overload response because the server was busy.");
+    writeSample(out, "catfeeder_requests_shed_total", "", requestsShed.sum());
+
+    writeHeader(out, "catfeeder_storage_write_duration_seconds", "histogram",
+        "Time spent saving items to storage, by store and item.");
+    for (Map.Entry<String, Histogram> entry : storageWriteLatencies.entrySet()) {
+      entry.getValue().writePrometheus(
+          out, "catfeeder_storage_write_duration_seconds", entry.getKey());
+    }
+
+    writeHeader(out, "catfeeder_outage_alerts_sent_total", "counter",
+        "Outage alerts sent to the admin.");
+    writeSample(out, "catfeeder_outage_alerts_sent_total", "", outageAlertsSent.sum());
+    writeHeader(out, "catfeeder_outage_alerts_dropped_total", "counter",
+        "Outage alerts dropped because too many were waiting to be sent.");
+    writeSample(out, "catfeeder_outage_alerts_dropped_total", "", outageAlertsDropped.sum());
+
+    return out.toString();
+  }
+
+  private static void writeHeader(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void writeSample(StringBuilder out, String name, String labels, long value) {
+    out.append(name).append(braces(labels)).append(' ').append(value).append('\n');
+  }
+
+  private static String actionLabel(String action) {
+    return "action=\"" + action + "\",";
+  }
+
+  /** Wraps comma-terminated {@code labels} in braces, or returns "" if there are none. */
+  static String braces(String labels) {
+    return labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+  }
+}
@@ -0,0 +1,31 @@
+package com.jonkimbel.catfeeder.backend.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Latency, counts and sizes of the requests served by one action. */
+public class RequestMetrics {
+  final Histogram latency = new Histogram();
+  final LongAdder requests = new LongAdder();
+  final LongAdder errors = new LongAdder();
+  final LongAdder requestBodyBytes = new LongAdder();
+  final LongAdder responseBodyBytes = new LongAdder();
+
+  RequestMetrics() {}
+
+  /** Records a request that got a response. Responses with 4xx and 5xx codes count as errors. */
+  public void record(long startNanos, int requestBodyBytes, int responseBodyBytes,
+      boolean isError) {
+    latency.recordSince(startNanos);
+    requests.increment();
+    if (isError) {
+      errors.increment();
+    }
+    this.requestBodyBytes.add(requestBodyBytes);
+    this.responseBodyBytes.add(responseBodyBytes);
+  }
+
+  /** Records a request that failed with an exception instead of a response. */
+  public void recordFailure(long startNanos, int requestBodyBytes) {
+    record(startNanos, requestBodyBytes, /* responseBodyBytes = */ 0, /* isError = */ true);
+  }
+}
@@ -0,0 +1,219 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how much work a server takes on at once, so a burst of clients, or one misbehaving
+ * client, slows everyone down a little instead of running the server out of threads or memory.
+ *
+ * <p>Connections are limited in total by holding off accepting more, which leaves new ones waiting
+ * in the listen backlog, and per client IP by turning extra ones away with a 503. Requests are
+ * limited to a number in flight at once. A bounded number more may wait briefly for a turn, and the
+ * rest are answered by {@link HttpServer.RequestHandler#handleOverload} instead.
+ *
+ * <p>One instance is shared by every connection of a server.
+ */
+public class AdmissionControl {
+  private static final int DISCARD_BUFFER_BYTES = 4096;
+
+  private final int acceptBacklog;
+  private final int maxConnectionsPerClient;
+  private final int maxQueuedRequests;
+  private final long maxQueueWaitMs;
+  private final int retryAfterSeconds;
+
+  private final Semaphore connections;
+  private final Semaphore requestsInFlight;
+  private final AtomicInteger queuedRequests = new AtomicInteger();
+  private final Map<InetAddress, Integer> connectionsByClient = new ConcurrentHashMap<>();
+
+  private AdmissionControl(Builder builder) {
+    this.acceptBacklog = builder.acceptBacklog;
+    this.maxConnectionsPerClient = builder.maxConnectionsPerClient;
+    this.maxQueuedRequests = builder.maxQueuedRequests;
+    this.maxQueueWaitMs = builder.maxQueueWaitMs;
+    this.retryAfterSeconds = builder.retryAfterSeconds;
+    this.connections = new Semaphore(builder.maxConnections);
+    this.requestsInFlight = new Semaphore(builder.maxInFlightRequests);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** How many connections may wait in the listen backlog to be accepted. */
+  public int getAcceptBacklog() {
+    return acceptBacklog;
+  }
+
+  /** How long clients that are turned away are told to wait before trying again. */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /** Waits until the server is allowed another connection. Call before accepting one. */
+  public void awaitConnectionSlot() {
+    connections.acquireUninterruptibly();
+  }
+
+  /**
+   * Admits a connection accepted after {@link #awaitConnectionSlot}, or turns it away with a 503
+   * if its client already has as many connections as it's allowed. Returns whether it was
+   * admitted. {@link #onConnectionClosed} must be called once an admitted connection closes.
+   *
+   * <p>{@code channel} must still be in blocking mode.
+   */
+  public boolean admit(SocketChannel channel) {
+    InetAddress client = channel.socket().getInetAddress();
+    if (connectionsByClient.merge(client, 1, Integer::sum) <= maxConnectionsPerClient) {
+      return true;
+    }
+    onConnectionClosed(client);
+    Metrics.INSTANCE.onConnectionRejected();
+    try {
+      // The response is small enough to go straight into the new socket's send buffer.
+      new ResponseWriter().write(
+          HttpResponse.builder()
+              .setResponseCode(Http.ResponseCode.SERVICE_UNAVAILABLE)
+              .setRetryAfter(retryAfterSeconds)
+              .build(),
+          /* keepAlive = */ false,
+          channel);
+      // Closing with the request still unread would reset the connection, and could lose the
+      // response on its way to the client.
+      channel.shutdownOutput();
+      channel.configureBlocking(false);
+      ByteBuffer discard = ByteBuffer.allocate(DISCARD_BUFFER_BYTES);
+      while (channel.read(discard) > 0) {
+        discard.clear();
+      }
+    } catch (IOException e) {
+      Log.warning("couldn't turn away connection from %s: %s", client, e.getMessage());
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.warning("couldn't close channel: %s", e.getMessage());
+    }
+    return false;
+  }
+
+  /** Frees the slot of a connection that was admitted. */
+  public void onConnectionClosed(InetAddress client) {
+    connectionsByClient.computeIfPresent(client, (key, count) -> count == 1 ? null : count - 1);
+    connections.release();
+  }
+
+  /**
+   * Starts a request if fewer than the maximum are in flight, otherwise waits in the queue for a
+   * turn, if it isn't full, for a little while. Returns false if the request should be shed;
+   * {@link #finishRequest} must be called after one that was started.
+   */
+  boolean startRequest() {
+    if (requestsInFlight.tryAcquire()) {
+      return true;
+    }
+    if (queuedRequests.incrementAndGet() <= maxQueuedRequests) {
+      try {
+        if (requestsInFlight.tryAcquire(maxQueueWaitMs, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        queuedRequests.decrementAndGet();
+      }
+    } else {
+      queuedRequests.decrementAndGet();
+    }
+    Metrics.INSTANCE.onRequestShed();
+    return false;
+  }
+
+  /**
+   * Starts a request if fewer than the maximum are in flight, without waiting, for callers that
+   * mustn't block. Returns false if the request should be shed.
+   */
+  boolean tryStartRequest() {
+    if (requestsInFlight.tryAcquire()) {
+      return true;
+    }
+    Metrics.INSTANCE.onRequestShed();
+    return false;
+  }
+
+  void finishRequest() {
+    requestsInFlight.release();
+  }
+
+  public static class Builder {
+    private int acceptBacklog = 128;
+    private int maxConnections = 1024;
+    private int maxConnectionsPerClient = 32;
+    private int maxInFlightRequests = 64;
+    private int maxQueuedRequests = 256;
+    private long maxQueueWaitMs = 1000;
+    private int retryAfterSeconds = 5;
+
+    public Builder setAcceptBacklog(int acceptBacklog) {
+      this.acceptBacklog = acceptBacklog;
+      return this;
+    }
+
+    /**
+     * How many connections may be open at once. Connections parked on a deferred response, like a
+     * held check-in, still count.
+     */
+    public Builder setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    public Builder setMaxConnectionsPerClient(int maxConnectionsPerClient) {
+      this.maxConnectionsPerClient = maxConnectionsPerClient;
+      return this;
+    }
+
+    public Builder setMaxInFlightRequests(int maxInFlightRequests) {
+      this.maxInFlightRequests = maxInFlightRequests;
+      return this;
+    }
+
+    /** How many requests may wait for a turn once the maximum are in flight. */
+    public Builder setMaxQueuedRequests(int maxQueuedRequests) {
+      this.maxQueuedRequests = maxQueuedRequests;
+      return this;
+    }
+
+    /** How long a queued request waits for a turn before it's shed. */
+    public Builder setMaxQueueWaitMs(long maxQueueWaitMs) {
+      this.maxQueueWaitMs = maxQueueWaitMs;
+      return this;
+    }
+
+    public Builder setRetryAfterSeconds(int retryAfterSeconds) {
+      this.retryAfterSeconds = retryAfterSeconds;
+      return this;
+    }
+
+    public AdmissionControl build() {
+      if (maxConnections < 1 || maxConnectionsPerClient < 1 || maxInFlightRequests < 1) {
+        throw new IllegalArgumentException("connection and request limits must be at least 1");
+      }
+      return new AdmissionControl(this);
+    }
+
+    private Builder() {}
+  }
+}
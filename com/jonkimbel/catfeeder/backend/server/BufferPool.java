@@ -0,0 +1,36 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Byte arrays of one size that connections borrow to read requests into, instead of each
+ * allocating its own. Arrays of any other size, e.g. ones grown for a large request, are left to
+ * the garbage collector.
+ */
+class BufferPool {
+  /** Shared by both servers. Big enough for a typical request. */
+  static final BufferPool READ_BUFFERS = new BufferPool(
+      /* bufferBytes = */ 4 * 1024, /* maxPooledBuffers = */ 256);
+
+  private final int bufferBytes;
+  private final BlockingQueue<byte[]> buffers;
+
+  BufferPool(int bufferBytes, int maxPooledBuffers) {
+    this.bufferBytes = bufferBytes;
+    this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+  }
+
+  /** Returns a buffer of the pool's size. Its contents are undefined. */
+  byte[] acquire() {
+    byte[] buffer = buffers.poll();
+    return buffer != null ? buffer : new byte[bufferBytes];
+  }
+
+  /** Returns {@code buffer} to the pool. It must not be used again by the caller. */
+  void release(byte[] buffer) {
+    if (buffer.length == bufferBytes) {
+      buffers.offer(buffer);
+    }
+  }
+}
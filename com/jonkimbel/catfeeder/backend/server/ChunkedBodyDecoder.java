@@ -0,0 +1,148 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+/**
+ * Decodes a request body sent with "Transfer-Encoding: chunked", in place, as its bytes arrive.
+ *
+ * <p>The chunk data is moved down over the chunk sizes and line breaks between chunks, so once
+ * decoding is done the body sits right after the request header, just as a body sent with a
+ * Content-Length would. Bytes that haven't been decoded yet are kept right after the decoded ones.
+ */
+class ChunkedBodyDecoder {
+  // Chunk size lines and trailer lines longer than this are rejected.
+  private static final int MAX_LINE_BYTES = 1024;
+
+  private enum State {
+    SIZE,
+    DATA,
+    DATA_END,
+    TRAILER,
+    DONE,
+  }
+
+  private State state;
+  private int bodyStart;
+  // The end of the body decoded so far, undecoded bytes start here.
+  private int bodyEnd;
+  private int chunkRemaining;
+
+  /** Starts decoding a new body, whose first chunk begins at {@code bodyStart}. */
+  void reset(int bodyStart) {
+    this.state = State.SIZE;
+    this.bodyStart = bodyStart;
+    this.bodyEnd = bodyStart;
+    this.chunkRemaining = 0;
+  }
+
+  /**
+   * Decodes as much as possible of the first {@code length} bytes of {@code buffer}. Returns how
+   * many bytes of the buffer are still in use afterwards: the header, the body decoded so far, and
+   * the bytes after it, which are part of the body if it isn't complete or the next request if it
+   * is.
+   */
+  int decode(byte[] buffer, int length) throws HttpParseException {
+    int position = bodyEnd;
+    decoding:
+    while (state != State.DONE) {
+      switch (state) {
+        case SIZE: {
+          int lineEnd = findLineEnd(buffer, position, length);
+          if (lineEnd == -1) {
+            break decoding;
+          }
+          chunkRemaining = parseChunkSize(buffer, position, lineEnd);
+          if (bodyEnd - bodyStart + chunkRemaining > HttpServer.MAX_BODY_BYTES) {
+            throw new HttpParseException(
+                "chunked body exceeds " + HttpServer.MAX_BODY_BYTES + " bytes");
+          }
+          position = lineEnd + 2;
+          state = chunkRemaining == 0 ? State.TRAILER : State.DATA;
+          break;
+        }
+        case DATA: {
+          int available = Math.min(chunkRemaining, length - position);
+          System.arraycopy(buffer, position, buffer, bodyEnd, available);
+          bodyEnd += available;
+          position += available;
+          chunkRemaining -= available;
+          if (chunkRemaining > 0) {
+            break decoding;
+          }
+          state = State.DATA_END;
+          break;
+        }
+        case DATA_END:
+          if (length - position < 2) {
+            break decoding;
+          }
+          if (buffer[position] != '\r' || buffer[position + 1] != '\n') {
+            throw new HttpParseException("chunk data not followed by CRLF");
+          }
+          position += 2;
+          state = State.SIZE;
+          break;
+        case TRAILER: {
+          // Trailer fields aren't used, skip them up to the blank line that ends the body.
+          int lineEnd = findLineEnd(buffer, position, length);
+          if (lineEnd == -1) {
+            break decoding;
+          }
+          if (lineEnd == position) {
+            state = State.DONE;
+          }
+          position = lineEnd + 2;
+          break;
+        }
+        default:
+          throw new IllegalStateException("unexpected state " + state);
+      }
+    }
+
+    // Close the gap left by the chunk framing that has been decoded.
+    System.arraycopy(buffer, position, buffer, bodyEnd, length - position);
+    return length - (position - bodyEnd);
+  }
+
+  boolean isComplete() {
+    return state == State.DONE;
+  }
+
+  /** The end of the decoded body. Once decoding is complete, the next request starts here. */
+  int getBodyEnd() {
+    return bodyEnd;
+  }
+
+  /** Returns the index of the CR of the CRLF ending the line at {@code start}, or -1. */
+  private static int findLineEnd(byte[] buffer, int start, int length)
+      throws HttpParseException {
+    for (int i = start; i + 1 < length; i++) {
+      if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+        return i;
+      }
+    }
+    if (length - start > MAX_LINE_BYTES) {
+      throw new HttpParseException("chunk line longer than " + MAX_LINE_BYTES + " bytes");
+    }
+    return -1;
+  }
+
+  /** Parses the hex size at the start of a chunk size line, ignoring any chunk extensions. */
+  private static int parseChunkSize(byte[] buffer, int start, int end)
+      throws HttpParseException {
+    int size = 0;
+    int i = start;
+    for (; i < end; i++) {
+      int digit = Character.digit(buffer[i], 16);
+      if (digit == -1) {
+        break;
+      }
+      if (size > HttpServer.MAX_BODY_BYTES) {
+        throw new HttpParseException("chunk size too large");
+      }
+      size = size * 16 + digit;
+    }
+    if (i == start || (i < end && buffer[i] != ';' && buffer[i] != ' ' && buffer[i] != '\t')) {
+      throw new HttpParseException("bad chunk size");
+    }
+    return size;
+  }
+}
@@ -0,0 +1,132 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies for the gzip and deflate content codings.
+ *
+ * <p>A {@link Deflater} holds native memory that's only released by {@link Deflater#end()} or the
+ * finalizer, so rather than create one per response they're borrowed from a small pool.
+ */
+public class Compression {
+  // Bodies smaller than this barely shrink, and would cost more to compress than to send.
+  static final int MIN_COMPRESSIBLE_BYTES = 256;
+  private static final int MAX_POOLED_DEFLATERS = 16;
+  private static final int GZIP_HEADER_BYTES = 10;
+  private static final int GZIP_TRAILER_BYTES = 8;
+
+  // gzip wraps raw deflate data in its own header, while the "deflate" coding is zlib's format.
+  private static final BlockingQueue<Deflater> rawDeflaters =
+      new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+  private static final BlockingQueue<Deflater> zlibDeflaters =
+      new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+
+  /**
+   * A body compressed ahead of time with every encoding we support, e.g. a static page compressed
+   * at startup.
+   */
+  public static class Precompressed {
+    private final byte[] identity;
+    private final byte[] gzip;
+    private final byte[] deflate;
+
+    public Precompressed(byte[] identity) {
+      this.identity = identity;
+      this.gzip = compress(identity, /* offset = */ 0, identity.length,
+          Http.ContentEncoding.GZIP);
+      this.deflate = compress(identity, /* offset = */ 0, identity.length,
+          Http.ContentEncoding.DEFLATE);
+    }
+
+    /**
+     * The encoding to send {@code request}'s client. IDENTITY if it doesn't accept a compressed
+     * encoding, or if compressing didn't make the body any smaller.
+     */
+    public Http.ContentEncoding encodingFor(HttpHeader request) {
+      Http.ContentEncoding encoding = request.getPreferredContentEncoding();
+      return get(encoding).length < identity.length ? encoding : Http.ContentEncoding.IDENTITY;
+    }
+
+    /** The body in {@code encoding}. */
+    public byte[] get(Http.ContentEncoding encoding) {
+      switch (encoding) {
+        case GZIP:
+          return gzip;
+        case DEFLATE:
+          return deflate;
+        default:
+          return identity;
+      }
+    }
+  }
+
+  /** Returns {@code length} bytes of {@code body} from {@code offset}, compressed. */
+  public static byte[] compress(byte[] body, int offset, int length,
+      Http.ContentEncoding encoding) {
+    if (encoding == Http.ContentEncoding.IDENTITY) {
+      return Arrays.copyOfRange(body, offset, offset + length);
+    }
+    boolean gzip = encoding == Http.ContentEncoding.GZIP;
+    BlockingQueue<Deflater> pool = gzip ? rawDeflaters : zlibDeflaters;
+    Deflater deflater = pool.poll();
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap = */ gzip);
+    }
+
+    try {
+      // Room for incompressible data, per zlib's deflateBound(), so one pass is nearly always enough.
+      byte[] out = new byte[GZIP_HEADER_BYTES + length + (length >> 12) + (length >> 14) + 64];
+      int size = 0;
+      if (gzip) {
+        size = writeGzipHeader(out);
+      }
+      deflater.setInput(body, offset, length);
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (size == out.length) {
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        size += deflater.deflate(out, size, out.length - size);
+      }
+      if (gzip) {
+        CRC32 crc = new CRC32();
+        crc.update(body, offset, length);
+        out = Arrays.copyOf(out, size + GZIP_TRAILER_BYTES);
+        writeIntLittleEndian(out, size, (int) crc.getValue());
+        writeIntLittleEndian(out, size + 4, length);
+        return out;
+      }
+      return Arrays.copyOf(out, size);
+    } finally {
+      deflater.reset();
+      if (!pool.offer(deflater)) {
+        // The pool is full, free the native memory now instead of waiting for the finalizer.
+        deflater.end();
+      }
+    }
+  }
+
+  /** Writes a minimal gzip header (no name, no timestamp) and returns its length. */
+  private static int writeGzipHeader(byte[] out) {
+    out[0] = (byte) 0x1f; // Magic number.
+    out[1] = (byte) 0x8b;
+    out[2] = Deflater.DEFLATED; // Compression method.
+    // Flags (3) and modification time (4-7) are all zero.
+    out[8] = 0; // Extra flags.
+    out[9] = (byte) 0xff; // Operating system: unknown.
+    return GZIP_HEADER_BYTES;
+  }
+
+  private static void writeIntLittleEndian(byte[] out, int offset, int value) {
+    out[offset] = (byte) value;
+    out[offset + 1] = (byte) (value >>> 8);
+    out[offset + 2] = (byte) (value >>> 16);
+    out[offset + 3] = (byte) (value >>> 24);
+  }
+
+  private Compression() {}
+}
@@ -2,18 +2,28 @@ package com.jonkimbel.catfeeder.backend.server;
 
 public interface Http {
   enum ResponseCode {
-    OK("200 OK"),
-    FOUND("302 Found"),
-    NOT_FOUND("404 Not Found"),
-    NOT_IMPLEMENTED("501 Not Implemented"),
+    OK(200, "200 OK"),
+    FOUND(302, "302 Found"),
+    NOT_MODIFIED(304, "304 Not Modified"),
+    BAD_REQUEST(400, "400 Bad Request"),
+    NOT_FOUND(404, "404 Not Found"),
+    NOT_IMPLEMENTED(501, "501 Not Implemented"),
+    SERVICE_UNAVAILABLE(503, "503 Service Unavailable"),
     ;
 
+    public final int code;
     private final String stringRepresentation;
 
-    ResponseCode(String stringRepresentation) {
+    ResponseCode(int code, String stringRepresentation) {
+      this.code = code;
       this.stringRepresentation = stringRepresentation;
     }
 
+    /** Whether this is a client (4xx) or server (5xx) error. */
+    public boolean isError() {
+      return code >= 400;
+    }
+
     @Override
     public String toString() {
       return stringRepresentation;
@@ -21,13 +31,38 @@ public interface Http {
   }
 
   enum ContentType {
-    HTML("text/html"),
-    PROTOCOL_BUFFER("application/x-protobuf"),
+    HTML("text/html; charset=utf-8", /* compressible = */ true),
+    PROTOCOL_BUFFER("application/x-protobuf", /* compressible = */ false),
+    PROMETHEUS_TEXT("text/plain; version=0.0.4; charset=utf-8", /* compressible = */ true),
+    CSV("text/csv; charset=utf-8", /* compressible = */ true),
+    DELIMITED_PROTOCOL_BUFFER("application/x-protobuf; delimited=true",
+        /* compressible = */ false),
+    ;
+
+    /** Whether bodies of this type are worth compressing. */
+    public final boolean compressible;
+    private final String stringRepresentation;
+
+    ContentType(String stringRepresentation, boolean compressible) {
+      this.stringRepresentation = stringRepresentation;
+      this.compressible = compressible;
+    }
+
+    @Override
+    public String toString() {
+      return stringRepresentation;
+    }
+  }
+
+  enum ContentEncoding {
+    IDENTITY("identity"),
+    GZIP("gzip"),
+    DEFLATE("deflate"),
     ;
 
     private final String stringRepresentation;
 
-    ContentType(String stringRepresentation) {
+    ContentEncoding(String stringRepresentation) {
       this.stringRepresentation = stringRepresentation;
     }
 
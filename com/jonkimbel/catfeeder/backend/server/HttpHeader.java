@@ -1,117 +1,167 @@
 package com.jonkimbel.catfeeder.backend.server;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 // TODO [V2]: make HttpResponse use HttpHeader instead of rolling its own stringly-typed
 //            representations.
 
+/** A parsed request header. See {@link HttpHeaderParser}. */
 public class HttpHeader {
   public final Http.Method method;
   public final String path;
-  public final String host;
+  public final @Nullable String query;
   public final String transferEncoding;
   public final Integer contentLength;
+  public final String httpVersion;
+  public final @Nullable String connection;
+  public final @Nullable String ifNoneMatch;
+  public final @Nullable String acceptEncoding;
 
   private final Map<String, String> cookies;
 
-  private enum HeaderPart {
-    METHOD,
-    PATH,
-    HTTP_VERSION,
-    HOST,
-    TRANSFER_ENCODING,
-    CONTENT_LENGTH,
-    COOKIES,
+  private HttpHeader(Http.Method method,
+      String path,
+      @Nullable String query,
+      String transferEncoding,
+      Integer contentLength,
+      String httpVersion,
+      @Nullable String connection,
+      @Nullable String ifNoneMatch,
+      @Nullable String acceptEncoding,
+      Map<String, String> cookies) {
+    this.method = method;
+    this.path = path;
+    this.query = query;
+    this.contentLength = contentLength;
+    this.transferEncoding = transferEncoding;
+    this.httpVersion = httpVersion;
+    this.connection = connection;
+    this.ifNoneMatch = ifNoneMatch;
+    this.acceptEncoding = acceptEncoding;
+    this.cookies = cookies;
   }
 
-  private enum HeaderLine {
-    HOST("^Host\\s(.*)", HeaderPart.HOST),
-    CONTENT_LENGTH("^Content-Length:\\s(.*)", HeaderPart.CONTENT_LENGTH),
-    TRANSFER_ENCODING("^Transfer-Encoding:\\s(.*)", HeaderPart.TRANSFER_ENCODING),
-    METHOD_AND_PATH("^(GET|HEAD|POST|PUT|DELETE|CONNECT|OPTIONS|TRACE)\\s(\\S*)\\s(.*)",
-        HeaderPart.METHOD, HeaderPart.PATH, HeaderPart.HTTP_VERSION),
-    COOKIE("^Cookie:\\s*(.*)", HeaderPart.COOKIES),
-    UNKNOWN(""),
-    ;
-
-    private final Pattern regexPattern;
-    private final List<HeaderPart> partNames;
-
-    HeaderLine(String regexPattern, HeaderPart... partNames) {
-      this.regexPattern = Pattern.compile(regexPattern);
-      this.partNames = Arrays.asList(partNames);
-    }
-
-    // TODO [V3]: replace with ImmutableList.
-    @Nullable
-    public String getPart(String lineInHeader, HeaderPart partName) {
-      int partNameGroupNumber = partNames.indexOf(partName) + 1; // Regex groups are 1-based.
-      if (partNameGroupNumber == -1) {
-        throw new IllegalArgumentException(
-            String.format("HeaderLine.%s never contains part %s", this, partName));
-      }
+  public String getCookie(String key) {
+    return cookies.get(key);
+  }
 
-      Matcher matcher = regexPattern.matcher(lineInHeader);
+  public @Nullable String getQueryParameter(String key) {
+    if (query == null || query.isEmpty()) {
+      return null;
+    }
+    return MapParser.parseQueryString(query).get(key);
+  }
 
-      if (!matcher.matches()) {
-        throw new IllegalStateException(
-            String.format("lineInHeader %s is not a representation of HeaderLine.%s",
-            lineInHeader, this));
-      }
+  /** Whether the request body is sent in chunks rather than with a Content-Length. */
+  public boolean isChunked() {
+    // Chunked has to be the last coding applied, if there are several.
+    return transferEncoding != null
+        && transferEncoding.trim().toLowerCase(Locale.ROOT).endsWith("chunked");
+  }
 
-      // Again, regex groups are 1-based.
-      if (partNameGroupNumber > matcher.groupCount()) {
-        throw new IllegalStateException(
-            String.format("lineInHeader %s (HeaderLine.%s) does not have group %s",
-                lineInHeader, this, partNameGroupNumber));
+  /**
+   * Whether the client is willing to send more requests over this connection. HTTP/1.1 connections
+   * are persistent unless the client asks otherwise, HTTP/1.0 connections must opt in.
+   */
+  public boolean isKeepAlive() {
+    if (connection != null) {
+      if (connection.equalsIgnoreCase("close")) {
+        return false;
+      } else if (connection.equalsIgnoreCase("keep-alive")) {
+        return true;
       }
-
-      return matcher.group(partNameGroupNumber);
     }
+    return "HTTP/1.1".equals(httpVersion);
+  }
 
-    public boolean matches(String lineInHeader) {
-      return regexPattern.matcher(lineInHeader).matches();
+  /**
+   * Whether the client already has the version of the resource with entity tag {@code etag}, a
+   * quoted string, according to its If-None-Match header.
+   */
+  public boolean ifNoneMatchIncludes(String etag) {
+    if (ifNoneMatch == null) {
+      return false;
     }
-
-    public static final HeaderLine fromString(String lineInHeader) {
-      for (HeaderLine headerLine : values()) {
-        if (headerLine.matches(lineInHeader)) {
-          return headerLine;
-        }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      // If-None-Match uses weak comparison, so the W/ prefix doesn't matter.
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
       }
-      return UNKNOWN;
     }
+    return false;
   }
 
-  private HttpHeader(Http.Method method,
-      String path,
-      String host,
-      String transferEncoding,
-      Integer contentLength,
-      Map<String, String> cookies) {
-    this.method = method;
-    this.path = path;
-    this.host = host;
-    this.contentLength = contentLength;
-    this.transferEncoding = transferEncoding;
-    this.cookies = cookies;
+  /**
+   * The compressed encoding the client prefers according to its Accept-Encoding header, or
+   * IDENTITY if it doesn't accept any we support. Ties go to gzip.
+   */
+  public Http.ContentEncoding getPreferredContentEncoding() {
+    if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+      return Http.ContentEncoding.IDENTITY;
+    }
+    float gzipQuality = -1;
+    float deflateQuality = -1;
+    float wildcardQuality = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      int semicolon = coding.indexOf(';');
+      String name = (semicolon == -1 ? coding : coding.substring(0, semicolon)).trim();
+      float quality = semicolon == -1 ? 1 : parseQuality(coding.substring(semicolon + 1));
+      if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+        gzipQuality = quality;
+      } else if (name.equalsIgnoreCase("deflate")) {
+        deflateQuality = quality;
+      } else if (name.equals("*")) {
+        wildcardQuality = quality;
+      }
+    }
+    // Codings that aren't named are covered by the wildcard, if there is one.
+    if (gzipQuality < 0) {
+      gzipQuality = wildcardQuality;
+    }
+    if (deflateQuality < 0) {
+      deflateQuality = wildcardQuality;
+    }
+
+    if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+      return Http.ContentEncoding.GZIP;
+    } else if (deflateQuality > 0) {
+      return Http.ContentEncoding.DEFLATE;
+    }
+    return Http.ContentEncoding.IDENTITY;
   }
 
-  public String getCookie(String key) {
-    return cookies.get(key);
+  /** Parses the "q=0.5" part of a coding, treating anything malformed as unacceptable. */
+  private static float parseQuality(String parameters) {
+    for (String parameter : parameters.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+        try {
+          return Float.parseFloat(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
   }
 
   // TODO [V3]: use AutoValue.
   public static class Builder {
     private Http.Method method;
     private String path;
-    private String host;
+    private @Nullable String query;
     private String transferEncoding;
     private Integer contentLength;
+    private String httpVersion;
+    private @Nullable String connection;
+    private @Nullable String ifNoneMatch;
+    private @Nullable String acceptEncoding;
     private Map<String, String> cookies = new HashMap<>();
 
     public Builder setMethod(Http.Method method) {
@@ -124,8 +174,8 @@ public class HttpHeader {
       return this;
     }
 
-    public Builder setHost(String host) {
-      this.host = host;
+    public Builder setQuery(String query) {
+      this.query = query;
       return this;
     }
 
@@ -139,55 +189,34 @@ public class HttpHeader {
       return this;
     }
 
+    public Builder setHttpVersion(String httpVersion) {
+      this.httpVersion = httpVersion;
+      return this;
+    }
+
+    public Builder setConnection(String connection) {
+      this.connection = connection;
+      return this;
+    }
+
+    public Builder setIfNoneMatch(String ifNoneMatch) {
+      this.ifNoneMatch = ifNoneMatch;
+      return this;
+    }
+
+    public Builder setAcceptEncoding(String acceptEncoding) {
+      this.acceptEncoding = acceptEncoding;
+      return this;
+    }
+
     public Builder setCookies(Map<String, String> cookies) {
       this.cookies = cookies;
       return this;
     }
 
     public HttpHeader build() {
-      return new HttpHeader(method, path, host, transferEncoding, contentLength, cookies);
-    }
-  }
-
-  public static HttpHeader fromLines(List<String> lines) {
-    Builder builder = new Builder();
-
-    for (String line : lines) {
-      HeaderLine headerLine = HeaderLine.fromString(line);
-      switch (headerLine) {
-        case HOST:
-          builder.setHost(headerLine.getPart(line, HeaderPart.HOST));
-          break;
-
-        case CONTENT_LENGTH:
-          Integer contentLength = null;
-          String contentLengthString = headerLine.getPart(line, HeaderPart.CONTENT_LENGTH);
-          try {
-            contentLength = Integer.parseInt(contentLengthString);
-          } catch (NumberFormatException e) {
-            System.err.printf("Line %s contains CONTENT_LENGTH '%s' which could not be parsed as " +
-                "an integer", line, contentLengthString);
-          }
-          builder.setContentLength(contentLength);
-          break;
-
-        case TRANSFER_ENCODING:
-          builder.setTransferEncoding(headerLine.getPart(line, HeaderPart.TRANSFER_ENCODING));
-          break;
-
-        case METHOD_AND_PATH:
-          builder.setMethod(Http.Method.fromString(headerLine.getPart(line, HeaderPart.METHOD)));
-          builder.setPath(headerLine.getPart(line, HeaderPart.PATH));
-          break;
-
-        case COOKIE:
-          builder.setCookies(MapParser.parseCookies(headerLine.getPart(line, HeaderPart.COOKIES)));
-          break;
-
-        case UNKNOWN:
-          break;
-      }
+      return new HttpHeader(method, path, query, transferEncoding, contentLength, httpVersion,
+          connection, ifNoneMatch, acceptEncoding, cookies);
     }
-    return builder.build();
   }
 }
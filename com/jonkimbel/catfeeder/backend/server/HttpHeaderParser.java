@@ -0,0 +1,219 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental, byte-level parser for HTTP request headers.
+ *
+ * <p>Bytes are scanned exactly once as they arrive: every time a full line is available it is
+ * parsed in place. Header names are compared case-insensitively against the raw bytes, and only
+ * the fields the server actually uses are turned into objects.
+ *
+ * <p>The header must start at offset 0 of the buffer passed to {@link #parse}. Callers may grow or
+ * replace the buffer between calls as long as the bytes already seen are kept at the same offsets.
+ */
+public class HttpHeaderParser {
+  public static final int MAX_LINE_BYTES = 8 * 1024;
+  public static final int MAX_HEADER_BYTES = 16 * 1024;
+
+  private static final byte[] CONTENT_LENGTH = ascii("Content-Length");
+  private static final byte[] TRANSFER_ENCODING = ascii("Transfer-Encoding");
+  private static final byte[] COOKIE = ascii("Cookie");
+  private static final byte[] CONNECTION = ascii("Connection");
+  private static final byte[] IF_NONE_MATCH = ascii("If-None-Match");
+  private static final byte[] ACCEPT_ENCODING = ascii("Accept-Encoding");
+  private static final byte[] GET = ascii("GET");
+  private static final byte[] POST = ascii("POST");
+  private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+  private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+
+  private HttpHeader.Builder builder;
+  private int lineStart;
+  private int scanPosition;
+  private boolean requestLineParsed;
+
+  public HttpHeaderParser() {
+    reset();
+  }
+
+  /** Prepares the parser for the next request. */
+  public void reset() {
+    builder = new HttpHeader.Builder();
+    lineStart = 0;
+    scanPosition = 0;
+    requestLineParsed = false;
+  }
+
+  /**
+   * Parses the header bytes in {@code buffer[0, limit)} that haven't been seen yet. Returns the
+   * length of the header including its terminating blank line once it's complete, or -1 if more
+   * bytes are needed.
+   */
+  public int parse(byte[] buffer, int limit) throws HttpParseException {
+    while (scanPosition < limit) {
+      if (buffer[scanPosition++] != '\n') {
+        if (scanPosition - lineStart > MAX_LINE_BYTES) {
+          throw new HttpParseException("header line longer than " + MAX_LINE_BYTES + " bytes");
+        }
+        continue;
+      }
+
+      if (scanPosition > MAX_HEADER_BYTES) {
+        throw new HttpParseException("header longer than " + MAX_HEADER_BYTES + " bytes");
+      }
+
+      int lineEnd = scanPosition - 1;
+      if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+
+      if (lineEnd == lineStart) {
+        // RFC 7230 asks servers to ignore blank lines before the request line.
+        if (requestLineParsed) {
+          return scanPosition;
+        }
+      } else if (!requestLineParsed) {
+        parseRequestLine(buffer, lineStart, lineEnd);
+        requestLineParsed = true;
+      } else {
+        parseHeaderField(buffer, lineStart, lineEnd);
+      }
+      lineStart = scanPosition;
+    }
+    return -1;
+  }
+
+  /** Returns the parsed header. Only valid once {@link #parse} has returned a length. */
+  public HttpHeader getHeader() {
+    return builder.build();
+  }
+
+  /** Parses a header that is already entirely in memory. */
+  public static HttpHeader parseComplete(byte[] buffer, int length) throws HttpParseException {
+    HttpHeaderParser parser = new HttpHeaderParser();
+    if (parser.parse(buffer, length) == -1) {
+      throw new HttpParseException("header is incomplete");
+    }
+    return parser.getHeader();
+  }
+
+  private void parseRequestLine(byte[] buffer, int start, int end) throws HttpParseException {
+    int methodEnd = indexOf(buffer, start, end, (byte) ' ');
+    int pathEnd = methodEnd == -1 ? -1 : indexOf(buffer, methodEnd + 1, end, (byte) ' ');
+    if (pathEnd == -1) {
+      throw new HttpParseException("malformed request line");
+    }
+
+    if (equalsIgnoreCase(buffer, start, methodEnd, GET)) {
+      builder.setMethod(Http.Method.GET);
+    } else if (equalsIgnoreCase(buffer, start, methodEnd, POST)) {
+      builder.setMethod(Http.Method.POST);
+    } else {
+      builder.setMethod(Http.Method.UNKNOWN);
+    }
+
+    int queryStart = indexOf(buffer, methodEnd + 1, pathEnd, (byte) '?');
+    if (queryStart == -1) {
+      builder.setPath(string(buffer, methodEnd + 1, pathEnd));
+    } else {
+      builder.setPath(string(buffer, methodEnd + 1, queryStart));
+      builder.setQuery(string(buffer, queryStart + 1, pathEnd));
+    }
+
+    int versionStart = pathEnd + 1;
+    if (equalsIgnoreCase(buffer, versionStart, end, HTTP_1_1)) {
+      builder.setHttpVersion("HTTP/1.1");
+    } else if (equalsIgnoreCase(buffer, versionStart, end, HTTP_1_0)) {
+      builder.setHttpVersion("HTTP/1.0");
+    } else {
+      builder.setHttpVersion(string(buffer, versionStart, end));
+    }
+  }
+
+  private void parseHeaderField(byte[] buffer, int start, int end) throws HttpParseException {
+    int colon = indexOf(buffer, start, end, (byte) ':');
+    if (colon == -1) {
+      throw new HttpParseException("header field without a colon");
+    }
+
+    int valueStart = colon + 1;
+    int valueEnd = end;
+    while (valueStart < valueEnd && isWhitespace(buffer[valueStart])) {
+      valueStart++;
+    }
+    while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) {
+      valueEnd--;
+    }
+
+    if (equalsIgnoreCase(buffer, start, colon, CONTENT_LENGTH)) {
+      builder.setContentLength(parseContentLength(buffer, valueStart, valueEnd));
+    } else if (equalsIgnoreCase(buffer, start, colon, TRANSFER_ENCODING)) {
+      builder.setTransferEncoding(string(buffer, valueStart, valueEnd));
+    } else if (equalsIgnoreCase(buffer, start, colon, COOKIE)) {
+      builder.setCookies(MapParser.parseCookies(string(buffer, valueStart, valueEnd)));
+    } else if (equalsIgnoreCase(buffer, start, colon, CONNECTION)) {
+      builder.setConnection(string(buffer, valueStart, valueEnd));
+    } else if (equalsIgnoreCase(buffer, start, colon, IF_NONE_MATCH)) {
+      builder.setIfNoneMatch(string(buffer, valueStart, valueEnd));
+    } else if (equalsIgnoreCase(buffer, start, colon, ACCEPT_ENCODING)) {
+      builder.setAcceptEncoding(string(buffer, valueStart, valueEnd));
+    }
+  }
+
+  private static int parseContentLength(byte[] buffer, int start, int end)
+      throws HttpParseException {
+    if (start == end) {
+      throw new HttpParseException("empty Content-Length");
+    }
+    long contentLength = 0;
+    for (int i = start; i < end; i++) {
+      int digit = buffer[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new HttpParseException("Content-Length is not a number");
+      }
+      contentLength = contentLength * 10 + digit;
+      if (contentLength > Integer.MAX_VALUE) {
+        throw new HttpParseException("Content-Length too large");
+      }
+    }
+    return (int) contentLength;
+  }
+
+  private static int indexOf(byte[] buffer, int start, int end, byte target) {
+    for (int i = start; i < end; i++) {
+      if (buffer[i] == target) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Compares ASCII bytes against an ASCII constant, ignoring case and without allocating. */
+  private static boolean equalsIgnoreCase(byte[] buffer, int start, int end, byte[] expected) {
+    if (end - start != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (toLowerCase(buffer[start + i]) != toLowerCase(expected[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int toLowerCase(byte b) {
+    return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  private static String string(byte[] buffer, int start, int end) {
+    return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+}
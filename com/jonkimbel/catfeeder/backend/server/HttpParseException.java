@@ -0,0 +1,10 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import java.io.IOException;
+
+/** Thrown when a request can't be parsed, or breaks one of the server's size limits. */
+public class HttpParseException extends IOException {
+  public HttpParseException(String message) {
+    super(message);
+  }
+}
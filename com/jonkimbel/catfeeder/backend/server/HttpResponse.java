@@ -2,27 +2,38 @@ package com.jonkimbel.catfeeder.backend.server;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 // TODO [V3]: Make @AutoValue.
 
 public class HttpResponse {
-  private final byte[] protobufBody;
-  private final String htmlBody;
+  private final byte[] body;
+  private final int bodyLength;
+  private final Http.ContentType contentType;
   private final Http.ResponseCode responseCode;
   private final @Nullable String locationUrl;
+  private final @Nullable String etag;
+  private final Http.ContentEncoding contentEncoding;
+  private final boolean variesByAcceptEncoding;
+  private final @Nullable StreamingBody streamingBody;
+  private final @Nullable CompletableFuture<HttpResponse> deferredResponse;
+  private final int retryAfterSeconds;
   private final Map<String, String> cookies;
 
-  public boolean isBodyHtml() {
-    return htmlBody.length() > protobufBody.length;
+  /** The response body. Only the first {@link #getBodyLength()} bytes are valid. */
+  public byte[] getBody() {
+    return body;
   }
 
-  public String getHtmlBody() {
-    return htmlBody;
+  /** The length of the body in bytes. */
+  public int getBodyLength() {
+    return bodyLength;
   }
 
-  public byte[] getProtobufBody() {
-    return protobufBody;
+  public Http.ContentType getContentType() {
+    return contentType;
   }
 
   public Http.ResponseCode getResponseCode() {
@@ -33,43 +44,171 @@ public class HttpResponse {
     return locationUrl;
   }
 
+  /** The entity tag of the body, a quoted string, or null if the body has none. */
+  public @Nullable String getETag() {
+    return etag;
+  }
+
+  /**
+   * The body, if it's produced while the response is being sent. The body and body length are
+   * empty if there is one.
+   */
+  public @Nullable StreamingBody getStreamingBody() {
+    return streamingBody;
+  }
+
+  /**
+   * The response to send once it's ready, if the handler answers the request later, e.g. because
+   * the client asked to wait for news. Nothing else about this response is used if there is one.
+   *
+   * <p>The server cancels it if the connection closes first.
+   */
+  public @Nullable CompletableFuture<HttpResponse> getDeferredResponse() {
+    return deferredResponse;
+  }
+
+  /** How long the client should wait before trying again, in seconds, or 0 if not given. */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  public Http.ContentEncoding getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /** Whether a client with a different Accept-Encoding header could get a different body. */
+  public boolean variesByAcceptEncoding() {
+    return variesByAcceptEncoding;
+  }
+
   public Map<String, String> getCookies() {
     return cookies;
   }
 
+  /**
+   * Returns this response with its body compressed in the encoding {@code request}'s client
+   * prefers, if the body is worth compressing and hasn't been encoded already.
+   */
+  public HttpResponse compressFor(HttpHeader request) {
+    if (variesByAcceptEncoding || streamingBody != null || deferredResponse != null
+        || !contentType.compressible
+        || bodyLength < Compression.MIN_COMPRESSIBLE_BYTES) {
+      return this;
+    }
+    Http.ContentEncoding encoding = request.getPreferredContentEncoding();
+    if (encoding != Http.ContentEncoding.IDENTITY) {
+      byte[] encodedBody = Compression.compress(body, /* offset = */ 0, bodyLength, encoding);
+      if (encodedBody.length < bodyLength) {
+        // A strong entity tag belongs to one encoding of the body, so it can't carry over.
+        return new HttpResponse(encodedBody, encodedBody.length, contentType, responseCode,
+            locationUrl, /* etag = */ null, encoding, /* variesByAcceptEncoding = */ true,
+            /* streamingBody = */ null, /* deferredResponse = */ null, retryAfterSeconds,
+            cookies);
+      }
+    }
+    return new HttpResponse(body, bodyLength, contentType, responseCode, locationUrl, etag,
+        Http.ContentEncoding.IDENTITY, /* variesByAcceptEncoding = */ true,
+        /* streamingBody = */ null, /* deferredResponse = */ null, retryAfterSeconds, cookies);
+  }
+
   public static Builder builder() {
     return new Builder();
   }
 
+  /** Returns a response that stands in for {@code response} until it completes. */
+  public static HttpResponse deferred(CompletableFuture<HttpResponse> response) {
+    return new HttpResponse(new byte[0], /* bodyLength = */ 0, Http.ContentType.HTML,
+        Http.ResponseCode.OK, /* locationUrl = */ null, /* etag = */ null,
+        Http.ContentEncoding.IDENTITY, /* variesByAcceptEncoding = */ false,
+        /* streamingBody = */ null, response, /* retryAfterSeconds = */ 0,
+        Collections.emptyMap());
+  }
+
   private HttpResponse(
-      String htmlBody,
-      byte[] protobufBody,
+      byte[] body,
+      int bodyLength,
+      Http.ContentType contentType,
       Http.ResponseCode responseCode,
       @Nullable String locationUrl,
+      @Nullable String etag,
+      Http.ContentEncoding contentEncoding,
+      boolean variesByAcceptEncoding,
+      @Nullable StreamingBody streamingBody,
+      @Nullable CompletableFuture<HttpResponse> deferredResponse,
+      int retryAfterSeconds,
       Map<String, String> cookies) {
-    this.htmlBody = htmlBody;
-    this.protobufBody = protobufBody;
+    this.body = body;
+    this.bodyLength = bodyLength;
+    this.contentType = contentType;
     this.responseCode = responseCode;
     this.locationUrl = locationUrl;
+    this.etag = etag;
+    this.contentEncoding = contentEncoding;
+    this.variesByAcceptEncoding = variesByAcceptEncoding;
+    this.streamingBody = streamingBody;
+    this.deferredResponse = deferredResponse;
+    this.retryAfterSeconds = retryAfterSeconds;
     this.cookies = cookies;
   }
 
   public static class Builder {
-    private String htmlBody = "";
-    private byte[] protobufBody = new byte[0];
+    private byte[] body = new byte[0];
+    private int bodyLength = 0;
+    private Http.ContentType contentType = Http.ContentType.HTML;
     private Http.ResponseCode responseCode = Http.ResponseCode.NOT_IMPLEMENTED;
     private @Nullable String locationUrl;
+    private @Nullable String etag;
+    private Http.ContentEncoding contentEncoding = Http.ContentEncoding.IDENTITY;
+    private boolean variesByAcceptEncoding;
+    private @Nullable StreamingBody streamingBody;
+    private int retryAfterSeconds;
     private Map<String, String> cookies = new HashMap<>();
 
     public Builder setHtmlBody(String htmlBody) {
-      this.htmlBody = htmlBody;
-      this.protobufBody = new byte[0];
+      return setBody(Http.ContentType.HTML, htmlBody.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Uses HTML that has already been encoded as UTF-8. {@code htmlBody} must not change. */
+    public Builder setHtmlBody(byte[] htmlBody) {
+      return setBody(Http.ContentType.HTML, htmlBody);
+    }
+
+    /** Uses HTML that has already been compressed, in {@code encoding}. */
+    public Builder setHtmlBody(Compression.Precompressed htmlBody,
+        Http.ContentEncoding encoding) {
+      setBody(Http.ContentType.HTML, htmlBody.get(encoding));
+      this.contentEncoding = encoding;
+      this.variesByAcceptEncoding = true;
+      return this;
+    }
+
+    /** Uses HTML that has already been rendered into {@code htmlBody}, without copying it. */
+    public Builder setHtmlBody(ResponseBuffer htmlBody) {
+      this.body = htmlBody.array();
+      this.bodyLength = htmlBody.size();
+      this.contentType = Http.ContentType.HTML;
       return this;
     }
 
     public Builder setProtobufBody(byte[] protobufBody) {
-      this.protobufBody = protobufBody;
-      this.htmlBody = "";
+      return setBody(Http.ContentType.PROTOCOL_BUFFER, protobufBody);
+    }
+
+    public Builder setPrometheusTextBody(String metrics) {
+      return setBody(Http.ContentType.PROMETHEUS_TEXT, metrics.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Uses a body that is produced while the response is sent, see {@link StreamingBody}. */
+    public Builder setStreamingBody(Http.ContentType contentType, StreamingBody streamingBody) {
+      this.streamingBody = streamingBody;
+      this.contentType = contentType;
+      return this;
+    }
+
+    private Builder setBody(Http.ContentType contentType, byte[] body) {
+      this.body = body;
+      this.bodyLength = body.length;
+      this.contentType = contentType;
       return this;
     }
 
@@ -83,13 +222,35 @@ public class HttpResponse {
       return this;
     }
 
+    public Builder setETag(String etag) {
+      this.etag = etag;
+      return this;
+    }
+
+    /**
+     * Marks the response as one that depends on the request's Accept-Encoding header, e.g. a 304
+     * for a body that is sent compressed to some clients.
+     */
+    public Builder setVariesByAcceptEncoding() {
+      this.variesByAcceptEncoding = true;
+      return this;
+    }
+
+    /** Tells the client how long to wait before trying again, e.g. when the server is busy. */
+    public Builder setRetryAfter(int seconds) {
+      this.retryAfterSeconds = seconds;
+      return this;
+    }
+
     public Builder setCookie(String key, String value) {
       cookies.put(key, value);
       return this;
     }
 
     public HttpResponse build() {
-      return new HttpResponse(htmlBody, protobufBody, responseCode, locationUrl, cookies);
+      return new HttpResponse(body, bodyLength, contentType, responseCode, locationUrl, etag,
+          contentEncoding, variesByAcceptEncoding, streamingBody, /* deferredResponse = */ null,
+          retryAfterSeconds, cookies);
     }
 
     private Builder() {}
@@ -1,133 +1,272 @@
 package com.jonkimbel.catfeeder.backend.server;
 
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
+
 import java.io.*;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class HttpServer {
-  private static final DateTimeFormatter HTTP_FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss O");
+  // Requests with bodies larger than this are rejected.
+  static final int MAX_BODY_BYTES = 48 * 1024;
+  // No request, header and body, is allowed to be bigger than this.
+  static final int MAX_REQUEST_BYTES = HttpHeaderParser.MAX_HEADER_BYTES + MAX_BODY_BYTES;
+
   private final Socket socket;
   private final RequestHandler requestHandler;
+  private final KeepAlivePolicy keepAlivePolicy;
+  private final AdmissionControl admissionControl;
+  private final HttpHeaderParser headerParser = new HttpHeaderParser();
+  private final ChunkedBodyDecoder chunkedBodyDecoder = new ChunkedBodyDecoder();
+  private final ResponseWriter responseWriter = new ResponseWriter();
+
+  // Bytes read from the client but not yet served. Holds the current request and the start of any
+  // request pipelined after it.
+  private byte[] readBuffer = BufferPool.READ_BUFFERS.acquire();
+  private int readLength;
 
   public interface RequestHandler {
-    HttpResponse handleRequest(HttpHeader requestHeader, String requestBody) throws IOException;
+    /**
+     * Answers a request. {@code requestBody} holds the raw body bytes, in place in the server's
+     * read buffer. It must not be modified, or used after this returns.
+     */
+    HttpResponse handleRequest(HttpHeader requestHeader, ByteBuffer requestBody)
+        throws IOException;
+
+    /**
+     * Answers a request the server is too busy to handle, quickly and without doing any real work.
+     * {@code requestBody} is as for {@link #handleRequest}. By default a 503 telling the client to
+     * retry after {@code retryAfterSeconds}.
+     */
+    default HttpResponse handleOverload(HttpHeader requestHeader, ByteBuffer requestBody,
+        int retryAfterSeconds) throws IOException {
+      return HttpResponse.builder()
+          .setResponseCode(Http.ResponseCode.SERVICE_UNAVAILABLE)
+          .setRetryAfter(retryAfterSeconds)
+          .build();
+    }
   }
 
-  public static Thread threadForConnection(Socket socket, RequestHandler requestHandler) {
-    HttpServer server = new HttpServer(socket, requestHandler);
+  /**
+   * Returns a thread that serves {@code socket}, a connection {@code admissionControl} has
+   * admitted, until it closes.
+   */
+  public static Thread threadForConnection(Socket socket, RequestHandler requestHandler,
+      KeepAlivePolicy keepAlivePolicy, AdmissionControl admissionControl) {
+    HttpServer server = new HttpServer(socket, requestHandler, keepAlivePolicy, admissionControl);
     return new Thread(server::connect);
   }
 
-  private HttpServer(Socket socket, RequestHandler requestHandler) {
+  private HttpServer(Socket socket, RequestHandler requestHandler,
+      KeepAlivePolicy keepAlivePolicy, AdmissionControl admissionControl) {
     this.socket = socket;
     this.requestHandler = requestHandler;
+    this.keepAlivePolicy = keepAlivePolicy;
+    this.admissionControl = admissionControl;
   }
 
   private void connect() {
-    BufferedReader in = null;
-    PrintWriter printOut = null;
-    BufferedOutputStream bytesOut = null;
+    InputStream in = null;
+    OutputStream out = null;
 
+    Metrics.INSTANCE.onConnectionOpened();
     try {
-      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      printOut = new PrintWriter(socket.getOutputStream());
-      bytesOut = new BufferedOutputStream(socket.getOutputStream());
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+      socket.setSoTimeout(keepAlivePolicy.idleTimeoutMs);
 
-      handle(in, printOut, bytesOut);
+      // Requests are read and answered one at a time, so pipelined requests get their responses
+      // in the order they were sent.
+      int requestsServed = 0;
+      boolean keepAlive;
+      do {
+        keepAlive = handle(in, out, ++requestsServed);
+      } while (keepAlive);
+    } catch (SocketTimeoutException e) {
+      // The client stopped sending requests, nothing to do but close the connection.
     } catch (IOException e) {
-      System.err.printf("%s - server error: %s\n", new Date(), e);
+      Log.warning("server error: %s", e);
     } finally {
+      Metrics.INSTANCE.onConnectionClosed();
+      admissionControl.onConnectionClosed(socket.getInetAddress());
+      BufferPool.READ_BUFFERS.release(readBuffer);
       try {
         in.close();
-        printOut.close();
+        out.close();
         socket.close();
       } catch (Exception e) {
-        System.err.printf("%s - couldn't close stream: %s\n", new Date(), e.getMessage());
+        Log.warning("couldn't close stream: %s", e.getMessage());
       }
     }
   }
 
-  private void handle(BufferedReader in, PrintWriter printOut, BufferedOutputStream bytesOut) throws IOException {
+  /** Serves a single request. Returns whether the connection should be kept open afterwards. */
+  private boolean handle(InputStream in, OutputStream out, int requestsServed)
+      throws IOException {
     // Read the request header.
-    // TODO [V2]: Make this a separate method.
-    List<String> headerLines = new ArrayList<>();
-    String lastLine = "";
-    do {
-      lastLine = in.readLine();
-      headerLines.add(lastLine);
-    } while (!lastLine.equals(""));
-    HttpHeader requestHeader = HttpHeader.fromLines(headerLines);
-
-    // TODO [V3]: Handle "Transfer-Encoding: Chunked"?
-    // https://greenbytes.de/tech/webdav/rfc7230.html#message.body.length
-
-    // Read the request body.
-    // TODO [V2]: Make this a separate method.
-    String requestBody = "";
-    if (requestHeader.contentLength != null && requestHeader.contentLength > 0) {
-      char[] bodyBuffer = new char[requestHeader.contentLength];
-      int bytesRead = 0;
-      while (bytesRead < requestHeader.contentLength && (!socket.isClosed() || in.ready())) {
-        bytesRead += in.read(
-            bodyBuffer,
-            /* off = */ bytesRead,
-            /* len = */ requestHeader.contentLength - bytesRead);
-      }
-      if (bytesRead == requestHeader.contentLength) {
-        requestBody = new String(bodyBuffer);
-      } else {
-        System.err.printf("%s - content length:%s but received %s bytes\n",
-            new Date(), requestHeader.contentLength, bytesRead);
+    headerParser.reset();
+    int headerLength;
+    try {
+      while ((headerLength = headerParser.parse(readBuffer, readLength)) == -1) {
+        if (!fill(in)) {
+          // The client closed the connection.
+          return false;
+        }
       }
+    } catch (HttpParseException e) {
+      Log.warning("bad request: %s", e.getMessage());
+      writeBadRequest(out);
+      return false;
     }
+    HttpHeader requestHeader = headerParser.getHeader();
 
-    System.out.printf("%s - request: %s %s\n", new Date(), requestHeader.method, requestHeader.path);
+    // Read the request body.
+    int bodyLength;
+    try {
+      bodyLength = requestHeader.isChunked()
+          ? readChunkedBody(in, headerLength)
+          : readBody(in, headerLength, requestHeader.contentLength);
+    } catch (HttpParseException e) {
+      Log.warning("bad request: %s", e.getMessage());
+      writeBadRequest(out);
+      return false;
+    }
+    if (bodyLength == -1) {
+      return false;
+    }
 
     // Determine the response header & body.
-    HttpResponse httpResponse = requestHandler.handleRequest(requestHeader, requestBody);
-    System.out.printf("%s - response: %s\n", new Date(), httpResponse.getResponseCode());
+    ByteBuffer requestBody = ByteBuffer.wrap(readBuffer, headerLength, bodyLength).slice();
+    HttpResponse httpResponse;
+    if (admissionControl.startRequest()) {
+      try {
+        httpResponse = requestHandler.handleRequest(requestHeader, requestBody);
+      } finally {
+        admissionControl.finishRequest();
+      }
+    } else {
+      httpResponse = requestHandler.handleOverload(requestHeader, requestBody,
+          admissionControl.getRetryAfterSeconds());
+    }
+    consume(headerLength + bodyLength);
+    httpResponse = awaitDeferredResponse(httpResponse);
+    boolean keepAlive =
+        keepAlivePolicy.shouldKeepAlive(requestHeader, httpResponse, requestsServed);
 
     // Write the response header & body.
-    if (httpResponse.isBodyHtml()) {
-      writeHeader(printOut, httpResponse, Http.ContentType.HTML,
-          /* contentLength = */ httpResponse.getHtmlBody().length());
-      printOut.print(httpResponse.getHtmlBody());
-      printOut.flush();
-    } else {
-      writeHeader(printOut, httpResponse, Http.ContentType.PROTOCOL_BUFFER,
-          /* contentLength = */ httpResponse.getProtobufBody().length);
-      bytesOut.write(httpResponse.getProtobufBody(), /* offset = */ 0,
-          /* length = */ httpResponse.getProtobufBody().length);
-      bytesOut.flush();
+    writeResponse(out, httpResponse, keepAlive);
+
+    return keepAlive;
+  }
+
+  /**
+   * Returns the response {@code httpResponse} stands in for, if it's deferred. This connection has
+   * a thread of its own anyway, so it simply waits; {@link NioHttpServer} waits without one.
+   */
+  private static HttpResponse awaitDeferredResponse(HttpResponse httpResponse)
+      throws IOException {
+    @Nullable CompletableFuture<HttpResponse> deferredResponse = httpResponse.getDeferredResponse();
+    if (deferredResponse == null) {
+      return httpResponse;
+    }
+    try {
+      return deferredResponse.join();
+    } catch (CompletionException | CancellationException e) {
+      throw new IOException("deferred response failed", e);
     }
   }
 
-  private static void writeHeader(PrintWriter printWriter, HttpResponse response,
-      Http.ContentType contentType, int contentLength) {
-    // NOTE: we need to use CRLF (\r\n or println) instead of just \n.
-    // HTTP/1.1 spec dictates that CRLF be used to end lines in the HTTP response header.
-    // We can't use println, since its behavior will change across platforms.
-    printWriter.printf("HTTP/1.1 %s\r\n", response.getResponseCode());
-    printWriter.printf("Server: JonKimbel/CatFeeder HttpServer\r\n");
-    if (response.getLocationUrl() != null) {
-      printWriter.printf("Location: %s\r\n", response.getLocationUrl());
+  /**
+   * Reads a body of {@code contentLength} bytes following the header. Returns its length, or -1 if
+   * the client closed the connection first.
+   */
+  private int readBody(InputStream in, int headerLength, @Nullable Integer contentLength)
+      throws IOException {
+    int bodyLength = contentLength == null ? 0 : contentLength;
+    if (bodyLength > MAX_BODY_BYTES) {
+      throw new HttpParseException(
+          String.format("content length:%s exceeds %s bytes", bodyLength, MAX_BODY_BYTES));
     }
-    for (String cookieName : response.getCookies().keySet()) {
-      printWriter.printf("Set-Cookie: %s=%s; Expires=%s; Max-Age=%d\r\n",
-          cookieName, response.getCookies().get(cookieName),
-          // Cookies should set Expires=old-date per rfc2109.
-          HTTP_FORMATTER.format(ZonedDateTime.now().minusYears(1)),
-          // Expire cookies after 30 days.
-          TimeUnit.DAYS.toSeconds(30));
+    while (readLength < headerLength + bodyLength) {
+      if (!fill(in)) {
+        Log.warning("content length:%s but received %s bytes",
+            bodyLength, readLength - headerLength);
+        return -1;
+      }
     }
-    printWriter.printf("Date: %s\r\n", HTTP_FORMATTER.format(ZonedDateTime.now()));
-    printWriter.printf("Content-type: %s\r\n", contentType);
-    printWriter.printf("Content-length: %d\r\n", contentLength);
-    printWriter.print("\r\n");
-    printWriter.flush();
+    return bodyLength;
+  }
+
+  /**
+   * Reads and decodes a chunked body following the header, leaving it right after the header.
+   * Returns its decoded length, or -1 if the client closed the connection first.
+   */
+  private int readChunkedBody(InputStream in, int headerLength) throws IOException {
+    chunkedBodyDecoder.reset(headerLength);
+    while (true) {
+      readLength = chunkedBodyDecoder.decode(readBuffer, readLength);
+      if (chunkedBodyDecoder.isComplete()) {
+        return chunkedBodyDecoder.getBodyEnd() - headerLength;
+      }
+      if (!fill(in)) {
+        Log.warning("chunked body ended after %s bytes",
+            chunkedBodyDecoder.getBodyEnd() - headerLength);
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Reads more bytes from the client onto the end of {@code readBuffer}, growing it if needed.
+   * Returns false if the client closed the connection.
+   */
+  private boolean fill(InputStream in) throws IOException {
+    if (readLength == readBuffer.length) {
+      if (readBuffer.length >= MAX_REQUEST_BYTES) {
+        throw new HttpParseException("request exceeds " + MAX_REQUEST_BYTES + " bytes");
+      }
+      byte[] grownBuffer =
+          Arrays.copyOf(readBuffer, Math.min(readBuffer.length * 2, MAX_REQUEST_BYTES));
+      BufferPool.READ_BUFFERS.release(readBuffer);
+      readBuffer = grownBuffer;
+    }
+    int bytesRead = in.read(readBuffer, readLength, readBuffer.length - readLength);
+    if (bytesRead == -1) {
+      return false;
+    }
+    readLength += bytesRead;
+    return true;
+  }
+
+  /** Drops a request that has been read, keeping any bytes of the next one. */
+  private void consume(int requestLength) {
+    System.arraycopy(readBuffer, requestLength, readBuffer, 0, readLength - requestLength);
+    readLength -= requestLength;
+  }
+
+  private void writeResponse(OutputStream out, HttpResponse httpResponse, boolean keepAlive)
+      throws IOException {
+    // Sockets accepted through a channel can send the header and body in one gathering write.
+    SocketChannel channel = socket.getChannel();
+    if (channel != null) {
+      responseWriter.write(httpResponse, keepAlive, channel);
+    } else {
+      responseWriter.write(httpResponse, keepAlive, out);
+    }
+  }
+
+  private void writeBadRequest(OutputStream out) throws IOException {
+    writeResponse(out,
+        HttpResponse.builder().setResponseCode(Http.ResponseCode.BAD_REQUEST).build(),
+        /* keepAlive = */ false);
   }
 }
@@ -0,0 +1,38 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+/** Controls how long, and for how many requests, a persistent HTTP connection is kept open. */
+public class KeepAlivePolicy {
+  public static final KeepAlivePolicy DEFAULT = new KeepAlivePolicy(
+      /* idleTimeoutMs = */ 15_000,
+      /* maxRequestsPerConnection = */ 100);
+
+  /** How long an open connection may sit without receiving a request before it is closed. */
+  public final int idleTimeoutMs;
+  /** How many requests are served on a connection before the server closes it. */
+  public final int maxRequestsPerConnection;
+
+  public KeepAlivePolicy(int idleTimeoutMs, int maxRequestsPerConnection) {
+    // A socket timeout of 0 would mean never timing out, so idle connections are always closed.
+    if (idleTimeoutMs < 1) {
+      throw new IllegalArgumentException("idleTimeoutMs must be at least 1");
+    }
+    if (maxRequestsPerConnection < 1) {
+      throw new IllegalArgumentException("maxRequestsPerConnection must be at least 1");
+    }
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.maxRequestsPerConnection = maxRequestsPerConnection;
+  }
+
+  /** Whether the connection should stay open after sending {@code response} to the request. */
+  boolean shouldKeepAlive(HttpHeader requestHeader, HttpResponse response, int requestsServed) {
+    // Only HTTP/1.1 clients understand chunks, anyone else is sent a streamed body up to the close.
+    if (response.getStreamingBody() != null && !"HTTP/1.1".equals(requestHeader.httpVersion)) {
+      return false;
+    }
+    // A client turned away for being one too many shouldn't keep its connection either.
+    if (response.getResponseCode() == Http.ResponseCode.SERVICE_UNAVAILABLE) {
+      return false;
+    }
+    return requestHeader.isKeepAlive() && requestsServed < maxRequestsPerConnection;
+  }
+}
@@ -1,6 +1,7 @@
 package com.jonkimbel.catfeeder.backend.server;
 
-import java.util.Date;
+import com.jonkimbel.catfeeder.backend.log.Log;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,7 +34,7 @@ public class MapParser {
     for (String keyValuePair : query.split(pairDelimiterRegex)) {
       String[] keyAndValue = keyValuePair.split(keyValueDelimiterRegex);
       if (keyAndValue.length != 2) {
-        System.err.printf("%s - unparsed query string argument:%s\n", new Date(), keyValuePair);
+        Log.warning("unparsed query string argument:%s", keyValuePair);
         continue;
       }
       keyValueMap.put(keyAndValue[0], keyAndValue[1]);
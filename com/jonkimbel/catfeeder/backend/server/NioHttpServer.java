@@ -0,0 +1,550 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Non-blocking alternative to {@link HttpServer}. A small fixed set of event loop threads each own
+ * a {@link Selector} and service every connection assigned to them, so the number of threads no
+ * longer grows with the number of connected devices.
+ *
+ * <p>Requests are parsed incrementally as bytes arrive and are handed to the same
+ * {@link HttpServer.RequestHandler} the thread-per-connection server uses, on a fixed pool of
+ * worker threads. Handlers may block on storage, so the event loops only ever do I/O: the
+ * connection stops serving requests until the worker hands the response back to its event loop.
+ *
+ * <p>A request whose response is deferred, see {@link HttpResponse#getDeferredResponse()}, is
+ * then held without a thread, the same way, until the deferred response completes. Each piece of a
+ * {@link StreamingBody} is produced on a worker too, since it may read from disk.
+ *
+ * <p>The event loops mustn't block, so {@link AdmissionControl} never queues requests here. One
+ * that arrives with too many in flight is shed straight away, answered on the event loop by the
+ * quick {@link HttpServer.RequestHandler#handleOverload}. Requests in flight beyond the number of
+ * workers wait for one in the pool.
+ */
+public class NioHttpServer {
+  // Requests larger than this are rejected by closing the connection.
+  private static final int MAX_REQUEST_BYTES = HttpServer.MAX_REQUEST_BYTES;
+
+  private final int port;
+  private final HttpServer.RequestHandler requestHandler;
+  private final KeepAlivePolicy keepAlivePolicy;
+  private final AdmissionControl admissionControl;
+  private final EventLoop[] eventLoops;
+  private final ExecutorService workers;
+
+  public NioHttpServer(int port, int eventLoopCount, int workerCount,
+      HttpServer.RequestHandler requestHandler, KeepAlivePolicy keepAlivePolicy,
+      AdmissionControl admissionControl) {
+    if (eventLoopCount < 1) {
+      throw new IllegalArgumentException("eventLoopCount must be at least 1");
+    }
+    if (workerCount < 1) {
+      throw new IllegalArgumentException("workerCount must be at least 1");
+    }
+    this.port = port;
+    this.requestHandler = requestHandler;
+    this.keepAlivePolicy = keepAlivePolicy;
+    this.admissionControl = admissionControl;
+    this.eventLoops = new EventLoop[eventLoopCount];
+    AtomicInteger workerNumber = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+      Thread thread =
+          new Thread(runnable, "NioHttpServerWorker-" + workerNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Accepts connections on the calling thread, handing each one off to an event loop. */
+  public void runBlocking() throws IOException {
+    for (int i = 0; i < eventLoops.length; i++) {
+      eventLoops[i] = new EventLoop(Selector.open());
+      Thread thread = new Thread(eventLoops[i], "NioHttpServer-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port), admissionControl.getAcceptBacklog());
+      Log.info("listening on port %s with %s event loops", port, eventLoops.length);
+
+      int nextEventLoop = 0;
+      while (true) {
+        admissionControl.awaitConnectionSlot();
+        SocketChannel channel = serverChannel.accept();
+        if (!admissionControl.admit(channel)) {
+          continue;
+        }
+        try {
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+          Log.warning("couldn't configure connection: %s", e);
+          admissionControl.onConnectionClosed(channel.socket().getInetAddress());
+          closeQuietly(channel);
+          continue;
+        }
+        eventLoops[nextEventLoop].register(channel);
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+      }
+    }
+  }
+
+  private class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    // Connections whose handler, deferred response or next piece of body has completed, on
+    // whatever thread completed it.
+    private final Queue<Connection> respondingConnections = new ConcurrentLinkedQueue<>();
+    // Only touched by the event loop thread.
+    private long lastIdleSweepMs = System.currentTimeMillis();
+
+    private EventLoop(Selector selector) {
+      this.selector = selector;
+    }
+
+    private void register(SocketChannel channel) {
+      pendingChannels.add(channel);
+      selector.wakeup();
+    }
+
+    private void respondLater(Connection connection) {
+      respondingConnections.add(connection);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      // Wake up periodically so idle connections get closed even when no other traffic arrives.
+      long selectTimeoutMs = Math.max(1, keepAlivePolicy.idleTimeoutMs / 2);
+      while (true) {
+        try {
+          selector.select(selectTimeoutMs);
+        } catch (IOException e) {
+          Log.warning("selector error: %s", e);
+          continue;
+        }
+
+        SocketChannel newChannel;
+        while ((newChannel = pendingChannels.poll()) != null) {
+          Connection connection = new Connection(this, newChannel);
+          try {
+            newChannel.register(selector, SelectionKey.OP_READ, connection);
+          } catch (ClosedChannelException e) {
+            connection.closeChannel();
+          }
+        }
+
+        Connection respondingConnection;
+        while ((respondingConnection = respondingConnections.poll()) != null) {
+          SelectionKey key = respondingConnection.channel.keyFor(selector);
+          if (key == null || !key.isValid()) {
+            // The connection closed while it waited for its response.
+            continue;
+          }
+          try {
+            respondingConnection.onCompleted(key);
+          } catch (IOException | RuntimeException e) {
+            Log.warning("server error: %s", e);
+            respondingConnection.close(key);
+          }
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              connection.onReadable(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.onWritable(key);
+            }
+          } catch (IOException | RuntimeException e) {
+            Log.warning("server error: %s", e);
+            connection.close(key);
+          }
+        }
+
+        closeIdleConnectionsIfDue(selectTimeoutMs);
+      }
+    }
+
+    /**
+     * Closes connections idle for longer than the timeout, at most once every
+     * {@code sweepIntervalMs}. Walking every connection after every wakeup would make each one cost
+     * as much as there are connections. A connection may then stay open for up to one and a half
+     * timeouts.
+     */
+    private void closeIdleConnectionsIfDue(long sweepIntervalMs) {
+      long nowMs = System.currentTimeMillis();
+      if (nowMs - lastIdleSweepMs < sweepIntervalMs) {
+        return;
+      }
+      lastIdleSweepMs = nowMs;
+      long idleSinceMs = nowMs - keepAlivePolicy.idleTimeoutMs;
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+        if (key.isValid() && connection.isIdleSince(idleSinceMs)) {
+          connection.close(key);
+        }
+      }
+    }
+  }
+
+  /** Per-connection parse and write state. Only ever touched by the owning event loop. */
+  private class Connection {
+    private final EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final InetAddress client;
+    private ByteBuffer readBuffer = ByteBuffer.wrap(BufferPool.READ_BUFFERS.acquire());
+    private final HttpHeaderParser headerParser = new HttpHeaderParser();
+    private final ChunkedBodyDecoder chunkedBodyDecoder = new ChunkedBodyDecoder();
+    private int headerLength = -1;
+    private HttpHeader requestHeader;
+    private int bodyLength;
+    private final ResponseWriter responseWriter = new ResponseWriter();
+    // The header and body of the response being written, or null if there isn't one.
+    private ByteBuffer[] writeBuffers;
+    // The request being handled or held and the response it's waiting for, if there is one.
+    private @Nullable HttpHeader deferredRequestHeader;
+    private @Nullable CompletableFuture<HttpResponse> deferredResponse;
+    // The piece of streaming body a worker is producing, if there is one.
+    private @Nullable CompletableFuture<ByteBuffer[]> nextPiece;
+    // Whether a worker is still reading the request from the read buffer, which mustn't move until
+    // it's done.
+    private boolean handlingRequest;
+    private boolean closeAfterWrite;
+    private int requestsServed;
+    private long lastActivityMs = System.currentTimeMillis();
+    private boolean closed;
+
+    private Connection(EventLoop eventLoop, SocketChannel channel) {
+      this.eventLoop = eventLoop;
+      this.channel = channel;
+      this.client = channel.socket().getInetAddress();
+      Metrics.INSTANCE.onConnectionOpened();
+    }
+
+    private boolean isIdleSince(long timeMs) {
+      // Connections part way through writing a response, or waiting for one, are not idle.
+      return writeBuffers == null && deferredResponse == null && lastActivityMs < timeMs;
+    }
+
+    private void onReadable(SelectionKey key) throws IOException {
+      if (!readBuffer.hasRemaining() && handlingRequest) {
+        // Growing the buffer would pull it out from under the worker. Reading carries on once the
+        // response is ready.
+        key.interestOps(0);
+        return;
+      }
+      if (!readBuffer.hasRemaining()) {
+        if (readBuffer.capacity() >= MAX_REQUEST_BYTES) {
+          Log.warning("request exceeded %s bytes", MAX_REQUEST_BYTES);
+          close(key);
+          return;
+        }
+        readBuffer = grow(readBuffer,
+            Math.min(readBuffer.capacity() * 2, MAX_REQUEST_BYTES));
+      }
+
+      int bytesRead = channel.read(readBuffer);
+      if (bytesRead == -1) {
+        close(key);
+        return;
+      }
+      lastActivityMs = System.currentTimeMillis();
+
+      // Reads continue while a response is deferred so a client that goes away is noticed, but
+      // anything it sends waits for that response to go out first.
+      if (deferredResponse == null && writeBuffers == null) {
+        serveBufferedRequests(key);
+      }
+    }
+
+    private void onWritable(SelectionKey key) throws IOException {
+      if (flushWriteBuffer(key)) {
+        // Pipelined requests may already be sitting in the read buffer.
+        serveBufferedRequests(key);
+      }
+    }
+
+    /**
+     * Serves every request that has been fully read, then waits for more bytes. Only one response
+     * is written at a time, so pipelined requests are answered in order.
+     */
+    private void serveBufferedRequests(SelectionKey key) throws IOException {
+      while (key.isValid()) {
+        try {
+          if ((requestHeader == null && !tryParseHeader()) || !hasBody()) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+          }
+        } catch (HttpParseException e) {
+          Log.warning("bad request: %s", e.getMessage());
+          closeAfterWrite = true;
+          writeBuffers = responseWriter.encode(
+              HttpResponse.builder().setResponseCode(Http.ResponseCode.BAD_REQUEST).build(),
+              /* keepAlive = */ false);
+          flushWriteBuffer(key);
+          return;
+        }
+
+        ByteBuffer requestBody =
+            ByteBuffer.wrap(readBuffer.array(), headerLength, bodyLength).slice();
+        HttpHeader servedRequestHeader = requestHeader;
+        if (admissionControl.tryStartRequest()) {
+          handlingRequest = true;
+          waitFor(key, servedRequestHeader, handleOnWorker(servedRequestHeader, requestBody));
+          return;
+        }
+        HttpResponse httpResponse = requestHandler.handleOverload(requestHeader, requestBody,
+            admissionControl.getRetryAfterSeconds());
+        consumeRequest();
+        if (!respondOrWait(key, servedRequestHeader, httpResponse)) {
+          return;
+        }
+      }
+    }
+
+    /** Handles the request on a worker, completing with its response once the handler returns. */
+    private CompletableFuture<HttpResponse> handleOnWorker(HttpHeader servedRequestHeader,
+        ByteBuffer requestBody) {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return requestHandler.handleRequest(servedRequestHeader, requestBody);
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        } finally {
+          admissionControl.finishRequest();
+        }
+      }, workers);
+    }
+
+    /**
+     * Stops serving requests until {@code pendingResponse} completes, when it's handed back to the
+     * event loop, see {@link #onDeferredResponse}.
+     */
+    private void waitFor(SelectionKey key, HttpHeader servedRequestHeader,
+        CompletableFuture<HttpResponse> pendingResponse) {
+      deferredRequestHeader = servedRequestHeader;
+      deferredResponse = pendingResponse;
+      key.interestOps(SelectionKey.OP_READ);
+      pendingResponse.whenComplete((response, e) -> eventLoop.respondLater(this));
+    }
+
+    /**
+     * Starts writing {@code httpResponse}, or waits for it if it's deferred. Returns true if it was
+     * fully written and the connection is ready for the next request.
+     */
+    private boolean respondOrWait(SelectionKey key, HttpHeader servedRequestHeader,
+        HttpResponse httpResponse) throws IOException {
+      @Nullable CompletableFuture<HttpResponse> pendingResponse =
+          httpResponse.getDeferredResponse();
+      if (pendingResponse != null) {
+        if (!pendingResponse.isDone()) {
+          waitFor(key, servedRequestHeader, pendingResponse);
+          return false;
+        }
+        httpResponse = pendingResponse.join();
+      }
+      return respond(key, servedRequestHeader, httpResponse);
+    }
+
+    /** Carries on with whatever a worker or deferred response was doing, once it has completed. */
+    private void onCompleted(SelectionKey key) throws IOException {
+      if (nextPiece != null) {
+        onNextPiece(key);
+      } else {
+        onDeferredResponse(key);
+      }
+    }
+
+    /**
+     * Sends the response from the worker or the deferred response, once it has completed, then
+     * carries on serving requests.
+     */
+    private void onDeferredResponse(SelectionKey key) throws IOException {
+      CompletableFuture<HttpResponse> completedResponse = deferredResponse;
+      HttpHeader servedRequestHeader = deferredRequestHeader;
+      deferredResponse = null;
+      deferredRequestHeader = null;
+      if (handlingRequest) {
+        handlingRequest = false;
+        consumeRequest();
+      }
+      HttpResponse httpResponse = completedResponse.join();
+      if (respondOrWait(key, servedRequestHeader, httpResponse)) {
+        serveBufferedRequests(key);
+      }
+    }
+
+    /**
+     * Starts writing {@code httpResponse}. Returns true if it was fully written and the connection
+     * is ready for the next request.
+     */
+    private boolean respond(SelectionKey key, HttpHeader servedRequestHeader,
+        HttpResponse httpResponse) throws IOException {
+      closeAfterWrite =
+          !keepAlivePolicy.shouldKeepAlive(servedRequestHeader, httpResponse, ++requestsServed);
+      writeBuffers = responseWriter.encode(httpResponse, !closeAfterWrite);
+      return flushWriteBuffer(key);
+    }
+
+    /** Sends the next piece of streaming body, once a worker has produced it. */
+    private void onNextPiece(SelectionKey key) throws IOException {
+      CompletableFuture<ByteBuffer[]> completedPiece = nextPiece;
+      nextPiece = null;
+      writeBuffers = completedPiece.join();
+      if (flushWriteBuffer(key)) {
+        serveBufferedRequests(key);
+      }
+    }
+
+    /**
+     * Writes as much of the pending response as the socket will take. Returns true if the response
+     * was fully written and the connection is ready for the next request.
+     */
+    private boolean flushWriteBuffer(SelectionKey key) throws IOException {
+      channel.write(writeBuffers);
+      if (ResponseWriter.hasRemaining(writeBuffers)) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return false;
+      }
+      if (responseWriter.hasStreamingBody()) {
+        // A streaming body is encoded a piece at a time, as the socket takes the previous piece.
+        // Nothing happens on the connection until a worker hands the piece back, see onNextPiece.
+        key.interestOps(0);
+        nextPiece = encodeNextOnWorker();
+        nextPiece.whenComplete((piece, e) -> eventLoop.respondLater(this));
+        return false;
+      }
+      writeBuffers = null;
+      lastActivityMs = System.currentTimeMillis();
+
+      if (closeAfterWrite) {
+        close(key);
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Produces the next piece of the streaming body on a worker. Until it completes the worker owns
+     * {@link #responseWriter}.
+     */
+    private CompletableFuture<ByteBuffer[]> encodeNextOnWorker() {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return responseWriter.encodeNext();
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        }
+      }, workers);
+    }
+
+    /** Drops the request that was just served, keeping any bytes of the next one. */
+    private void consumeRequest() {
+      readBuffer.flip().position(headerLength + bodyLength);
+      readBuffer.compact();
+      headerParser.reset();
+      headerLength = -1;
+      requestHeader = null;
+      bodyLength = 0;
+    }
+
+    private boolean tryParseHeader() throws HttpParseException {
+      headerLength = headerParser.parse(readBuffer.array(), readBuffer.position());
+      if (headerLength == -1) {
+        return false;
+      }
+
+      requestHeader = headerParser.getHeader();
+      if (requestHeader.isChunked()) {
+        // The body's length isn't known until it has been decoded, see hasBody().
+        chunkedBodyDecoder.reset(headerLength);
+        bodyLength = 0;
+        return true;
+      }
+      bodyLength = requestHeader.contentLength == null ? 0 : requestHeader.contentLength;
+      if (bodyLength > HttpServer.MAX_BODY_BYTES) {
+        throw new HttpParseException("content length too large: " + bodyLength);
+      }
+      if (readBuffer.capacity() < headerLength + bodyLength) {
+        readBuffer = grow(readBuffer, headerLength + bodyLength);
+      }
+      return true;
+    }
+
+    /**
+     * Whether the current request's body has been read in full. A chunked body is decoded as it
+     * arrives, and its length filled in once it's complete.
+     */
+    private boolean hasBody() throws HttpParseException {
+      if (!requestHeader.isChunked()) {
+        return readBuffer.position() >= headerLength + bodyLength;
+      }
+      readBuffer.position(chunkedBodyDecoder.decode(readBuffer.array(), readBuffer.position()));
+      if (!chunkedBodyDecoder.isComplete()) {
+        return false;
+      }
+      bodyLength = chunkedBodyDecoder.getBodyEnd() - headerLength;
+      return true;
+    }
+
+    private void close(SelectionKey key) {
+      key.cancel();
+      closeChannel();
+    }
+
+    private void closeChannel() {
+      closeQuietly(channel);
+      if (!closed) {
+        closed = true;
+        Metrics.INSTANCE.onConnectionClosed();
+        admissionControl.onConnectionClosed(client);
+        if (!handlingRequest) {
+          // Otherwise a worker may still be reading it, and it's left to the garbage collector.
+          BufferPool.READ_BUFFERS.release(readBuffer.array());
+        }
+        if (deferredResponse != null) {
+          // Lets the handler stop waiting on behalf of a client that's gone.
+          deferredResponse.cancel(/* mayInterruptIfRunning = */ false);
+        }
+      }
+    }
+  }
+
+  /** Copies {@code buffer} into a bigger one, returning the old one to the pool. */
+  private static ByteBuffer grow(ByteBuffer buffer, int newCapacity) {
+    ByteBuffer grownBuffer = ByteBuffer.allocate(newCapacity).put(buffer.flip());
+    BufferPool.READ_BUFFERS.release(buffer.array());
+    return grownBuffer;
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.warning("couldn't close channel: %s", e.getMessage());
+    }
+  }
+}
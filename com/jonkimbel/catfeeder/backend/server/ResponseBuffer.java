@@ -0,0 +1,67 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable buffer that response bodies are rendered into. Unlike {@link
+ * java.io.ByteArrayOutputStream} it isn't synchronized, and the server sends its contents without
+ * copying them first.
+ */
+public class ResponseBuffer extends OutputStream {
+  private static final int DEFAULT_CAPACITY = 4 * 1024;
+
+  private byte[] bytes;
+  private int size;
+
+  public ResponseBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ResponseBuffer(int initialCapacity) {
+    bytes = new byte[initialCapacity];
+  }
+
+  @Override
+  public void write(int b) {
+    ensureCapacity(size + 1);
+    bytes[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int offset, int length) {
+    ensureCapacity(size + length);
+    System.arraycopy(b, offset, bytes, size, length);
+    size += length;
+  }
+
+  @Override
+  public void write(byte[] b) {
+    write(b, /* offset = */ 0, b.length);
+  }
+
+  /** Empties the buffer so it can be reused, keeping its capacity. */
+  public void reset() {
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Returns a copy of the valid bytes. */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, size);
+  }
+
+  /** The backing array. Only the first {@link #size()} bytes are valid. */
+  byte[] array() {
+    return bytes;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+    }
+  }
+}
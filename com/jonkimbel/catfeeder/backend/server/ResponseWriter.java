@@ -0,0 +1,267 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Encodes responses for one connection and writes them out.
+ *
+ * <p>Headers are assembled from byte fragments encoded once up front, with the Date line
+ * formatted at most once a second, into a buffer the writer reuses. The header and body are then
+ * sent with a single gathering write, so a small response leaves in a single TCP segment.
+ *
+ * <p>A {@link StreamingBody} is encoded a piece at a time by {@link #encodeNext}, as a chunk if
+ * the connection stays open, or as raw bytes up to the close if it doesn't.
+ */
+class ResponseWriter {
+  private static final DateTimeFormatter HTTP_FORMATTER =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss O", Locale.US);
+  private static final int INITIAL_HEADER_BYTES = 512;
+  // Bodies up to this size are copied in after the header when there's no channel to gather into.
+  private static final int MAX_COPIED_BODY_BYTES = 8 * 1024;
+
+  // NOTE: HTTP/1.1 dictates that header lines end with CRLF on every platform.
+  private static final byte[] CRLF = ascii("\r\n");
+  private static final byte[] SERVER = ascii("Server: JonKimbel/CatFeeder HttpServer\r\n");
+  private static final byte[] LOCATION = ascii("Location: ");
+  private static final byte[] ETAG = ascii("ETag: ");
+  private static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+  // Lets clients keep the body, but has them check it's still current every time.
+  private static final byte[] CACHE_CONTROL = ascii("Cache-Control: no-cache\r\n");
+  // So caches don't hand a compressed body to a client that can't read it.
+  private static final byte[] VARY = ascii("Vary: Accept-Encoding\r\n");
+  private static final byte[] CONTENT_LENGTH = ascii("Content-length: ");
+  private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+  private static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+  private static final byte[] CRLF_LAST_CHUNK = ascii("\r\n0\r\n\r\n");
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+  private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n\r\n");
+  private static final byte[] CLOSE = ascii("Connection: close\r\n\r\n");
+
+  private static final byte[][] STATUS_LINES = new byte[Http.ResponseCode.values().length][];
+  private static final byte[][] CONTENT_TYPES = new byte[Http.ContentType.values().length][];
+  private static final byte[][] CONTENT_ENCODINGS =
+      new byte[Http.ContentEncoding.values().length][];
+
+  static {
+    for (Http.ResponseCode responseCode : Http.ResponseCode.values()) {
+      STATUS_LINES[responseCode.ordinal()] = ascii("HTTP/1.1 " + responseCode + "\r\n");
+    }
+    for (Http.ContentType contentType : Http.ContentType.values()) {
+      CONTENT_TYPES[contentType.ordinal()] = ascii("Content-type: " + contentType + "\r\n");
+    }
+    for (Http.ContentEncoding encoding : Http.ContentEncoding.values()) {
+      CONTENT_ENCODINGS[encoding.ordinal()] = ascii("Content-Encoding: " + encoding + "\r\n");
+    }
+  }
+
+  private static volatile DateLine dateLine = new DateLine(/* second = */ -1, new byte[0]);
+
+  private final ResponseBuffer header = new ResponseBuffer(INITIAL_HEADER_BYTES);
+  // The header (or chunk size line), the body (or chunk), and whatever ends the chunk.
+  private final ByteBuffer[] buffers = new ByteBuffer[3];
+
+  // State of the streaming body being sent, if there is one.
+  private @Nullable StreamingBody streamingBody;
+  private boolean chunked;
+  private final ResponseBuffer chunk = new ResponseBuffer();
+
+  /**
+   * Encodes {@code response}, returning the buffers to write. They stay valid until the next call.
+   * If the response has a streaming body, {@link #encodeNext} must then be called until it returns
+   * null.
+   */
+  ByteBuffer[] encode(HttpResponse response, boolean keepAlive) {
+    streamingBody = response.getStreamingBody();
+    chunked = keepAlive;
+    header.reset();
+    header.write(STATUS_LINES[response.getResponseCode().ordinal()]);
+    header.write(SERVER);
+    if (response.getLocationUrl() != null) {
+      writeLine(LOCATION, response.getLocationUrl());
+    }
+    if (!response.getCookies().isEmpty()) {
+      writeCookies(response.getCookies());
+    }
+    if (response.getETag() != null) {
+      writeLine(ETAG, response.getETag());
+      header.write(CACHE_CONTROL);
+    }
+    header.write(getDateLine(System.currentTimeMillis()));
+    if (response.getRetryAfterSeconds() > 0) {
+      header.write(RETRY_AFTER);
+      writeDecimal(response.getRetryAfterSeconds());
+      header.write(CRLF);
+    }
+    if (response.variesByAcceptEncoding()) {
+      header.write(VARY);
+    }
+    // A 304 never has a body, so it describes the body the client already has or nothing at all.
+    if (response.getResponseCode() != Http.ResponseCode.NOT_MODIFIED) {
+      header.write(CONTENT_TYPES[response.getContentType().ordinal()]);
+      if (response.getContentEncoding() != Http.ContentEncoding.IDENTITY) {
+        header.write(CONTENT_ENCODINGS[response.getContentEncoding().ordinal()]);
+      }
+      if (streamingBody == null) {
+        header.write(CONTENT_LENGTH);
+        writeDecimal(response.getBodyLength());
+        header.write(CRLF);
+      } else if (chunked) {
+        header.write(CHUNKED);
+      }
+    }
+    header.write(keepAlive ? KEEP_ALIVE : CLOSE);
+
+    buffers[0] = ByteBuffer.wrap(header.array(), /* offset = */ 0, header.size());
+    buffers[1] = ByteBuffer.wrap(response.getBody(), /* offset = */ 0, response.getBodyLength());
+    buffers[2] = EMPTY;
+    return buffers;
+  }
+
+  /**
+   * Encodes the next piece of the streaming body, returning the buffers to write, or null if the
+   * response has been completely encoded.
+   */
+  ByteBuffer @Nullable [] encodeNext() throws IOException {
+    if (streamingBody == null) {
+      return null;
+    }
+    chunk.reset();
+    boolean hasMore;
+    try {
+      hasMore = streamingBody.writeNext(chunk);
+    } catch (RuntimeException e) {
+      // The header has gone out already, all that can be done is to cut the body short.
+      throw new IOException("couldn't produce response body", e);
+    }
+    if (!hasMore) {
+      streamingBody = null;
+    }
+
+    buffers[1] = ByteBuffer.wrap(chunk.array(), /* offset = */ 0, chunk.size());
+    if (!chunked) {
+      buffers[0] = EMPTY;
+      buffers[2] = EMPTY;
+    } else if (chunk.size() == 0) {
+      // A zero size chunk would end the body, so only send one when it really has ended.
+      buffers[0] = EMPTY;
+      buffers[2] = hasMore ? EMPTY : ByteBuffer.wrap(LAST_CHUNK);
+    } else {
+      header.reset();
+      header.write(ascii(Integer.toHexString(chunk.size())));
+      header.write(CRLF);
+      buffers[0] = ByteBuffer.wrap(header.array(), /* offset = */ 0, header.size());
+      buffers[2] = ByteBuffer.wrap(hasMore ? CRLF : CRLF_LAST_CHUNK);
+    }
+    return buffers;
+  }
+
+  /** Whether the response being written has pieces of streaming body left to encode. */
+  boolean hasStreamingBody() {
+    return streamingBody != null;
+  }
+
+  /** Whether any of {@code buffers} still has bytes to write. */
+  static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Writes {@code response} to a blocking channel, returning once it has all been written. */
+  void write(HttpResponse response, boolean keepAlive, GatheringByteChannel channel)
+      throws IOException {
+    ByteBuffer[] buffers = encode(response, keepAlive);
+    do {
+      while (hasRemaining(buffers)) {
+        channel.write(buffers);
+      }
+    } while ((buffers = encodeNext()) != null);
+  }
+
+  /** Writes {@code response} to a stream, for sockets that don't have a channel. */
+  void write(HttpResponse response, boolean keepAlive, OutputStream out) throws IOException {
+    encode(response, keepAlive);
+    if (response.getBodyLength() <= MAX_COPIED_BODY_BYTES) {
+      header.write(response.getBody(), /* offset = */ 0, response.getBodyLength());
+      out.write(header.array(), /* offset = */ 0, header.size());
+    } else {
+      out.write(header.array(), /* offset = */ 0, header.size());
+      out.write(response.getBody(), /* offset = */ 0, response.getBodyLength());
+    }
+    ByteBuffer[] buffers;
+    while ((buffers = encodeNext()) != null) {
+      for (ByteBuffer buffer : buffers) {
+        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      }
+    }
+    out.flush();
+  }
+
+  private void writeLine(byte[] name, String value) {
+    header.write(name);
+    // Header values are ASCII, anything else couldn't be sent anyway.
+    header.write(value.getBytes(StandardCharsets.ISO_8859_1));
+    header.write(CRLF);
+  }
+
+  private void writeCookies(Map<String, String> cookies) {
+    // Cookies should set Expires=old-date per rfc2109. Expire cookies after 30 days.
+    String attributes = String.format("; Expires=%s; Max-Age=%d\r\n",
+        HTTP_FORMATTER.format(ZonedDateTime.now(ZoneOffset.UTC).minusYears(1)),
+        TimeUnit.DAYS.toSeconds(30));
+    for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+      header.write(ascii("Set-Cookie: " + cookie.getKey() + "=" + cookie.getValue() + attributes));
+    }
+  }
+
+  private void writeDecimal(int value) {
+    if (value >= 10) {
+      writeDecimal(value / 10);
+    }
+    header.write('0' + value % 10);
+  }
+
+  /** The Date header line for {@code nowMs}, formatted again only when the second changes. */
+  private static byte[] getDateLine(long nowMs) {
+    long second = nowMs / 1000;
+    DateLine cached = dateLine;
+    if (cached.second != second) {
+      // Racing threads may both format the line, which is harmless.
+      cached = new DateLine(second, ascii("Date: "
+          + HTTP_FORMATTER.format(Instant.ofEpochSecond(second).atZone(ZoneOffset.UTC))
+          + "\r\n"));
+      dateLine = cached;
+    }
+    return cached.bytes;
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static class DateLine {
+    private final long second;
+    private final byte[] bytes;
+
+    private DateLine(long second, byte[] bytes) {
+      this.second = second;
+      this.bytes = bytes;
+    }
+  }
+}
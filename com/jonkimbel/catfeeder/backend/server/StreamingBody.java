@@ -0,0 +1,16 @@
+package com.jonkimbel.catfeeder.backend.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A response body produced a piece at a time, so it never has to be held in memory whole.
+ *
+ * <p>The server asks for the next piece once the previous one has been sent, and sends each piece
+ * as a chunk to HTTP/1.1 clients. Pieces should be small, tens of kilobytes at most, since the
+ * server holds the whole piece while sending it.
+ */
+public interface StreamingBody {
+  /** Writes the next piece of the body to {@code out}. Returns false once the body is complete. */
+  boolean writeNext(OutputStream out) throws IOException;
+}
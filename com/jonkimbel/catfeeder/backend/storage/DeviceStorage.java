@@ -0,0 +1,172 @@
+package com.jonkimbel.catfeeder.backend.storage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.UnaryOperator;
+
+import com.jonkimbel.catfeeder.backend.metrics.Histogram;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
+import com.jonkimbel.catfeeder.backend.storage.serializer.PreferencesSerializer;
+import com.jonkimbel.catfeeder.backend.storage.serializer.Serializer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Like {@link Storage}, but keeps a separate copy of each item for every device.
+ *
+ * <p>Devices are spread over a fixed number of shards, each with its own directory on disk, its
+ * own cache and its own set of lock stripes, which are only taken to load an item from disk. Cached
+ * items are held as a {@link Snapshot} that {@link #update} compare-and-sets, so reads take no
+ * locks and concurrent updates never lose each other.
+ */
+public class DeviceStorage {
+  private static final int SHARD_COUNT = 16;
+  private static final int LOCK_STRIPES_PER_SHARD = 8;
+
+  public enum Item {
+    PREFERENCES("devices", ".binarypb", new PreferencesSerializer());
+
+    public final String directory;
+    public final String extension;
+    private final Serializer serializer;
+    private final Histogram writeLatency =
+        Metrics.INSTANCE.storageWriteLatency("device_files", name());
+
+    Item(String directory, String extension, Serializer serializer) {
+      this.directory = directory;
+      this.extension = extension;
+      this.serializer = serializer;
+    }
+  }
+
+  private static final DeviceStorage storage = new DeviceStorage();
+
+  private final Shard[] shards = new Shard[SHARD_COUNT];
+  private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+  /** Called with a device's item and its new snapshot each time the item changes. */
+  public interface ChangeListener {
+    void onChanged(Item item, String deviceId, Snapshot snapshot);
+  }
+
+  private DeviceStorage() {
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(i);
+    }
+  }
+
+  public static DeviceStorage getStorage() {
+    return storage;
+  }
+
+  @Nullable
+  public Object getItemBlocking(Item item, String deviceId) {
+    return getSnapshot(item, deviceId).value;
+  }
+
+  public Snapshot getSnapshot(Item item, String deviceId) {
+    return shardFor(deviceId).get(item, deviceId).get();
+  }
+
+  /** Listeners run on the thread that made the change. */
+  public void addChangeListener(ChangeListener listener) {
+    changeListeners.add(listener);
+  }
+
+  /**
+   * Replaces the device's item with what {@code update} returns for its current value, and returns
+   * the new value. {@code update} is called again if another update gets in first, so it mustn't
+   * have side effects. Nothing is written if it returns the value it was given.
+   */
+  @Nullable
+  public Object update(Item item, String deviceId, UnaryOperator<Object> update) {
+    long startNanos = System.nanoTime();
+    Shard shard = shardFor(deviceId);
+    VersionedItem cachedItem = shard.get(item, deviceId);
+    @Nullable Snapshot newSnapshot = cachedItem.update(update);
+    if (newSnapshot == null) {
+      return cachedItem.get().value;
+    }
+    cachedItem.writeLatest(shard.filename(item, deviceId), item.serializer);
+    item.writeLatency.recordSince(startNanos);
+    for (ChangeListener listener : changeListeners) {
+      listener.onChanged(item, deviceId, newSnapshot);
+    }
+    return newSnapshot.value;
+  }
+
+  private Shard shardFor(String deviceId) {
+    return shards[Math.floorMod(spread(deviceId.hashCode()), SHARD_COUNT)];
+  }
+
+  // String.hashCode() is weak in its low bits for short, similar IDs, so mix the high bits in.
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static class Shard {
+    private final int index;
+    private final Map<CacheKey, VersionedItem> cache = new ConcurrentHashMap<>();
+    private final Object[] lockStripes = new Object[LOCK_STRIPES_PER_SHARD];
+
+    private Shard(int index) {
+      this.index = index;
+      for (int i = 0; i < lockStripes.length; i++) {
+        lockStripes[i] = new Object();
+      }
+    }
+
+    private VersionedItem get(Item item, String deviceId) {
+      CacheKey key = new CacheKey(item, deviceId);
+      VersionedItem cachedItem = cache.get(key);
+      if (cachedItem != null) {
+        return cachedItem;
+      }
+
+      synchronized (lockFor(deviceId)) {
+        // Another thread may have loaded the item while we waited for the lock.
+        cachedItem = cache.get(key);
+        if (cachedItem != null) {
+          return cachedItem;
+        }
+        cachedItem = new VersionedItem(item.serializer.deserialize(filename(item, deviceId)));
+        cache.put(key, cachedItem);
+        return cachedItem;
+      }
+    }
+
+    private Object lockFor(String deviceId) {
+      // Use different hash bits than shard selection did, so a shard's stripes all get used.
+      return lockStripes[Math.floorMod(deviceId.hashCode() >>> 8, LOCK_STRIPES_PER_SHARD)];
+    }
+
+    private String filename(Item item, String deviceId) {
+      return String.format("%s/shard-%02d/%s%s", item.directory, index, deviceId, item.extension);
+    }
+  }
+
+  private static class CacheKey {
+    private final Item item;
+    private final String deviceId;
+
+    private CacheKey(Item item, String deviceId) {
+      this.item = item;
+      this.deviceId = deviceId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey otherKey = (CacheKey) other;
+      return item == otherKey.item && deviceId.equals(otherKey.deviceId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * item.hashCode() + deviceId.hashCode();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.jonkimbel.catfeeder.backend.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.jonkimbel.catfeeder.backend.log.Log;
+import com.jonkimbel.catfeeder.backend.storage.serializer.Serializer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Writes items to disk on behalf of {@link Storage} and {@link DeviceStorage}.
+ *
+ * <p>By default every write goes straight to disk on the calling thread. Once write-behind is
+ * enabled, writes only record the newest value for each file and a background thread flushes them
+ * periodically, so a burst of updates to the same file costs a single write and callers never wait
+ * on the disk.
+ */
+public class DiskWriter {
+  private static final DiskWriter diskWriter = new DiskWriter();
+
+  // The newest value waiting to be written to each file. Only used in write-behind mode.
+  private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+  // Held while flushing, so flushes from different threads can't reorder writes to a file.
+  private final Object flushLock = new Object();
+
+  @Nullable private volatile ScheduledExecutorService flushExecutor;
+
+  private DiskWriter() {}
+
+  public static DiskWriter getDiskWriter() {
+    return diskWriter;
+  }
+
+  /** Switches to write-behind mode, flushing pending writes every {@code flushIntervalMs}. */
+  public synchronized void enableWriteBehind(long flushIntervalMs) {
+    if (flushExecutor != null) {
+      throw new IllegalStateException("write-behind is already enabled");
+    }
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "DiskWriter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(
+        this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    flushExecutor = executor;
+  }
+
+  /**
+   * Writes {@code value} to {@code filename}, or queues it in write-behind mode. Callers must not
+   * write the same file from two threads at once, see {@link VersionedItem#writeLatest}; writes to
+   * different files never wait on each other.
+   */
+  void write(String filename, Serializer serializer, Object value) {
+    if (flushExecutor == null) {
+      try {
+        serializer.serialize(filename, value);
+      } catch (IOException e) {
+        // The value is still served from memory, and the next update of the item writes it again.
+        Log.error("couldn't write %s: %s", filename, e);
+      }
+      return;
+    }
+    // Replacing an earlier pending value is what merges bursts of writes into one.
+    pendingWrites.put(filename, new PendingWrite(serializer, value));
+  }
+
+  /**
+   * Blocks until every write made before this call is on disk, or has failed and been queued again
+   * for the next flush. Call before shutting down.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      for (Map.Entry<String, PendingWrite> entry : pendingWrites.entrySet()) {
+        PendingWrite pendingWrite = entry.getValue();
+        // If a newer value arrives while we're writing this one, it stays pending for next time.
+        if (pendingWrites.remove(entry.getKey(), pendingWrite)) {
+          try {
+            pendingWrite.serializer.serialize(entry.getKey(), pendingWrite.value);
+          } catch (IOException | RuntimeException e) {
+            // Retry on the next flush, unless a newer value has replaced this one. Other files
+            // are still written.
+            pendingWrites.putIfAbsent(entry.getKey(), pendingWrite);
+            Log.error("couldn't write %s, will retry: %s", entry.getKey(), e);
+          }
+        }
+      }
+    }
+  }
+
+  private static class PendingWrite {
+    private final Serializer serializer;
+    private final Object value;
+
+    private PendingWrite(Serializer serializer, Object value) {
+      this.serializer = serializer;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,475 @@
+package com.jonkimbel.catfeeder.backend.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jonkimbel.catfeeder.backend.storage.serializer.LibraryDirectory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Append-only log of everything that happens to every device: feedings, check-ins and feeding
+ * schedule changes.
+ *
+ * <p>Events are fixed-size records in memory-mapped segment files. Appending writes one record
+ * into the mapped segment, and a new segment is started when the current one is full, so history
+ * is never rewritten or thrown away. Reading a range of history is a sequential walk over the
+ * mapped segments.
+ *
+ * <p>Appends don't take a lock. Each one reserves its record's slot in the segment with an atomic
+ * counter and writes the record's type last, with release semantics, so readers skip a record
+ * that's still being written. Only starting a new segment and numbering a new device are locked.
+ * The appender that finishes a segment's last record forces it to disk, outside any lock.
+ *
+ * <p>A small tail of recent events is kept in memory for each device, so the common questions
+ * ("when did it last check in?", "what were the last ten feedings?") never touch the segments.
+ * The tails are rebuilt with one sequential pass over the log at startup.
+ *
+ * <p>The devices the log has numbered are the devices the backend knows. At most
+ * {@link #setMaxDevices maxDevices} are numbered, so a client inventing device IDs can't grow the
+ * log's per-device state, or anything else kept per device, without limit.
+ */
+public class EventLog {
+  private static final String DIRECTORY = "events";
+  private static final String DEVICES_FILENAME = "devices.txt";
+
+  // Record layout: time (8 bytes), device number (4), event type (4), value (8).
+  private static final int RECORD_BYTES = 24;
+  private static final int TIME_OFFSET = 0;
+  private static final int DEVICE_OFFSET = 8;
+  private static final int TYPE_OFFSET = 12;
+  private static final int VALUE_OFFSET = 16;
+  private static final int RECORDS_PER_SEGMENT = 64 * 1024;
+  // Reads and writes a record's type with memory ordering, see Segment#tryAppend. Mapped buffers
+  // are big-endian, like their getInt and putInt.
+  private static final VarHandle TYPE_CODES =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+  // How many feedings each device's tail remembers.
+  private static final int TAIL_FEEDINGS = 32;
+  private static final int DEFAULT_MAX_DEVICES = 1024;
+
+  public enum Type {
+    // Value: unused.
+    FEEDING(1),
+    // Value: unused.
+    CHECK_IN(2),
+    // Value: the new FeedingSchedule's number.
+    FEEDING_SCHEDULE_CHANGE(3);
+
+    // Never zero, zero marks space in a segment that hasn't been written yet.
+    private final int code;
+
+    Type(int code) {
+      this.code = code;
+    }
+
+    @Nullable
+    private static Type fromCode(int code) {
+      for (Type type : values()) {
+        if (type.code == code) {
+          return type;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Receives events from {@link #scan}. */
+  public interface Visitor {
+    void visit(Type type, long timeMsSinceEpoch, long value);
+  }
+
+  @Nullable private static EventLog eventLog;
+
+  private final Path directory;
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  // Devices are numbered in the order they first appear, that number is what records store.
+  private final Map<String, Integer> deviceNumbers = new ConcurrentHashMap<>();
+  private final Map<Integer, Tail> tails = new ConcurrentHashMap<>();
+  private final Object segmentLock = new Object();
+  private final Object deviceLock = new Object();
+  private volatile int maxDevices = DEFAULT_MAX_DEVICES;
+
+  private EventLog(Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+
+    Path devicesFile = directory.resolve(DEVICES_FILENAME);
+    if (Files.exists(devicesFile)) {
+      for (String deviceId : Files.readAllLines(devicesFile, StandardCharsets.UTF_8)) {
+        if (!deviceId.isEmpty()) {
+          deviceNumbers.put(deviceId, deviceNumbers.size());
+        }
+      }
+    }
+
+    for (int index = 0; Files.exists(segmentPath(index)); index++) {
+      segments.add(new Segment(segmentPath(index)));
+    }
+    if (segments.isEmpty()) {
+      segments.add(new Segment(segmentPath(0)));
+    }
+
+    for (Segment segment : segments) {
+      for (int record = 0; record < segment.getRecordCount(); record++) {
+        int offset = record * RECORD_BYTES;
+        int typeCode = segment.getTypeCode(offset);
+        if (typeCode == 0) {
+          // Never finished before the backend stopped.
+          continue;
+        }
+        tails.computeIfAbsent(segment.buffer.getInt(offset + DEVICE_OFFSET), number -> new Tail())
+            .add(typeCode, segment.buffer.getLong(offset + TIME_OFFSET));
+      }
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread(this::force, "EventLogShutdownForce"));
+  }
+
+  public static synchronized EventLog getEventLog() {
+    if (eventLog == null) {
+      try {
+        eventLog = new EventLog(LibraryDirectory.get().resolve(DIRECTORY));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (URISyntaxException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return eventLog;
+  }
+
+  public void append(String deviceId, Type type, long timeMsSinceEpoch, long value) {
+    int deviceNumber = getOrAddDeviceNumber(deviceId);
+
+    Segment segment = segments.get(segments.size() - 1);
+    while (!segment.tryAppend(timeMsSinceEpoch, deviceNumber, type.code, value)) {
+      segment = startSegmentAfter(segment);
+    }
+
+    tails.computeIfAbsent(deviceNumber, number -> new Tail()).add(type.code, timeMsSinceEpoch);
+  }
+
+  /** Sets how many devices may be numbered. Devices numbered already are kept regardless. */
+  public void setMaxDevices(int maxDevices) {
+    if (maxDevices < 1) {
+      throw new IllegalArgumentException("maxDevices must be at least 1");
+    }
+    this.maxDevices = maxDevices;
+  }
+
+  /** Whether the device has been numbered, see {@link #tryAddDevice}. */
+  public boolean hasDevice(String deviceId) {
+    return deviceNumbers.containsKey(deviceId);
+  }
+
+  /**
+   * Numbers the device so events can be logged for it, unless the log already has its maximum
+   * number of devices. Returns whether the device is numbered.
+   */
+  public boolean tryAddDevice(String deviceId) {
+    return hasDevice(deviceId) || addDevice(deviceId) != null;
+  }
+
+  /** Whether anything has ever been logged for the device. */
+  public boolean hasEvents(String deviceId) {
+    return getTail(deviceId) != null;
+  }
+
+  /** The time of the device's most recent event of the given type, or null if there is none. */
+  @Nullable
+  public Long getLastTime(String deviceId, Type type) {
+    @Nullable Tail tail = getTail(deviceId);
+    return tail == null ? null : tail.getLastTime(type.code);
+  }
+
+  /** Up to {@code count} of the device's most recent feeding times, most recent first. */
+  public List<Long> getLastFeedings(String deviceId, int count) {
+    @Nullable Tail tail = getTail(deviceId);
+    if (tail == null) {
+      return new ArrayList<>();
+    }
+    if (count <= TAIL_FEEDINGS) {
+      return tail.getLastFeedings(count);
+    }
+
+    List<Long> feedings = new ArrayList<>();
+    scan(deviceId, Long.MIN_VALUE, Long.MAX_VALUE, (type, timeMsSinceEpoch, value) -> {
+      if (type == Type.FEEDING) {
+        feedings.add(timeMsSinceEpoch);
+      }
+    });
+    List<Long> lastFeedings = new ArrayList<>(count);
+    for (int i = feedings.size() - 1; i >= 0 && lastFeedings.size() < count; i--) {
+      lastFeedings.add(feedings.get(i));
+    }
+    return lastFeedings;
+  }
+
+  /**
+   * Passes each of the device's events from {@code startMsSinceEpoch} (inclusive) to
+   * {@code endMsSinceEpoch} (exclusive) to {@code visitor}, in the order they were logged.
+   */
+  public void scan(String deviceId, long startMsSinceEpoch, long endMsSinceEpoch,
+      Visitor visitor) {
+    cursor(deviceId, startMsSinceEpoch, endMsSinceEpoch).next(Integer.MAX_VALUE, visitor);
+  }
+
+  /**
+   * Returns a cursor over the same events as {@link #scan}, for reading them a batch at a time
+   * without holding them all.
+   */
+  public Cursor cursor(String deviceId, long startMsSinceEpoch, long endMsSinceEpoch) {
+    return new Cursor(deviceNumbers.get(deviceId), startMsSinceEpoch, endMsSinceEpoch);
+  }
+
+  /** Where a read of one device's events has got to. Not thread safe. */
+  public class Cursor {
+    @Nullable private final Integer deviceNumber;
+    private final long startMsSinceEpoch;
+    private final long endMsSinceEpoch;
+    private int segmentIndex;
+    private int record;
+
+    private Cursor(@Nullable Integer deviceNumber, long startMsSinceEpoch, long endMsSinceEpoch) {
+      this.deviceNumber = deviceNumber;
+      this.startMsSinceEpoch = startMsSinceEpoch;
+      this.endMsSinceEpoch = endMsSinceEpoch;
+    }
+
+    /**
+     * Passes up to {@code maxEvents} more events to {@code visitor}. Returns false once there are
+     * no more events to read.
+     */
+    public boolean next(int maxEvents, Visitor visitor) {
+      if (deviceNumber == null) {
+        return false;
+      }
+
+      int visited = 0;
+      for (; segmentIndex < segments.size(); segmentIndex++, record = 0) {
+        Segment segment = segments.get(segmentIndex);
+        int recordCount = segment.getRecordCount();
+        if (recordCount == 0 || segment.maxTimeMs.get() < startMsSinceEpoch
+            || segment.minTimeMs.get() >= endMsSinceEpoch) {
+          continue;
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        for (; record < recordCount; record++) {
+          if (visited == maxEvents) {
+            return true;
+          }
+          int offset = record * RECORD_BYTES;
+          // Read first, the rest of a record is only complete once its type is set.
+          int typeCode = segment.getTypeCode(offset);
+          if (typeCode == 0 || buffer.getInt(offset + DEVICE_OFFSET) != deviceNumber) {
+            continue;
+          }
+          long timeMsSinceEpoch = buffer.getLong(offset + TIME_OFFSET);
+          @Nullable Type type = Type.fromCode(typeCode);
+          if (type != null && timeMsSinceEpoch >= startMsSinceEpoch
+              && timeMsSinceEpoch < endMsSinceEpoch) {
+            visitor.visit(type, timeMsSinceEpoch, buffer.getLong(offset + VALUE_OFFSET));
+            visited++;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Forces the newest segment to disk. Call before shutting down. Full segments are forced as
+   * they fill up.
+   */
+  public void force() {
+    segments.get(segments.size() - 1).buffer.force();
+  }
+
+  /** Returns the segment after {@code full}, starting it if nobody else has yet. */
+  private Segment startSegmentAfter(Segment full) {
+    synchronized (segmentLock) {
+      Segment newest = segments.get(segments.size() - 1);
+      if (newest != full) {
+        return newest;
+      }
+      try {
+        newest = new Segment(segmentPath(segments.size()));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      segments.add(newest);
+      return newest;
+    }
+  }
+
+  @Nullable
+  private Tail getTail(String deviceId) {
+    @Nullable Integer deviceNumber = deviceNumbers.get(deviceId);
+    return deviceNumber == null ? null : tails.get(deviceNumber);
+  }
+
+  private int getOrAddDeviceNumber(String deviceId) {
+    @Nullable Integer deviceNumber = deviceNumbers.get(deviceId);
+    if (deviceNumber == null) {
+      deviceNumber = addDevice(deviceId);
+    }
+    if (deviceNumber == null) {
+      throw new IllegalStateException("too many devices to log events for " + deviceId);
+    }
+    return deviceNumber;
+  }
+
+  /** Numbers the device, returning null if there are too many devices already. */
+  @Nullable
+  private Integer addDevice(String deviceId) {
+    synchronized (deviceLock) {
+      // Another append may have numbered the device while we waited for the lock.
+      @Nullable Integer deviceNumber = deviceNumbers.get(deviceId);
+      if (deviceNumber != null) {
+        return deviceNumber;
+      }
+      if (deviceNumbers.size() >= maxDevices) {
+        return null;
+      }
+      // Write the device down before any record refers to it.
+      try {
+        Files.write(directory.resolve(DEVICES_FILENAME),
+            (deviceId + "\n").getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      int newDeviceNumber = deviceNumbers.size();
+      deviceNumbers.put(deviceId, newDeviceNumber);
+      return newDeviceNumber;
+    }
+  }
+
+  private Path segmentPath(int index) {
+    return directory.resolve(String.format("segment-%06d.log", index));
+  }
+
+  private static class Segment {
+    private final MappedByteBuffer buffer;
+    // The next slot to hand out. Runs past the end once the segment is full.
+    private final AtomicInteger reservedRecords;
+    // How many slots have been written, so whoever writes the last one knows to force the segment.
+    private final AtomicInteger writtenRecords;
+    private final AtomicLong minTimeMs = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxTimeMs = new AtomicLong(Long.MIN_VALUE);
+
+    private Segment(Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path,
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        buffer = channel.map(
+            FileChannel.MapMode.READ_WRITE, 0, (long) RECORDS_PER_SEGMENT * RECORD_BYTES);
+      }
+
+      // Appends finish out of order, so a crash can leave unwritten slots before the last
+      // written one. They're skipped when reading and never reused.
+      int recordCount = RECORDS_PER_SEGMENT;
+      while (recordCount > 0 && getTypeCode((recordCount - 1) * RECORD_BYTES) == 0) {
+        recordCount--;
+      }
+      for (int record = 0; record < recordCount; record++) {
+        if (getTypeCode(record * RECORD_BYTES) != 0) {
+          updateTimeRange(buffer.getLong(record * RECORD_BYTES + TIME_OFFSET));
+        }
+      }
+      reservedRecords = new AtomicInteger(recordCount);
+      writtenRecords = new AtomicInteger(recordCount);
+    }
+
+    /** How many slots have been handed out. Some may still be being written. */
+    private int getRecordCount() {
+      return Math.min(reservedRecords.get(), RECORDS_PER_SEGMENT);
+    }
+
+    /** The type of the record at {@code offset}, or 0 if it hasn't been written yet. */
+    private int getTypeCode(int offset) {
+      return (int) TYPE_CODES.getAcquire(buffer, offset + TYPE_OFFSET);
+    }
+
+    /** Appends a record, or returns false if the segment is full. */
+    private boolean tryAppend(long timeMsSinceEpoch, int deviceNumber, int typeCode, long value) {
+      int record = reservedRecords.getAndIncrement();
+      if (record >= RECORDS_PER_SEGMENT) {
+        return false;
+      }
+      int offset = record * RECORD_BYTES;
+      buffer.putLong(offset + TIME_OFFSET, timeMsSinceEpoch);
+      buffer.putInt(offset + DEVICE_OFFSET, deviceNumber);
+      buffer.putLong(offset + VALUE_OFFSET, value);
+      updateTimeRange(timeMsSinceEpoch);
+      // The type goes last, a record with a type is a complete record.
+      TYPE_CODES.setRelease(buffer, offset + TYPE_OFFSET, typeCode);
+
+      if (writtenRecords.incrementAndGet() == RECORDS_PER_SEGMENT) {
+        buffer.force();
+      }
+      return true;
+    }
+
+    private void updateTimeRange(long timeMsSinceEpoch) {
+      // Times mostly only go up, so usually neither needs writing.
+      if (timeMsSinceEpoch < minTimeMs.get()) {
+        minTimeMs.accumulateAndGet(timeMsSinceEpoch, Math::min);
+      }
+      if (timeMsSinceEpoch > maxTimeMs.get()) {
+        maxTimeMs.accumulateAndGet(timeMsSinceEpoch, Math::max);
+      }
+    }
+  }
+
+  /** The recent events of one device. */
+  private static class Tail {
+    private final long[] feedings = new long[TAIL_FEEDINGS];
+    private int feedingCount;
+    // Index in feedings of the most recent feeding.
+    private int newestFeeding = -1;
+    private final Map<Integer, Long> lastTimes = new ConcurrentHashMap<>();
+
+    private synchronized void add(int typeCode, long timeMsSinceEpoch) {
+      // Concurrent appends for one device may get here out of order.
+      lastTimes.merge(typeCode, timeMsSinceEpoch, Math::max);
+      if (typeCode == Type.FEEDING.code) {
+        newestFeeding = (newestFeeding + 1) % TAIL_FEEDINGS;
+        feedings[newestFeeding] = timeMsSinceEpoch;
+        feedingCount = Math.min(feedingCount + 1, TAIL_FEEDINGS);
+      }
+    }
+
+    @Nullable
+    private Long getLastTime(int typeCode) {
+      return lastTimes.get(typeCode);
+    }
+
+    private synchronized List<Long> getLastFeedings(int count) {
+      int resultCount = Math.min(count, feedingCount);
+      List<Long> lastFeedings = new ArrayList<>(resultCount);
+      for (int i = 0; i < resultCount; i++) {
+        lastFeedings.add(feedings[Math.floorMod(newestFeeding - i, TAIL_FEEDINGS)]);
+      }
+      return lastFeedings;
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package com.jonkimbel.catfeeder.backend.storage;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A stored item's value at one point in time. Values are never modified once stored, updates
+ * replace the whole snapshot with one that has a higher version.
+ */
+public final class Snapshot {
+  @Nullable public final Object value;
+  /** Counts the item's updates since it was loaded. Versions restart when the backend does. */
+  public final long version;
+
+  Snapshot(@Nullable Object value, long version) {
+    this.value = value;
+    this.version = version;
+  }
+}
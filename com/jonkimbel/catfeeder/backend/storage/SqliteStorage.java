@@ -0,0 +1,229 @@
+package com.jonkimbel.catfeeder.backend.storage;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import com.jonkimbel.catfeeder.backend.metrics.Histogram;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
+import com.jonkimbel.catfeeder.backend.storage.serializer.LibraryDirectory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Stores every device's {@link Preferences} in a SQLite database instead of one file per device.
+ *
+ * <p>Only settings are stored, one row per device, and a row is only written when they change.
+ * Check-in and feeding history lives in the {@link EventLog}.
+ *
+ * <p>The database runs in WAL mode so readers never wait on the writer. Connections are pooled
+ * and each one keeps its prepared statements.
+ */
+public class SqliteStorage {
+  private static final String DATABASE_FILENAME = "catfeeder.db";
+  private static final int POOL_SIZE = 4;
+  private static final int LOCK_STRIPES = 32;
+  private static final Histogram WRITE_LATENCY =
+      Metrics.INSTANCE.storageWriteLatency("sqlite", "PREFERENCES");
+
+  private static final String SCHEMA =
+      "CREATE TABLE IF NOT EXISTS preferences ("
+          + "device_id TEXT PRIMARY KEY, preferences BLOB NOT NULL) WITHOUT ROWID";
+
+  private static final String SELECT_PREFERENCES =
+      "SELECT preferences FROM preferences WHERE device_id = ?";
+  private static final String UPSERT_PREFERENCES =
+      "INSERT OR REPLACE INTO preferences (device_id, preferences) VALUES (?, ?)";
+
+  @Nullable private static SqliteStorage storage;
+
+  private final BlockingQueue<PooledConnection> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+  // SQLite only allows one writer at a time. Queueing writers here is cheaper than having them
+  // spin on SQLITE_BUSY.
+  private final Object writeLock = new Object();
+  private final Object[] deviceLocks = new Object[LOCK_STRIPES];
+  private final Map<String, Preferences> cache = new ConcurrentHashMap<>();
+
+  private SqliteStorage(String url) throws SQLException {
+    for (int i = 0; i < deviceLocks.length; i++) {
+      deviceLocks[i] = new Object();
+    }
+    for (int i = 0; i < POOL_SIZE; i++) {
+      pool.add(new PooledConnection(DriverManager.getConnection(url)));
+    }
+
+    PooledConnection connection = borrow();
+    try (Statement statement = connection.connection.createStatement()) {
+      statement.execute(SCHEMA);
+    } finally {
+      pool.add(connection);
+    }
+  }
+
+  /** Opens the database next to the backend, creating it if needed. */
+  public static synchronized SqliteStorage getStorage() {
+    if (storage == null) {
+      try {
+        storage = new SqliteStorage(
+            "jdbc:sqlite:" + LibraryDirectory.get().resolve(DATABASE_FILENAME));
+      } catch (SQLException | URISyntaxException e) {
+        throw new IllegalStateException("couldn't open " + DATABASE_FILENAME, e);
+      }
+    }
+    return storage;
+  }
+
+  /** Returns the device's preferences, or null if the database has never seen the device. */
+  @Nullable
+  public Preferences getPreferences(String deviceId) {
+    Preferences cachedPreferences = cache.get(deviceId);
+    if (cachedPreferences != null) {
+      return cachedPreferences;
+    }
+
+    synchronized (lockFor(deviceId)) {
+      // Another thread may have loaded the device while we waited for the lock.
+      cachedPreferences = cache.get(deviceId);
+      if (cachedPreferences != null) {
+        return cachedPreferences;
+      }
+      Preferences preferences = load(deviceId);
+      if (preferences != null) {
+        cache.put(deviceId, preferences);
+      }
+      return preferences;
+    }
+  }
+
+  /** Saves the device's preferences, if their settings changed. History is not stored. */
+  public void setPreferences(String deviceId, Preferences preferences) {
+    long startNanos = System.nanoTime();
+    synchronized (lockFor(deviceId)) {
+      @Nullable Preferences oldPreferences = getPreferences(deviceId);
+      cache.put(deviceId, preferences);
+
+      Preferences settings = settingsOnly(preferences);
+      if (oldPreferences == null || !settings.equals(settingsOnly(oldPreferences))) {
+        write(deviceId, settings);
+      }
+    }
+    WRITE_LATENCY.recordSince(startNanos);
+  }
+
+  /**
+   * Replaces the device's preferences with what {@code update} returns for them, and returns the
+   * new preferences, or null if {@code update} returned the preferences it was given. A device the
+   * database has never seen starts from {@code initialPreferences}. The update runs without the
+   * device's lock and is called again if another write gets in first, so it mustn't have side
+   * effects.
+   */
+  @Nullable
+  public Preferences updatePreferences(String deviceId, Supplier<Preferences> initialPreferences,
+      UnaryOperator<Preferences> update) {
+    while (true) {
+      @Nullable Preferences storedPreferences = getPreferences(deviceId);
+      Preferences oldPreferences =
+          storedPreferences != null ? storedPreferences : initialPreferences.get();
+      Preferences newPreferences = update.apply(oldPreferences);
+      if (newPreferences == oldPreferences) {
+        return null;
+      }
+      synchronized (lockFor(deviceId)) {
+        // SQLite serializes the write anyway, only the check needs to be atomic with it.
+        if (cache.get(deviceId) == storedPreferences) {
+          setPreferences(deviceId, newPreferences);
+          return newPreferences;
+        }
+      }
+    }
+  }
+
+  @Nullable
+  private Preferences load(String deviceId) {
+    PooledConnection connection = borrow();
+    try {
+      PreparedStatement selectPreferences = connection.prepare(SELECT_PREFERENCES);
+      selectPreferences.setString(1, deviceId);
+      try (ResultSet result = selectPreferences.executeQuery()) {
+        return result.next() ? Preferences.parseFrom(result.getBytes(1)) : null;
+      }
+    } catch (SQLException | IOException e) {
+      throw new IllegalStateException("couldn't read preferences for " + deviceId, e);
+    } finally {
+      pool.add(connection);
+    }
+  }
+
+  private void write(String deviceId, Preferences settings) {
+    synchronized (writeLock) {
+      PooledConnection connection = borrow();
+      try {
+        PreparedStatement upsert = connection.prepare(UPSERT_PREFERENCES);
+        upsert.setString(1, deviceId);
+        upsert.setBytes(2, settings.toByteArray());
+        upsert.executeUpdate();
+      } catch (SQLException e) {
+        throw new IllegalStateException("couldn't write preferences for " + deviceId, e);
+      } finally {
+        pool.add(connection);
+      }
+    }
+  }
+
+  /** The parts of {@code preferences} that are stored in the preferences table. */
+  private static Preferences settingsOnly(Preferences preferences) {
+    Preferences.Builder builder = preferences.toBuilder().clearLastPhotonCheckInMsSinceEpoch();
+    builder.getFeedingPreferencesBuilder().clearLastTenFeedingTimesMsSinceEpoch();
+    return builder.build();
+  }
+
+  private PooledConnection borrow() {
+    try {
+      return pool.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted waiting for a database connection", e);
+    }
+  }
+
+  private Object lockFor(String deviceId) {
+    return deviceLocks[Math.floorMod(deviceId.hashCode(), LOCK_STRIPES)];
+  }
+
+  /** A pooled connection and the statements prepared on it so far. */
+  private static class PooledConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    private PooledConnection(Connection connection) throws SQLException {
+      this.connection = connection;
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("PRAGMA journal_mode = WAL");
+        // WAL is still crash-safe with NORMAL, it just may lose the last commits on power loss.
+        statement.execute("PRAGMA synchronous = NORMAL");
+        statement.execute("PRAGMA busy_timeout = 5000");
+      }
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+  }
+}
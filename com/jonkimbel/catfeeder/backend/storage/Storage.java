@@ -1,13 +1,25 @@
 package com.jonkimbel.catfeeder.backend.storage;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
 
+import com.jonkimbel.catfeeder.backend.metrics.Histogram;
+import com.jonkimbel.catfeeder.backend.metrics.Metrics;
 import com.jonkimbel.catfeeder.backend.storage.serializer.StringSerializer;
 import com.jonkimbel.catfeeder.backend.storage.serializer.Serializer;
 import com.jonkimbel.catfeeder.backend.storage.serializer.PreferencesSerializer;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+/**
+ * Stores items that there's only one of, each in its own file.
+ *
+ * <p>Items are loaded once and then held as a {@link Snapshot} in memory. Reads take no locks, and
+ * {@link #update} compare-and-sets a new snapshot, so concurrent updates never lose each other.
+ */
 public class Storage {
   public enum Item {
     PREFERENCES("preferences.binarypb", new PreferencesSerializer()),
@@ -15,6 +27,7 @@ public class Storage {
 
     public final String filename;
     private final Serializer serializer;
+    private final Histogram writeLatency = Metrics.INSTANCE.storageWriteLatency("files", name());
 
     Item(String filename, Serializer serializer) {
       this.filename = filename;
@@ -22,38 +35,64 @@ public class Storage {
     }
   }
 
-  private static Storage storage = new Storage();
+  private static final Storage storage = new Storage();
 
-  private final Map<Item, Object> cache = new HashMap<>();
+  private final Map<Item, VersionedItem> cache = new ConcurrentHashMap<>();
+  private final List<BiConsumer<Item, Snapshot>> changeListeners = new CopyOnWriteArrayList<>();
 
   private Storage() {
   }
 
-  public static synchronized Storage getStorage() {
-    if (storage == null) {
-      storage = new Storage();
-    }
+  public static Storage getStorage() {
     return storage;
   }
 
   @Nullable
   public Object getItemBlocking(Item item) {
-    if (cache.containsKey(item)) {
-      return cache.get(item);
-    }
-
-    Object itemFromDisk = item.serializer.deserialize(item.filename);
+    return getSnapshot(item).value;
+  }
 
-    cache.put(item, itemFromDisk);
+  public Snapshot getSnapshot(Item item) {
+    return getCachedItem(item).get();
+  }
 
-    return itemFromDisk;
+  /**
+   * Has {@code listener} called with an item and its new snapshot each time the item changes.
+   * Listeners run on the thread that made the change.
+   */
+  public void addChangeListener(BiConsumer<Item, Snapshot> listener) {
+    changeListeners.add(listener);
   }
 
-  // TODO [V3]: synchronize to avoid race conditions.
-  // TODO [V3]: write to disk on background thread.
+  /**
+   * Replaces the item with what {@code update} returns for its current value, and returns the new
+   * value. {@code update} is called again if another update gets in first, so it mustn't have side
+   * effects. Nothing is written if it returns the value it was given. Otherwise the item is written
+   * to disk before this returns unless write-behind is enabled, see {@link DiskWriter}.
+   */
+  @Nullable
+  public Object update(Item item, UnaryOperator<Object> update) {
+    long startNanos = System.nanoTime();
+    VersionedItem cachedItem = getCachedItem(item);
+    @Nullable Snapshot newSnapshot = cachedItem.update(update);
+    if (newSnapshot == null) {
+      return cachedItem.get().value;
+    }
+    cachedItem.writeLatest(item.filename, item.serializer);
+    item.writeLatency.recordSince(startNanos);
+    for (BiConsumer<Item, Snapshot> listener : changeListeners) {
+      listener.accept(item, newSnapshot);
+    }
+    return newSnapshot.value;
+  }
 
-  public void setItemBlocking(Item item, Object value) {
-    cache.put(item, value);
-    item.serializer.serialize(item.filename, value);
+  private VersionedItem getCachedItem(Item item) {
+    VersionedItem cachedItem = cache.get(item);
+    if (cachedItem != null) {
+      return cachedItem;
+    }
+    // Only the first reads wait, for the item to be loaded from disk.
+    return cache.computeIfAbsent(item,
+        key -> new VersionedItem(key.serializer.deserialize(key.filename)));
   }
 }
@@ -0,0 +1,60 @@
+package com.jonkimbel.catfeeder.backend.storage;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import com.jonkimbel.catfeeder.backend.storage.serializer.Serializer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Holds the current {@link Snapshot} of one cached item. Reads and updates never take a lock,
+ * updates compare-and-set the snapshot and retry if another thread got there first.
+ */
+class VersionedItem {
+  private final AtomicReference<Snapshot> current;
+  // The newest version handed to the DiskWriter. Guarded by this.
+  private long versionOnDisk;
+
+  VersionedItem(@Nullable Object loadedValue) {
+    current = new AtomicReference<>(new Snapshot(loadedValue, /* version = */ 0));
+  }
+
+  Snapshot get() {
+    return current.get();
+  }
+
+  /**
+   * Replaces the value with what {@code update} returns for it. {@code update} may be called more
+   * than once, so it mustn't have side effects. Returns the new snapshot, or null if
+   * {@code update} returned the value it was given.
+   */
+  @Nullable
+  Snapshot update(UnaryOperator<Object> update) {
+    while (true) {
+      Snapshot oldSnapshot = current.get();
+      Object newValue = update.apply(oldSnapshot.value);
+      if (newValue == oldSnapshot.value) {
+        return null;
+      }
+      Snapshot newSnapshot = new Snapshot(newValue, oldSnapshot.version + 1);
+      if (current.compareAndSet(oldSnapshot, newSnapshot)) {
+        return newSnapshot;
+      }
+      // Another thread updated the item first, start again from its value.
+    }
+  }
+
+  /**
+   * Writes the newest value to disk. Call after every successful {@link #update}. Updates can
+   * finish in any order, but the last write always leaves the newest value on disk.
+   */
+  synchronized void writeLatest(String filename, Serializer serializer) {
+    Snapshot latest = current.get();
+    if (latest.version <= versionOnDisk) {
+      // A later update already wrote it.
+      return;
+    }
+    DiskWriter.getDiskWriter().write(filename, serializer, latest.value);
+    versionOnDisk = latest.version;
+  }
+}
@@ -0,0 +1,122 @@
+package com.jonkimbel.catfeeder.backend.storage.api;
+
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences.FeedingSchedule;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
+import com.jonkimbel.catfeeder.backend.storage.EventLog;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.List;
+
+/**
+ * Records what happens to each device in the {@link EventLog}.
+ *
+ * <p>The log is where check-in and feeding history live. {@link PreferencesStorage} fills that
+ * history into the Preferences it returns, and leaves it out of the Preferences it stores.
+ */
+public class EventStorage {
+  private static final int FEEDINGS_IN_PREFERENCES = 10;
+
+  private EventStorage() {}
+
+  public static void recordCheckIn(String deviceId, long timeMsSinceEpoch) {
+    append(deviceId, EventLog.Type.CHECK_IN, timeMsSinceEpoch, /* value = */ 0);
+  }
+
+  public static void recordFeeding(String deviceId, long timeMsSinceEpoch) {
+    append(deviceId, EventLog.Type.FEEDING, timeMsSinceEpoch, /* value = */ 0);
+  }
+
+  public static void recordFeedingScheduleChange(String deviceId, long timeMsSinceEpoch,
+      FeedingSchedule newSchedule) {
+    append(deviceId, EventLog.Type.FEEDING_SCHEDULE_CHANGE, timeMsSinceEpoch,
+        newSchedule.getNumber());
+  }
+
+  /** Whether the device has checked in before, or had anything else logged. */
+  static boolean isKnownDevice(String deviceId) {
+    return EventLog.getEventLog().hasDevice(deviceId);
+  }
+
+  /** See {@link PreferencesStorage#registerDevice}. */
+  static boolean registerDevice(String deviceId) {
+    return EventLog.getEventLog().tryAddDevice(deviceId);
+  }
+
+  /** Passes the device's events in the given time range to {@code visitor}, oldest first. */
+  public static void scan(String deviceId, long startMsSinceEpoch, long endMsSinceEpoch,
+      EventLog.Visitor visitor) {
+    EventLog.getEventLog().scan(deviceId, startMsSinceEpoch, endMsSinceEpoch, visitor);
+  }
+
+  /** Returns a cursor over the same events as {@link #scan}, for reading them in batches. */
+  public static EventLog.Cursor cursor(String deviceId, long startMsSinceEpoch,
+      long endMsSinceEpoch) {
+    return EventLog.getEventLog().cursor(deviceId, startMsSinceEpoch, endMsSinceEpoch);
+  }
+
+  private static void append(String deviceId, EventLog.Type type, long timeMsSinceEpoch,
+      long value) {
+    if (!EventLog.getEventLog().hasEvents(deviceId)) {
+      // Reading the device's preferences moves any history stored with them into the log first.
+      PreferencesStorage.get(deviceId);
+    }
+    EventLog.getEventLog().append(deviceId, type, timeMsSinceEpoch, value);
+    PreferencesStorage.onChanged(deviceId);
+  }
+
+  /** Returns {@code storedPreferences} with the device's history filled in from the log. */
+  static Preferences withHistory(String deviceId, Preferences storedPreferences) {
+    EventLog eventLog = EventLog.getEventLog();
+    if (!eventLog.hasEvents(deviceId) && hasStoredHistory(storedPreferences)) {
+      importStoredHistory(deviceId, storedPreferences);
+    }
+
+    Preferences.Builder builder = storedPreferences.toBuilder();
+    @Nullable Long lastCheckIn = eventLog.getLastTime(deviceId, EventLog.Type.CHECK_IN);
+    if (lastCheckIn != null) {
+      builder.setLastPhotonCheckInMsSinceEpoch(lastCheckIn);
+    }
+    builder.getFeedingPreferencesBuilder()
+        .clearLastTenFeedingTimesMsSinceEpoch()
+        .addAllLastTenFeedingTimesMsSinceEpoch(
+            eventLog.getLastFeedings(deviceId, FEEDINGS_IN_PREFERENCES));
+    return builder.build();
+  }
+
+  /** Returns {@code preferences} without the history that lives in the log. */
+  static Preferences withoutHistory(Preferences preferences) {
+    Preferences.Builder builder = preferences.toBuilder().clearLastPhotonCheckInMsSinceEpoch();
+    builder.getFeedingPreferencesBuilder().clearLastTenFeedingTimesMsSinceEpoch();
+    return builder.build();
+  }
+
+  private static boolean hasStoredHistory(Preferences storedPreferences) {
+    return storedPreferences.hasLastPhotonCheckInMsSinceEpoch()
+        || storedPreferences.getFeedingPreferences().getLastTenFeedingTimesMsSinceEpochCount() > 0;
+  }
+
+  /**
+   * Copies history stored with preferences before the log existed into the log, so it isn't lost
+   * the next time the preferences are saved.
+   */
+  private static synchronized void importStoredHistory(String deviceId,
+      Preferences storedPreferences) {
+    EventLog eventLog = EventLog.getEventLog();
+    if (eventLog.hasEvents(deviceId)) {
+      return;
+    }
+
+    FeedingPreferences feedingPrefs = storedPreferences.getFeedingPreferences();
+    List<Long> feedings = feedingPrefs.getLastTenFeedingTimesMsSinceEpochList();
+    // Stored most recent first, the log wants them in the order they happened.
+    for (int i = feedings.size() - 1; i >= 0; i--) {
+      eventLog.append(deviceId, EventLog.Type.FEEDING, feedings.get(i), /* value = */ 0);
+    }
+    if (storedPreferences.hasLastPhotonCheckInMsSinceEpoch()) {
+      eventLog.append(deviceId, EventLog.Type.CHECK_IN,
+          storedPreferences.getLastPhotonCheckInMsSinceEpoch(), /* value = */ 0);
+    }
+  }
+}
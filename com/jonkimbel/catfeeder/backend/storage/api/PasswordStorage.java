@@ -3,9 +3,12 @@ package com.jonkimbel.catfeeder.backend.storage.api;
 import com.jonkimbel.catfeeder.backend.storage.Storage;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.util.function.UnaryOperator;
+
 public class PasswordStorage {
   private PasswordStorage() {}
 
+  /** Returns what's stored for the password, or null if no password is required. */
   public static @Nullable String get() {
     Object password = Storage.getStorage().getItemBlocking(Storage.Item.PASSWORD);
     if (password == null) {
@@ -14,4 +17,22 @@ public class PasswordStorage {
 
     return (String) password;
   }
+
+  /**
+   * Saves what {@code update} returns for what's stored for the password, atomically. It mustn't
+   * have side effects, see {@link Storage#update}.
+   */
+  public static void update(UnaryOperator<@Nullable String> update) {
+    Storage.getStorage().update(
+        Storage.Item.PASSWORD, password -> update.apply((String) password));
+  }
+
+  /** Has {@code listener} run each time the password changes, on the thread that changed it. */
+  public static void addChangeListener(Runnable listener) {
+    Storage.getStorage().addChangeListener((item, snapshot) -> {
+      if (item == Storage.Item.PASSWORD) {
+        listener.run();
+      }
+    });
+  }
 }
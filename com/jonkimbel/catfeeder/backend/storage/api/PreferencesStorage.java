@@ -1,19 +1,182 @@
 package com.jonkimbel.catfeeder.backend.storage.api;
 
+import com.jonkimbel.catfeeder.backend.storage.DeviceStorage;
+import com.jonkimbel.catfeeder.backend.storage.EventLog;
+import com.jonkimbel.catfeeder.backend.storage.SqliteStorage;
 import com.jonkimbel.catfeeder.backend.storage.Storage;
 
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 
 public class PreferencesStorage {
+  /**
+   * The device used by requests that don't identify one. Its preferences live where they did
+   * before the backend supported more than one device.
+   */
+  public static final String DEFAULT_DEVICE_ID = "default";
+
+  // Device IDs become file names, so keep them to a safe set of characters.
+  private static final Pattern VALID_DEVICE_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+  private static volatile boolean useSqlite = false;
+
+  // Bumped every time a device's preferences or history change. Only kept in memory.
+  private static final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+  private static final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+
+  static {
+    Storage.getStorage().addChangeListener((item, snapshot) -> {
+      if (item == Storage.Item.PREFERENCES) {
+        onChanged(DEFAULT_DEVICE_ID);
+      }
+    });
+    DeviceStorage.getStorage().addChangeListener(
+        (item, deviceId, snapshot) -> onChanged(deviceId));
+  }
+
   private PreferencesStorage() {}
 
-  public static Preferences get() {
-    return (Preferences) Storage.getStorage().getItemBlocking(Storage.Item.PREFERENCES);
+  /**
+   * Stores preferences in SQLite from now on instead of in files. Devices that only have files so
+   * far are read from them until their preferences are next saved, which copies them into the
+   * database.
+   */
+  public static void useSqlite() {
+    SqliteStorage.getStorage();
+    useSqlite = true;
+  }
+
+  public static boolean isValidDeviceId(String deviceId) {
+    return VALID_DEVICE_ID.matcher(deviceId).matches();
+  }
+
+  /**
+   * Whether the backend knows the device: it's the default device, or one that has been
+   * registered, see {@link #registerDevice}.
+   */
+  public static boolean isKnownDevice(String deviceId) {
+    return deviceId.equals(DEFAULT_DEVICE_ID) || EventStorage.isKnownDevice(deviceId);
+  }
+
+  /**
+   * Registers the device, if it's new and there's room for another, and returns whether the
+   * backend knows it now. Devices register by checking in. Nothing is kept for a device that
+   * isn't known, so only a limited number of devices can be created, see
+   * {@link #setMaxDevices}.
+   */
+  public static boolean registerDevice(String deviceId) {
+    return isKnownDevice(deviceId) || EventStorage.registerDevice(checkDeviceId(deviceId));
+  }
+
+  /** Sets how many devices may register. Devices registered already are kept regardless. */
+  public static void setMaxDevices(int maxDevices) {
+    EventLog.getEventLog().setMaxDevices(maxDevices);
+  }
+
+  /**
+   * Returns a number that changes whenever what {@link #get} returns for the device changes, so
+   * anything derived from it can be cached until then. Versions restart when the backend does.
+   */
+  public static long getVersion(String deviceId) {
+    AtomicLong version = versions.get(deviceId);
+    return version == null ? 0 : version.get();
+  }
+
+  /**
+   * Has {@code listener} called with a device's ID each time its version changes. Listeners run on
+   * the thread that made the change, so they should hand any real work off to another thread.
+   */
+  public static void addChangeListener(Consumer<String> listener) {
+    changeListeners.add(listener);
+  }
+
+  /** Called after the device's preferences or history changed. */
+  static void onChanged(String deviceId) {
+    AtomicLong version = versions.get(deviceId);
+    if (version == null) {
+      version = versions.computeIfAbsent(deviceId, key -> new AtomicLong());
+    }
+    version.incrementAndGet();
+    for (Consumer<String> listener : changeListeners) {
+      listener.accept(deviceId);
+    }
+  }
+
+  /** Returns the device's preferences, with its recent history filled in from the event log. */
+  public static Preferences get(String deviceId) {
+    return EventStorage.withHistory(deviceId, getStored(deviceId));
+  }
+
+  private static Preferences getStored(String deviceId) {
+    if (useSqlite) {
+      @Nullable Preferences preferences =
+          SqliteStorage.getStorage().getPreferences(checkDeviceId(deviceId));
+      // Reading never writes, a device's row is created when its preferences are first saved.
+      return preferences != null ? preferences : getFromFile(deviceId);
+    }
+    return getFromFile(deviceId);
+  }
+
+  private static Preferences getFromFile(String deviceId) {
+    if (deviceId.equals(DEFAULT_DEVICE_ID)) {
+      return (Preferences) Storage.getStorage().getItemBlocking(Storage.Item.PREFERENCES);
+    }
+    return (Preferences) DeviceStorage.getStorage().getItemBlocking(
+        DeviceStorage.Item.PREFERENCES, checkDeviceId(deviceId));
+  }
+
+  /**
+   * Saves what {@code update} returns for the device's stored preferences, atomically, and returns
+   * what's stored afterwards. {@code update} is called again if another update gets in first, so it
+   * mustn't have side effects. Nothing is saved if it returns the preferences it was given.
+   *
+   * <p>The preferences {@code update} gets have no history, and any history in the ones it returns
+   * is ignored. Record history with {@link EventStorage} instead.
+   */
+  public static Preferences update(String deviceId, UnaryOperator<Preferences> update) {
+    // Moves any history stored with the preferences into the log before it's dropped from them.
+    get(deviceId);
+    UnaryOperator<Preferences> updateWithoutHistory = oldPreferences -> {
+      Preferences newPreferences = update.apply(oldPreferences);
+      return newPreferences == oldPreferences
+          ? oldPreferences
+          : EventStorage.withoutHistory(newPreferences);
+    };
+
+    if (useSqlite) {
+      @Nullable Preferences newPreferences = SqliteStorage.getStorage().updatePreferences(
+          checkDeviceId(deviceId), () -> getFromFile(deviceId), updateWithoutHistory);
+      if (newPreferences == null) {
+        return getStored(deviceId);
+      }
+      // File storage reports its own changes, see the listeners registered above.
+      onChanged(deviceId);
+      return newPreferences;
+    }
+    if (deviceId.equals(DEFAULT_DEVICE_ID)) {
+      return (Preferences) Storage.getStorage().update(
+          Storage.Item.PREFERENCES,
+          value -> updateWithoutHistory.apply((Preferences) value));
+    }
+    return (Preferences) DeviceStorage.getStorage().update(
+        DeviceStorage.Item.PREFERENCES,
+        checkDeviceId(deviceId),
+        value -> updateWithoutHistory.apply((Preferences) value));
   }
 
-  public static void set(Preferences newPreferences) {
-    Storage.getStorage().setItemBlocking(
-        Storage.Item.PREFERENCES,
-        newPreferences);
+  private static String checkDeviceId(String deviceId) {
+    if (!isValidDeviceId(deviceId)) {
+      throw new IllegalArgumentException("invalid device ID: " + deviceId);
+    }
+    return deviceId;
   }
 }
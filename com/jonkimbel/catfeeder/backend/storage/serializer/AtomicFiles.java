@@ -0,0 +1,48 @@
+package com.jonkimbel.catfeeder.backend.storage.serializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/** Replaces files so that readers, and the disk after a crash, only ever see old or new contents. */
+public class AtomicFiles {
+  private AtomicFiles() {}
+
+  /**
+   * Writes {@code bytes} to a temporary file next to {@code path}, syncs it to disk, then renames
+   * it over {@code path}.
+   */
+  public static void write(Path path, byte[] bytes) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path tempFile = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(/* metaData = */ true);
+      }
+      Files.move(tempFile, path,
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    syncDirectory(directory);
+  }
+
+  // Makes the rename itself durable. Not every platform lets directories be opened, so this is
+  // best-effort.
+  private static void syncDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(/* metaData = */ true);
+    } catch (IOException e) {
+      // The file contents are still synced, only the rename might not survive a crash.
+    }
+  }
+}
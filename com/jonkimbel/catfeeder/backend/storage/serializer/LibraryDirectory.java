@@ -4,9 +4,21 @@ import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class LibraryDirectory {
+  /**
+   * System property that moves everything the backend stores to another directory, so benchmarks
+   * and load tests don't touch the real state.
+   */
+  public static final String OVERRIDE_PROPERTY = "catfeeder.library_directory";
+
   public static Path get() throws URISyntaxException {
+    String overrideDirectory = System.getProperty(OVERRIDE_PROPERTY);
+    if (overrideDirectory != null) {
+      return Paths.get(overrideDirectory);
+    }
+
     URI classUri =
         StringSerializer.class.getProtectionDomain().getCodeSource().getLocation().toURI();
     return new File(classUri).getParentFile().toPath();
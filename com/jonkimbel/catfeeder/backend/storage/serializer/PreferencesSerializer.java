@@ -5,8 +5,8 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Date;
 
+import com.jonkimbel.catfeeder.backend.log.Log;
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
 
 public class PreferencesSerializer implements Serializer {
@@ -18,7 +18,7 @@ public class PreferencesSerializer implements Serializer {
       Path pathToPreferencesFile = LibraryDirectory.get().resolve(path);
       prefsFromFile = Preferences.parseFrom(Files.readAllBytes(pathToPreferencesFile));
     } catch (IOException | URISyntaxException e) {
-      System.err.printf("%s - Could not read Preferences from %s:%s\n", new Date(), path, e);
+      Log.warning("couldn't read Preferences from %s: %s", path, e);
     }
 
     if (prefsFromFile != null) {
@@ -28,14 +28,14 @@ public class PreferencesSerializer implements Serializer {
   }
 
   @Override
-  public void serialize(String path, Object value) {
+  public void serialize(String path, Object value) throws IOException {
     Preferences prefs = (Preferences) value;
 
     try {
       Path pathToPreferencesFile = LibraryDirectory.get().resolve(path);
-      Files.write(pathToPreferencesFile, prefs.toByteArray());
-    } catch (IOException | URISyntaxException e) {
-      System.err.printf("%s - Could not write Preferences from %s:%s\n", new Date(), path, e);
+      AtomicFiles.write(pathToPreferencesFile, prefs.toByteArray());
+    } catch (URISyntaxException e) {
+      throw new IOException("couldn't find the library directory", e);
     }
   }
 }
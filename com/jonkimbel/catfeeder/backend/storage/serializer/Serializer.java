@@ -1,7 +1,10 @@
 package com.jonkimbel.catfeeder.backend.storage.serializer;
 
+import java.io.IOException;
+
 public interface Serializer {
   Object deserialize(String path);
 
-  void serialize(String filename, Object value);
+  /** Writes {@code value} to {@code filename}, throwing if it didn't reach the disk. */
+  void serialize(String filename, Object value) throws IOException;
 }
@@ -1,13 +1,14 @@
 package com.jonkimbel.catfeeder.backend.storage.serializer;
 
+import com.jonkimbel.catfeeder.backend.log.Log;
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.Date;
 
 public class StringSerializer implements Serializer {
   @Override
@@ -17,19 +18,19 @@ public class StringSerializer implements Serializer {
     try {
       passFromFile = Files.readString(LibraryDirectory.get().resolve(path));
     } catch (IOException | URISyntaxException e) {
-      System.err.printf("%s - Could not read String from %s: %s\n", new Date(), path, e);
+      Log.warning("couldn't read String from %s: %s", path, e);
     }
 
     return passFromFile;
   }
 
   @Override
-  public void serialize(String path, Object value) {
+  public void serialize(String path, Object value) throws IOException {
     try {
-      Files.writeString(Paths.get(path), (String) value,
-          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-    } catch (IOException e) {
-      System.err.printf("%s - Could not write String to %s: %s\n", new Date(), path, e);
+      AtomicFiles.write(
+          LibraryDirectory.get().resolve(path), ((String) value).getBytes(StandardCharsets.UTF_8));
+    } catch (URISyntaxException e) {
+      throw new IOException("couldn't find the library directory", e);
     }
   }
 }
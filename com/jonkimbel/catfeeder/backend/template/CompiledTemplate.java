@@ -0,0 +1,93 @@
+package com.jonkimbel.catfeeder.backend.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.jonkimbel.catfeeder.backend.template.TokenFinder.ProcessResult.READY_TO_READ_MATCH;
+
+/**
+ * A template that has been split into UTF-8 encoded literal segments and named slots ahead of
+ * time, so rendering is just a series of writes to the output.
+ *
+ * <p>Uses the same {@code {{slot_name}}} syntax as {@link TemplateFiller}. Slots with no value
+ * render as nothing.
+ */
+public class CompiledTemplate {
+  private static final String TEMPLATE_START = "{{";
+  private static final String TEMPLATE_END = "}}";
+
+  // literals[i] is written before slotNames[i]. There is always one more literal than slot.
+  private final byte[][] literals;
+  private final String[] slotNames;
+
+  private CompiledTemplate(byte[][] literals, String[] slotNames) {
+    this.literals = literals;
+    this.slotNames = slotNames;
+  }
+
+  public static CompiledTemplate compile(String template) {
+    List<byte[]> literals = new ArrayList<>();
+    List<String> slotNames = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+
+    TokenFinder tokenFinder = new TokenFinder(template, TEMPLATE_START, TEMPLATE_END);
+    TokenFinder.ProcessResult result;
+    while ((result = tokenFinder.process()) != TokenFinder.ProcessResult.DONE) {
+      if (result == READY_TO_READ_MATCH) {
+        literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+        literal.setLength(0);
+        slotNames.add(tokenFinder.read().toString());
+      } else {
+        literal.append(tokenFinder.read());
+      }
+    }
+    literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+
+    return new CompiledTemplate(literals.toArray(new byte[0][]), slotNames.toArray(new String[0]));
+  }
+
+  /** Writes the template to {@code out} as UTF-8, filling each slot from {@code values}. */
+  public void render(Map<String, String> values, OutputStream out) throws IOException {
+    for (int i = 0; i < slotNames.length; i++) {
+      out.write(literals[i]);
+      String value = values.get(slotNames[i]);
+      if (value != null) {
+        writeUtf8(value, out);
+      }
+    }
+    out.write(literals[slotNames.length]);
+  }
+
+  /** Encodes {@code value} straight into {@code out}, without an intermediate byte array. */
+  private static void writeUtf8(String value, OutputStream out) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        out.write(c);
+      } else if (c < 0x800) {
+        out.write(0xC0 | (c >> 6));
+        out.write(0x80 | (c & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < value.length()
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          out.write(0xF0 | (codePoint >> 18));
+          out.write(0x80 | ((codePoint >> 12) & 0x3F));
+          out.write(0x80 | ((codePoint >> 6) & 0x3F));
+          out.write(0x80 | (codePoint & 0x3F));
+        } else {
+          // Unpaired surrogate, same replacement String.getBytes would use.
+          out.write('?');
+        }
+      } else {
+        out.write(0xE0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3F));
+        out.write(0x80 | (c & 0x3F));
+      }
+    }
+  }
+}
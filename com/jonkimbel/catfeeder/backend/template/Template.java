@@ -1,6 +1,7 @@
 package com.jonkimbel.catfeeder.backend.template;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 
 public enum Template {
@@ -9,9 +10,16 @@ public enum Template {
   ;
 
   private final String filePath;
+  // Templates are read and compiled once, when this class is loaded at startup.
+  private final CompiledTemplate compiledTemplate;
 
   private Template(String filePath) {
     this.filePath = filePath;
+    this.compiledTemplate = CompiledTemplate.compile(toString());
+  }
+
+  public CompiledTemplate getCompiledTemplate() {
+    return compiledTemplate;
   }
 
   @Override
@@ -20,8 +28,7 @@ public enum Template {
       return new String(getClass().getResourceAsStream(filePath).readAllBytes(),
           StandardCharsets.UTF_8);
     } catch (IOException e) {
-      e.printStackTrace();
-      return null;
+      throw new UncheckedIOException("couldn't read template " + filePath, e);
     }
   }
 }
@@ -0,0 +1,182 @@
+package com.jonkimbel.catfeeder.backend.time;
+
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Decides when each device should next check in.
+ *
+ * <p>A device checks in shortly before its next feeding, so it feeds on the latest schedule, and
+ * otherwise backs off to {@link #IDLE_INTERVAL_MS}. Idle check-ins land on a phase of that
+ * interval derived from the device's ID, so a fleet that comes back in lockstep, e.g. after a power
+ * cut or a backend restart, spreads out evenly within one interval and stays spread out.
+ *
+ * <p>A device turned away because the server is overloaded is sent to its phase too, but at least
+ * {@link #MIN_OVERLOADED_DELAY_MS} out, so the fleet backs off and comes back spread out.
+ *
+ * <p>Planned check-ins are also booked into one-second slots. One that would land in a full slot
+ * moves to the nearest slot with room, which keeps arrivals under a server-wide rate. Bookings are
+ * never cancelled, a device that comes back early just leaves its slot a little fuller than it is.
+ * A long-poll check-in isn't booked, see {@link #getMaxHoldMs}.
+ */
+public class CheckInPlanner {
+  public static final CheckInPlanner INSTANCE = new CheckInPlanner();
+
+  // How often a device with nothing coming up checks in.
+  private static final long IDLE_INTERVAL_MS = 15 * 60 * 1000;
+  private static final long MIN_DELAY_MS = 60 * 1000;
+  private static final long MIN_OVERLOADED_DELAY_MS = 5 * 60 * 1000;
+  // How long before a feeding a device checks in, spread over this range by device.
+  private static final long MIN_LEAD_MS = 30 * 1000;
+  private static final long MAX_LEAD_MS = 2 * 60 * 1000;
+  // How far a check-in may move to find a slot with room. Never past a feeding it's meant to
+  // precede though.
+  private static final long MAX_SHIFT_MS = 60 * 1000;
+  private static final long SLOT_MS = 1000;
+  // Covers every slot a check-in can be booked into, see MAX_DELAY_MS.
+  private static final int SLOTS = 2048;
+  private static final int DEFAULT_MAX_CHECK_INS_PER_SECOND = 20;
+
+  /** The longest any device is told to wait before checking in again. */
+  public static final long MAX_DELAY_MS =
+      IDLE_INTERVAL_MS + MIN_OVERLOADED_DELAY_MS + MAX_SHIFT_MS;
+
+  private volatile int maxCheckInsPerSlot = DEFAULT_MAX_CHECK_INS_PER_SECOND;
+  // Which second each slot is counting, and how many check-ins are booked into it.
+  private final long[] slotSeconds = new long[SLOTS];
+  private final int[] slotCheckIns = new int[SLOTS];
+
+  private CheckInPlanner() {}
+
+  /** Sets the server-wide arrival rate that check-ins are spread out to stay under. */
+  public void setMaxCheckInsPerSecond(int maxCheckInsPerSecond) {
+    if (maxCheckInsPerSecond < 1) {
+      throw new IllegalArgumentException("maxCheckInsPerSecond must be at least 1");
+    }
+    this.maxCheckInsPerSlot = maxCheckInsPerSecond;
+  }
+
+  /**
+   * Plans the device's next check-in, returning how long it should wait before making it. Every
+   * call books a check-in, so call it once per check-in.
+   */
+  public long getDelayUntilNextCheckInMs(String deviceId, Preferences prefs) {
+    return plan(deviceId, prefs, /* book = */ true);
+  }
+
+  /**
+   * Returns how long a long-poll check-in from the device may be held, which is as long as it would
+   * otherwise wait before checking in. Nothing is booked: the device checks in again as soon as the
+   * hold is answered, not at a planned time.
+   */
+  public long getMaxHoldMs(String deviceId, Preferences prefs) {
+    return plan(deviceId, prefs, /* book = */ false);
+  }
+
+  /**
+   * Returns how long the device should wait before its next check-in. If {@code book} is true the
+   * check-in is booked, and may move to a slot with room.
+   */
+  private long plan(String deviceId, Preferences prefs, boolean book) {
+    long nowMs = System.currentTimeMillis();
+    long hash = mix(deviceId.hashCode());
+    long idleDelayMs = getDelayUntilPhaseMs(hash, nowMs, MIN_DELAY_MS);
+
+    // A feeding that's due now is carried out straight away, and the device checks in after it.
+    @Nullable Long timeToNextFeedingMs =
+        prefs.getFeedingPreferences().getFeedAsap() ? null : Time.getTimeToNextFeedingMs(prefs);
+    if (timeToNextFeedingMs != null && timeToNextFeedingMs > 0) {
+      long leadMs = MIN_LEAD_MS + Math.floorMod(mix(hash), MAX_LEAD_MS - MIN_LEAD_MS);
+      long preFeedingDelayMs = timeToNextFeedingMs - leadMs;
+      if (preFeedingDelayMs >= MIN_DELAY_MS && preFeedingDelayMs <= idleDelayMs) {
+        if (!book) {
+          return preFeedingDelayMs;
+        }
+        return book(nowMs, preFeedingDelayMs,
+            /* earliestDelayMs = */ Math.max(MIN_DELAY_MS, preFeedingDelayMs - MAX_SHIFT_MS),
+            /* latestDelayMs = */ timeToNextFeedingMs - MIN_LEAD_MS);
+      }
+    }
+    if (!book) {
+      return idleDelayMs;
+    }
+    return book(nowMs, idleDelayMs,
+        /* earliestDelayMs = */ Math.max(MIN_DELAY_MS, idleDelayMs - MAX_SHIFT_MS),
+        /* latestDelayMs = */ idleDelayMs + MAX_SHIFT_MS);
+  }
+
+  /**
+   * Plans the next check-in of a device that's being turned away because the server is
+   * overloaded, returning how long it should wait before making it.
+   */
+  public long getDelayAfterOverloadMs(String deviceId) {
+    long nowMs = System.currentTimeMillis();
+    long delayMs = getDelayUntilPhaseMs(mix(deviceId.hashCode()), nowMs, MIN_OVERLOADED_DELAY_MS);
+    return book(nowMs, delayMs,
+        /* earliestDelayMs = */ Math.max(MIN_OVERLOADED_DELAY_MS, delayMs - MAX_SHIFT_MS),
+        /* latestDelayMs = */ delayMs + MAX_SHIFT_MS);
+  }
+
+  /**
+   * Returns the delay until the device's phase comes up, at least {@code minDelayMs} and at most
+   * one interval plus that away.
+   */
+  private static long getDelayUntilPhaseMs(long hash, long nowMs, long minDelayMs) {
+    long phaseMs = Math.floorMod(hash, IDLE_INTERVAL_MS);
+    long delayMs = Math.floorMod(phaseMs - nowMs, IDLE_INTERVAL_MS);
+    while (delayMs < minDelayMs) {
+      delayMs += IDLE_INTERVAL_MS;
+    }
+    return delayMs;
+  }
+
+  /**
+   * Books the slot nearest {@code delayMs} from now that has room, no earlier than
+   * {@code earliestDelayMs} and no later than {@code latestDelayMs}, and returns the delay until it.
+   * If they're all full, the check-in is booked at {@code delayMs} regardless.
+   */
+  private synchronized long book(long nowMs, long delayMs, long earliestDelayMs,
+      long latestDelayMs) {
+    long targetSlot = (nowMs + delayMs) / SLOT_MS;
+    long maxEarlierSlots = targetSlot - (nowMs + earliestDelayMs) / SLOT_MS;
+    long maxLaterSlots = (nowMs + latestDelayMs) / SLOT_MS - targetSlot;
+    for (long shift = 0; shift <= Math.max(maxEarlierSlots, maxLaterSlots); shift++) {
+      if (shift <= maxLaterSlots && tryBook(targetSlot + shift)) {
+        return delayMs + shift * SLOT_MS;
+      }
+      if (shift > 0 && shift <= maxEarlierSlots && tryBook(targetSlot - shift)) {
+        return delayMs - shift * SLOT_MS;
+      }
+    }
+
+    // More devices than the target rate allows, some slots will just have to be over it.
+    slotCheckIns[indexOf(targetSlot)]++;
+    return delayMs;
+  }
+
+  private boolean tryBook(long slot) {
+    int index = indexOf(slot);
+    if (slotCheckIns[index] >= maxCheckInsPerSlot) {
+      return false;
+    }
+    slotCheckIns[index]++;
+    return true;
+  }
+
+  private int indexOf(long slot) {
+    int index = (int) Math.floorMod(slot, (long) SLOTS);
+    if (slotSeconds[index] != slot) {
+      // The slot was last used for a second that has passed.
+      slotSeconds[index] = slot;
+      slotCheckIns[index] = 0;
+    }
+    return index;
+  }
+
+  /** Spreads similar hash codes, e.g. of device IDs that differ by one digit, over all 64 bits. */
+  private static long mix(long value) {
+    value *= 0x9E3779B97F4A7C15L;
+    return value ^ (value >>> 29);
+  }
+}
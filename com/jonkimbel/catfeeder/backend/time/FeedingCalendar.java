@@ -0,0 +1,78 @@
+package com.jonkimbel.catfeeder.backend.time;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Every feeding time of a daily schedule within a window of days, as sorted epoch millis.
+ *
+ * <p>Feeding times are wall-clock times, so each one is converted on its own day. A time skipped
+ * by a daylight saving change happens at the first valid time after it, and a time that occurs
+ * twice happens only the first time. Either way each scheduled time is fed exactly once a day.
+ */
+class FeedingCalendar {
+  private final long[] feedingTimesMs;
+  // dayStartsMs[i] is the start of the window's i-th day, with one extra entry for the window end.
+  private final long[] dayStartsMs;
+
+  private FeedingCalendar(long[] feedingTimesMs, long[] dayStartsMs) {
+    this.feedingTimesMs = feedingTimesMs;
+    this.dayStartsMs = dayStartsMs;
+  }
+
+  /** Compiles the feeding times for {@code days} days, starting with {@code firstDay}. */
+  static FeedingCalendar compile(int[] feedingTimesMinutesIntoDay, ZoneId zone, LocalDate firstDay,
+      int days) {
+    long[] feedingTimesMs = new long[feedingTimesMinutesIntoDay.length * days];
+    long[] dayStartsMs = new long[days + 1];
+    int count = 0;
+    for (int day = 0; day <= days; day++) {
+      LocalDate date = firstDay.plusDays(day);
+      dayStartsMs[day] = date.atStartOfDay(zone).toInstant().toEpochMilli();
+      if (day == days) {
+        break;
+      }
+      for (int minutesIntoDay : feedingTimesMinutesIntoDay) {
+        LocalTime time = LocalTime.of(minutesIntoDay / 60, minutesIntoDay % 60);
+        feedingTimesMs[count++] = date.atTime(time).atZone(zone).toInstant().toEpochMilli();
+      }
+    }
+
+    Arrays.sort(feedingTimesMs, 0, count);
+    // A daylight saving gap can move two times onto the same instant, only feed once.
+    int distinctCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinctCount == 0 || feedingTimesMs[i] != feedingTimesMs[distinctCount - 1]) {
+        feedingTimesMs[distinctCount++] = feedingTimesMs[i];
+      }
+    }
+    return new FeedingCalendar(Arrays.copyOf(feedingTimesMs, distinctCount), dayStartsMs);
+  }
+
+  /** Whether {@code timeMs} and the day after it fall inside the window. */
+  boolean covers(long timeMs) {
+    return timeMs >= dayStartsMs[0] && timeMs < dayStartsMs[dayStartsMs.length - 2];
+  }
+
+  /** The start of the day containing {@code timeMs}, which must be {@link #covers covered}. */
+  long getStartOfDayMs(long timeMs) {
+    int index = Arrays.binarySearch(dayStartsMs, timeMs);
+    return index >= 0 ? dayStartsMs[index] : dayStartsMs[-index - 2];
+  }
+
+  /** The index of the first feeding time strictly after {@code timeMs}. */
+  int indexOfFirstAfter(long timeMs) {
+    int index = Arrays.binarySearch(feedingTimesMs, timeMs);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  int size() {
+    return feedingTimesMs.length;
+  }
+
+  long get(int index) {
+    return feedingTimesMs[index];
+  }
+}
@@ -1,22 +1,25 @@
 package com.jonkimbel.catfeeder.backend.time;
 
-import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass;
+import com.jonkimbel.catfeeder.backend.log.Log;
 import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences;
-import com.jonkimbel.catfeeder.backend.storage.api.PreferencesStorage;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.FeedingPreferences.FeedingSchedule;
+import com.jonkimbel.catfeeder.backend.proto.PreferencesOuterClass.Preferences;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import java.text.SimpleDateFormat;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.format.FormatStyle;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Time {
   private static final DateTimeFormatter TIME_FORMATTER =
@@ -30,15 +33,26 @@ public class Time {
   private static final int[] HALF_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY = new int[] { // 92 cal.
       6 * 60,  // 6 AM.
       18 * 60};  // 6 PM.
-  private static final int[] REMAINING_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY = new int[] { // 92 cal.
-      6 * 60 + 20,  // 6:20 AM.
-      18 * 60 + 10};  // 6:10 PM.
+  private static final int[] ALL_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY = new int[] {
+      6 * 60,
+      6 * 60 + 20,
+      18 * 60,
+      18 * 60 + 10};
   // Cat is manually feed 60 cal wet food in the evenings.
-  private static final long INTERVAL_BETWEEN_CHECK_INS_MS = 10 * 60 * 1000; // 10 min.
   private static final int MAX_PHOTON_TIME_SKEW_S = 30;
+  // Yesterday, today, and the following week.
+  private static final int FEEDING_CALENDAR_DAYS = 9;
+  private static final int MAX_FEEDING_CALENDARS = 1024;
+  private static final long NO_FEEDING = Long.MIN_VALUE;
+
+  // Keyed by FeedingSchedule for the built-in schedules, by the list of times for custom ones.
+  private static final Map<Object, FeedingCalendar> feedingCalendars = new ConcurrentHashMap<>();
 
   // TODO [V3]: Implement support for user-defined device timezones.
 
+  // Methods that depend on a device's state take that device's Preferences, so each caller reads
+  // storage once and every answer is computed from the same snapshot.
+
   public static String format(@Nullable ZonedDateTime time) {
     if (time == null) {
       return "never";
@@ -46,14 +60,17 @@ public class Time {
     return TIME_FORMATTER.format(time);
   }
 
-  public static boolean wasLastCheckInRecent() {
-    @Nullable ZonedDateTime lastCheckInDate = getTimeOfLastCheckIn();
+  public static boolean wasLastCheckInRecent(Preferences prefs) {
+    @Nullable ZonedDateTime lastCheckInDate = getTimeOfLastCheckIn(prefs);
     if (lastCheckInDate == null) {
       return false;
     }
 
-    ZonedDateTime fifteenMinutesAgo = ZonedDateTime.now(DEVICE_TIME_ZONE).minusMinutes(15);
-    return lastCheckInDate.isAfter(fifteenMinutesAgo);
+    // Allow a few minutes on top of the longest wait, for check-ins that are slow to get through.
+    ZonedDateTime latestCheckInDue = ZonedDateTime.now(DEVICE_TIME_ZONE)
+        .minus(CheckInPlanner.MAX_DELAY_MS, ChronoUnit.MILLIS)
+        .minusMinutes(5);
+    return lastCheckInDate.isAfter(latestCheckInDue);
   }
 
   public static ZonedDateTime fromUnixMillis(long unixMillis) {
@@ -63,16 +80,16 @@ public class Time {
   }
 
   @Nullable
-  public static ZonedDateTime getTimeOfLastCheckIn() {
-    if (PreferencesStorage.get().hasLastPhotonCheckInMsSinceEpoch()) {
-      return fromUnixMillis(PreferencesStorage.get().getLastPhotonCheckInMsSinceEpoch());
+  public static ZonedDateTime getTimeOfLastCheckIn(Preferences prefs) {
+    if (prefs.hasLastPhotonCheckInMsSinceEpoch()) {
+      return fromUnixMillis(prefs.getLastPhotonCheckInMsSinceEpoch());
     }
     return null;
   }
 
   @Nullable
-  public static ZonedDateTime getTimeOfLastFeedingScheduleChange() {
-    FeedingPreferences feedingPrefs = PreferencesStorage.get().getFeedingPreferences();
+  public static ZonedDateTime getTimeOfLastFeedingScheduleChange(Preferences prefs) {
+    FeedingPreferences feedingPrefs = prefs.getFeedingPreferences();
     if (feedingPrefs.hasLastFeedingScheduleChangeMsSinceEpoch()) {
       return fromUnixMillis(feedingPrefs.getLastFeedingScheduleChangeMsSinceEpoch());
     }
@@ -80,8 +97,8 @@ public class Time {
   }
 
   @Nullable
-  public static ZonedDateTime getTimeOfLastFeeding() {
-    FeedingPreferences feedingPrefs = PreferencesStorage.get().getFeedingPreferences();
+  public static ZonedDateTime getTimeOfLastFeeding(Preferences prefs) {
+    FeedingPreferences feedingPrefs = prefs.getFeedingPreferences();
     if (feedingPrefs.getLastTenFeedingTimesMsSinceEpochCount() > 0) {
       return fromUnixMillis(feedingPrefs.getLastTenFeedingTimesMsSinceEpoch(0));
     }
@@ -89,88 +106,166 @@ public class Time {
   }
 
   @Nullable
-  public static ZonedDateTime getTimeOfNextFeedingForDisplay() {
-    // If we're meant to feed ASAP, return the time of the device's next checkin.
-    if (PreferencesStorage.get().getFeedingPreferences().getFeedAsap()) {
-      @Nullable ZonedDateTime lastCheckIn = getTimeOfLastCheckIn();
+  public static ZonedDateTime getTimeOfNextFeedingForDisplay(Preferences prefs) {
+    // If we're meant to feed ASAP, return the latest the device's next checkin could be.
+    if (prefs.getFeedingPreferences().getFeedAsap()) {
+      @Nullable ZonedDateTime lastCheckIn = getTimeOfLastCheckIn(prefs);
       if (lastCheckIn == null) {
         return ZonedDateTime.now(DEVICE_TIME_ZONE);
       }
-      return lastCheckIn.plus(INTERVAL_BETWEEN_CHECK_INS_MS, ChronoUnit.MILLIS);
+      return lastCheckIn.plus(CheckInPlanner.MAX_DELAY_MS, ChronoUnit.MILLIS);
     }
 
-    return getTimeOfNextFeeding();
+    return getTimeOfNextFeeding(prefs);
   }
 
   @Nullable
-  public static ZonedDateTime getTimeOfNextFeeding() {
-    ZonedDateTime now = ZonedDateTime.now(DEVICE_TIME_ZONE);
+  public static ZonedDateTime getTimeOfNextFeeding(Preferences prefs) {
+    long nextFeedingMs = getNextFeedingMs(prefs, System.currentTimeMillis());
+    if (nextFeedingMs == NO_FEEDING) {
+      return null;
+    }
+    return fromUnixMillis(nextFeedingMs);
+  }
 
-    // Determine all of the feeding times we might need to feed.
-    List<ZonedDateTime> upcomingFeedingTimes = new ArrayList<>();
-    switch (PreferencesStorage.get().getFeedingPreferences().getFeedingSchedule()) {
-      case FEED_HALF_CALORIES:
-        addFeedingTimes(upcomingFeedingTimes, HALF_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY);
-        break;
-      case FEED_ALL_CALORIES:
-        addFeedingTimes(upcomingFeedingTimes, HALF_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY);
-        addFeedingTimes(upcomingFeedingTimes, REMAINING_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY);
-        break;
-      default:
-        break;
+  /** The next time the device should feed, or {@link #NO_FEEDING}. Allocates nothing. */
+  private static long getNextFeedingMs(Preferences prefs, long nowMs) {
+    FeedingPreferences feedingPrefs = prefs.getFeedingPreferences();
+    @Nullable FeedingCalendar calendar = getFeedingCalendar(feedingPrefs, nowMs);
+    if (calendar == null) {
+      return NO_FEEDING;
     }
 
-    // TODO [V2]: ensure we don't miss a feeding or over-feed during daylight savings time changes.
+    boolean hasFed = feedingPrefs.getLastTenFeedingTimesMsSinceEpochCount() > 0;
+    long lastFeedingMs = hasFed ? feedingPrefs.getLastTenFeedingTimesMsSinceEpoch(0) : 0;
+    long maxSkewMs = MAX_PHOTON_TIME_SKEW_S * 1000L;
+    int nextIndex = calendar.indexOfFirstAfter(nowMs);
 
-    @Nullable ZonedDateTime timeOfLastFeeding = getTimeOfLastFeeding();
-    @Nullable ZonedDateTime timeOfLastFeedingScheduleChange = getTimeOfLastFeedingScheduleChange();
+    // If the most recent feeding time today passed without a feeding, feed right away. Earlier
+    // feeding times today can't be missed unless this one was.
+    if (nextIndex > 0 && hasFed && feedingPrefs.hasLastFeedingScheduleChangeMsSinceEpoch()) {
+      long missedFeedingMs = calendar.get(nextIndex - 1);
+      if (missedFeedingMs >= calendar.getStartOfDayMs(nowMs)
+          && feedingPrefs.getLastFeedingScheduleChangeMsSinceEpoch() < missedFeedingMs
+          && lastFeedingMs < missedFeedingMs - maxSkewMs) {
+        Log.info("feeding immediately because the device last fed at %s and we were supposed "
+            + "to feed at %s", fromUnixMillis(lastFeedingMs), fromUnixMillis(missedFeedingMs));
+        return nowMs;
+      }
+    }
 
-    upcomingFeedingTimes.sort((time, otherTime) -> time.compareTo(otherTime));
-    for (ZonedDateTime upcomingFeedingTime : upcomingFeedingTimes) {
-      if (upcomingFeedingTime.isAfter(now)) {
-        if (timeOfLastFeeding != null
-            && timeOfLastFeeding.isAfter(
-                upcomingFeedingTime.minusSeconds(MAX_PHOTON_TIME_SKEW_S))) {
-          System.out.printf("%s - Skipped feeding at %s because the device *just* fed at %s\n",
-              new Date(), upcomingFeedingTime, timeOfLastFeeding);
-          continue;
+    for (int i = nextIndex; i < calendar.size(); i++) {
+      long feedingMs = calendar.get(i);
+      if (hasFed && lastFeedingMs > feedingMs - maxSkewMs) {
+        // Checked first, so the times aren't converted on every check-in only to be dropped.
+        if (Log.isLoggable(Log.Level.DEBUG)) {
+          Log.debug("skipped feeding at %s because the device *just* fed at %s",
+              fromUnixMillis(feedingMs), fromUnixMillis(lastFeedingMs));
         }
+        continue;
+      }
 
-        // This is the first feeding the device hasn't done yet, feed it.
-        return upcomingFeedingTime;
+      // This is the first feeding the device hasn't done yet, feed it.
+      return feedingMs;
+    }
+    return NO_FEEDING;
+  }
+
+  /**
+   * Returns the compiled calendar for the device's schedule, or null if it doesn't auto-feed.
+   *
+   * <p>Calendars are cached by the feeding times they were compiled from, so devices on the same
+   * schedule share one, and changing a device's schedule simply switches it to another calendar.
+   * A calendar is only recompiled once it no longer covers the next day.
+   */
+  @Nullable
+  private static FeedingCalendar getFeedingCalendar(FeedingPreferences feedingPrefs, long nowMs) {
+    Object key;
+    int[] feedingTimesMinutesIntoDay;
+    switch (feedingPrefs.getFeedingSchedule()) {
+      case FEED_HALF_CALORIES:
+        key = FeedingSchedule.FEED_HALF_CALORIES;
+        feedingTimesMinutesIntoDay = HALF_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY;
+        break;
+      case FEED_ALL_CALORIES:
+        key = FeedingSchedule.FEED_ALL_CALORIES;
+        feedingTimesMinutesIntoDay = ALL_CALORIE_FEEDING_TIMES_MINUTES_INTO_DAY;
+        break;
+      case FEED_CUSTOM_TIMES:
+        // The proto's list is immutable, so it can be a key as-is.
+        List<Integer> customTimes = feedingPrefs.getCustomFeedingTimesMinutesIntoDayList();
+        if (customTimes.isEmpty()) {
+          return null;
+        }
+        key = customTimes;
+        @Nullable FeedingCalendar cachedCalendar = feedingCalendars.get(key);
+        if (cachedCalendar != null && cachedCalendar.covers(nowMs)) {
+          return cachedCalendar;
+        }
+        feedingTimesMinutesIntoDay = new int[customTimes.size()];
+        for (int i = 0; i < feedingTimesMinutesIntoDay.length; i++) {
+          feedingTimesMinutesIntoDay[i] = customTimes.get(i);
+        }
+        break;
+      default:
+        return null;
+    }
 
-      } else if (timeOfLastFeeding != null
-          && timeOfLastFeedingScheduleChange != null
-          && timeOfLastFeedingScheduleChange.isBefore(upcomingFeedingTime)
-          && timeOfLastFeeding.isBefore(upcomingFeedingTime.minusSeconds(MAX_PHOTON_TIME_SKEW_S))) {
-        System.out.printf("%s - Feeding immediately because the device last fed at %s and we " +
-            "were supposed to feed at %s\n", new Date(), timeOfLastFeeding, upcomingFeedingTime);
-        return now;
+    @Nullable FeedingCalendar calendar = feedingCalendars.get(key);
+    if (calendar == null || !calendar.covers(nowMs)) {
+      LocalDate today = Instant.ofEpochMilli(nowMs).atZone(DEVICE_TIME_ZONE).toLocalDate();
+      calendar = FeedingCalendar.compile(feedingTimesMinutesIntoDay, DEVICE_TIME_ZONE,
+          /* firstDay = */ today.minusDays(1), FEEDING_CALENDAR_DAYS);
+      if (feedingCalendars.size() >= MAX_FEEDING_CALENDARS) {
+        feedingCalendars.clear();
       }
+      feedingCalendars.put(key, calendar);
     }
-    return null;
+    return calendar;
   }
 
-  private static void addFeedingTimes(List<ZonedDateTime> upcomingFeedingTimes,
-      int[] feedingTimesMinutesIntoDay) {
-    ZonedDateTime midnightThisMorning = ZonedDateTime.now(DEVICE_TIME_ZONE)
-        .withHour(0).withMinute(0).withSecond(0).withNano(0);
-    for (int minutesIntoDay : feedingTimesMinutesIntoDay) {
-      upcomingFeedingTimes.add(midnightThisMorning.plusMinutes(minutesIntoDay));
-      upcomingFeedingTimes.add(midnightThisMorning.plusMinutes(minutesIntoDay).plusDays(1));
+  /**
+   * Parses feeding times typed by a user, like "6:00, 18:30", into minutes into the day. Returns
+   * null if any of them isn't a valid 24-hour time.
+   */
+  @Nullable
+  public static List<Integer> parseFeedingTimes(String feedingTimes) {
+    List<Integer> minutesIntoDay = new ArrayList<>();
+    for (String feedingTime : feedingTimes.split(",")) {
+      feedingTime = feedingTime.trim();
+      if (feedingTime.isEmpty()) {
+        continue;
+      }
+      try {
+        LocalTime time = LocalTime.parse(feedingTime.length() == 4 ? "0" + feedingTime : feedingTime);
+        minutesIntoDay.add(time.getHour() * 60 + time.getMinute());
+      } catch (DateTimeParseException e) {
+        return null;
+      }
     }
+    minutesIntoDay.sort(null);
+    return minutesIntoDay;
   }
 
-  public static long getTimeToNextCheckInMs() {
-    return INTERVAL_BETWEEN_CHECK_INS_MS;
+  /** Formats minutes into the day as the user would type them, e.g. "6:00, 18:30". */
+  public static String formatFeedingTimes(List<Integer> feedingTimesMinutesIntoDay) {
+    StringBuilder feedingTimes = new StringBuilder();
+    for (int minutesIntoDay : feedingTimesMinutesIntoDay) {
+      if (feedingTimes.length() > 0) {
+        feedingTimes.append(", ");
+      }
+      feedingTimes.append(String.format("%d:%02d", minutesIntoDay / 60, minutesIntoDay % 60));
+    }
+    return feedingTimes.toString();
   }
 
   @Nullable
-  public static Long getTimeToNextFeedingMs() {
-    @Nullable ZonedDateTime nextFeedingTime = Time.getTimeOfNextFeeding();
-    if (nextFeedingTime == null) {
+  public static Long getTimeToNextFeedingMs(Preferences prefs) {
+    long nowMs = System.currentTimeMillis();
+    long nextFeedingMs = getNextFeedingMs(prefs, nowMs);
+    if (nextFeedingMs == NO_FEEDING) {
       return null;
     }
-    return Math.max(0, nextFeedingTime.toInstant().toEpochMilli() - Instant.now().toEpochMilli());
+    return Math.max(0, nextFeedingMs - nowMs);
   }
 }
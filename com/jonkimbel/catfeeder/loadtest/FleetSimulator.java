@@ -0,0 +1,132 @@
+package com.jonkimbel.catfeeder.loadtest;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a fleet of CatFeeder devices checking in with a backend over the same protocol as
+ * photon/app.cpp, and reports latency percentiles, throughput and errors.
+ *
+ * <p>Latency is counted from when each check-in was due, not from when it was sent, so time a
+ * check-in spends waiting for a free thread counts too. How late check-ins were sent is reported
+ * separately as schedule lag. If it's high, the simulator is the bottleneck and needs more
+ * {@code --threads}.
+ *
+ * <p>Flags:
+ * <ul>
+ *   <li>{@code --host=localhost}, {@code --port=80}: the backend to test.
+ *   <li>{@code --devices=1000}: how many devices to simulate. The backend's
+ *       {@code --max_devices} must be at least this.
+ *   <li>{@code --threads=64}: how many requests can be in flight at once.
+ *   <li>{@code --duration_s=60}: how long to run for.
+ *   <li>{@code --report_interval_s=10}: how often to print a report.
+ *   <li>{@code --ramp_up_ms=10000}: devices start at random times within this window. 0 starts
+ *       them all at once, like after a power outage.
+ *   <li>{@code --time_scale=1}: runs device time this many times faster, so that e.g. 60 makes a
+ *       10 minute check-in interval take 10 seconds. The backend's clock isn't affected.
+ *   <li>{@code --shared_device}: send every request to /photon like the firmware does, instead of
+ *       giving each device its own /photon/<device id>.
+ * </ul>
+ */
+public class FleetSimulator {
+  private volatile boolean running = true;
+
+  public static void main(String[] args) throws InterruptedException {
+    String host = "localhost";
+    int port = 80;
+    int devices = 1000;
+    int threads = 64;
+    long durationS = 60;
+    long reportIntervalS = 10;
+    long rampUpMs = 10000;
+    double timeScale = 1;
+    boolean sharedDevice = false;
+    for (String arg : args) {
+      if (arg.startsWith("--host=")) {
+        host = arg.substring("--host=".length());
+      } else if (arg.startsWith("--port=")) {
+        port = Integer.parseInt(arg.substring("--port=".length()));
+      } else if (arg.startsWith("--devices=")) {
+        devices = Integer.parseInt(arg.substring("--devices=".length()));
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(arg.substring("--threads=".length()));
+      } else if (arg.startsWith("--duration_s=")) {
+        durationS = Long.parseLong(arg.substring("--duration_s=".length()));
+      } else if (arg.startsWith("--report_interval_s=")) {
+        reportIntervalS = Long.parseLong(arg.substring("--report_interval_s=".length()));
+      } else if (arg.startsWith("--ramp_up_ms=")) {
+        rampUpMs = Long.parseLong(arg.substring("--ramp_up_ms=".length()));
+      } else if (arg.startsWith("--time_scale=")) {
+        timeScale = Double.parseDouble(arg.substring("--time_scale=".length()));
+      } else if (arg.equals("--shared_device")) {
+        sharedDevice = true;
+      } else {
+        System.err.printf("%s - unrecognized argument: %s\n", new Date(), arg);
+        System.exit(1);
+      }
+    }
+
+    new FleetSimulator().run(host, port, devices, threads, durationS, reportIntervalS, rampUpMs,
+        timeScale, sharedDevice);
+  }
+
+  private void run(String host, int port, int devices, int threads, long durationS,
+      long reportIntervalS, long rampUpMs, double timeScale, boolean sharedDevice)
+      throws InterruptedException {
+    FleetStats stats = new FleetStats();
+    long startNanos = System.nanoTime();
+    VirtualFeeder.SimulatedClock clock = new VirtualFeeder.SimulatedClock() {
+      @Override
+      public long nowMs() {
+        return (long) ((System.nanoTime() - startNanos) / 1e6 * timeScale);
+      }
+
+      @Override
+      public long toRealMs(long simulatedMs) {
+        return (long) Math.ceil(simulatedMs / timeScale);
+      }
+
+      @Override
+      public long toNanoTime(long simulatedMs) {
+        return startNanos + (long) (simulatedMs / timeScale * 1e6);
+      }
+    };
+
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads);
+    Random random = new Random();
+    for (int i = 0; i < devices; i++) {
+      String path = sharedDevice ? "/photon" : String.format("/photon/virtual-%06d", i);
+      long startDelayMs = rampUpMs > 0 ? (long) (random.nextDouble() * rampUpMs) : 0;
+      VirtualFeeder feeder = new VirtualFeeder(host, port, path, clock, stats,
+          clock.nowMs() + (long) (startDelayMs * timeScale));
+      executor.schedule(() -> step(executor, feeder), startDelayMs, TimeUnit.MILLISECONDS);
+    }
+    System.out.printf("%s - simulating %d devices against %s:%d for %ds\n",
+        new Date(), devices, host, port, durationS);
+
+    long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationS);
+    while (System.nanoTime() < endNanos) {
+      long sleepNanos = Math.min(
+          TimeUnit.SECONDS.toNanos(reportIntervalS), endNanos - System.nanoTime());
+      TimeUnit.NANOSECONDS.sleep(Math.max(sleepNanos, 0));
+      System.out.printf("%s - %s\n", new Date(), stats.reportInterval());
+    }
+
+    running = false;
+    executor.shutdownNow();
+    executor.awaitTermination(30, TimeUnit.SECONDS);
+    System.out.printf("%s - %s\n", new Date(), stats.reportTotal());
+  }
+
+  private void step(ScheduledThreadPoolExecutor executor, VirtualFeeder feeder) {
+    if (!running) {
+      return;
+    }
+    long delayMs = feeder.step();
+    if (running) {
+      executor.schedule(() -> step(executor, feeder), delayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+}
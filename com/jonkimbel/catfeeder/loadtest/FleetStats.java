@@ -0,0 +1,106 @@
+package com.jonkimbel.catfeeder.loadtest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, schedule lag, feedings and errors seen by the fleet, reported per interval and in
+ * total.
+ */
+class FleetStats {
+  enum Error {
+    CONNECT,
+    TIMEOUT,
+    IO,
+    BAD_STATUS,
+    BAD_BODY,
+  }
+
+  private final LatencyHistogram intervalLatencies = new LatencyHistogram();
+  private final LatencyHistogram totalLatencies = new LatencyHistogram();
+  // How long after they were due check-ins were sent.
+  private final LatencyHistogram intervalScheduleLags = new LatencyHistogram();
+  private final LatencyHistogram totalScheduleLags = new LatencyHistogram();
+  private final Map<Error, LongAdder> intervalErrors = new ConcurrentHashMap<>();
+  private final Map<Error, LongAdder> totalErrors = new ConcurrentHashMap<>();
+  private final LongAdder feedings = new LongAdder();
+
+  private final long startNanos = System.nanoTime();
+  private long intervalStartNanos = startNanos;
+
+  void recordSuccess(long latencyUs) {
+    intervalLatencies.record(latencyUs);
+  }
+
+  void recordScheduleLag(long lagUs) {
+    intervalScheduleLags.record(lagUs);
+  }
+
+  void recordError(Error error) {
+    intervalErrors.computeIfAbsent(error, e -> new LongAdder()).increment();
+  }
+
+  void recordFeeding() {
+    feedings.increment();
+  }
+
+  /** Prints the interval since the last report, then folds it into the totals. */
+  synchronized String reportInterval() {
+    long now = System.nanoTime();
+    LatencyHistogram latencies = intervalLatencies.snapshotAndReset();
+    LatencyHistogram scheduleLags = intervalScheduleLags.snapshotAndReset();
+    Map<Error, Long> errors = drain(intervalErrors);
+    String report =
+        format("interval", now - intervalStartNanos, latencies, scheduleLags, errors);
+
+    totalLatencies.add(latencies);
+    totalScheduleLags.add(scheduleLags);
+    for (Map.Entry<Error, Long> error : errors.entrySet()) {
+      totalErrors.computeIfAbsent(error.getKey(), e -> new LongAdder()).add(error.getValue());
+    }
+    intervalStartNanos = now;
+    return report;
+  }
+
+  synchronized String reportTotal() {
+    reportInterval();
+    Map<Error, Long> errors = new TreeMap<>();
+    for (Map.Entry<Error, LongAdder> error : totalErrors.entrySet()) {
+      errors.put(error.getKey(), error.getValue().sum());
+    }
+    return format("total", System.nanoTime() - startNanos, totalLatencies, totalScheduleLags,
+        errors) + String.format(" feedings=%d", feedings.sum());
+  }
+
+  private static Map<Error, Long> drain(Map<Error, LongAdder> counters) {
+    Map<Error, Long> drained = new TreeMap<>();
+    for (Map.Entry<Error, LongAdder> counter : counters.entrySet()) {
+      long count = counter.getValue().sumThenReset();
+      if (count > 0) {
+        drained.put(counter.getKey(), count);
+      }
+    }
+    return drained;
+  }
+
+  private static String format(String label, long elapsedNanos, LatencyHistogram latencies,
+      LatencyHistogram scheduleLags, Map<Error, Long> errors) {
+    long successes = latencies.getCount();
+    long errorCount = 0;
+    for (long count : errors.values()) {
+      errorCount += count;
+    }
+    double seconds = Math.max(elapsedNanos, 1) / 1e9;
+    return String.format("%s: %.1fs ok=%d (%.1f/s) errors=%d %s "
+            + "latency_ms p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f "
+            + "schedule_lag_ms p50=%.2f p99=%.2f max=%.2f",
+        label, seconds, successes, successes / seconds, errorCount, errors,
+        latencies.getPercentileUs(50) / 1000.0, latencies.getPercentileUs(90) / 1000.0,
+        latencies.getPercentileUs(99) / 1000.0, latencies.getPercentileUs(99.9) / 1000.0,
+        latencies.getPercentileUs(100) / 1000.0,
+        scheduleLags.getPercentileUs(50) / 1000.0, scheduleLags.getPercentileUs(99) / 1000.0,
+        scheduleLags.getPercentileUs(100) / 1000.0);
+  }
+}
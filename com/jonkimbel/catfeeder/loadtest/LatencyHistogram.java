@@ -0,0 +1,79 @@
+package com.jonkimbel.catfeeder.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets that are 1/32 of a power of two wide, so any percentile is accurate
+ * to about 3% from a microsecond up to over an hour. Recording is lock-free.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Enough powers of two to cover 2^42 us, about 50 days.
+  private static final int BUCKETS = (42 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  void record(long latencyUs) {
+    counts.incrementAndGet(bucketOf(Math.max(latencyUs, 0)));
+  }
+
+  /** Returns a copy of this histogram and resets this one. */
+  LatencyHistogram snapshotAndReset() {
+    LatencyHistogram snapshot = new LatencyHistogram();
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot.counts.set(i, counts.getAndSet(i, 0));
+    }
+    return snapshot;
+  }
+
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.addAndGet(i, other.counts.get(i));
+    }
+  }
+
+  long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /** The latency at the given percentile (0-100) in microseconds, or 0 if nothing was recorded. */
+  long getPercentileUs(double percentile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return highestValueIn(i);
+      }
+    }
+    return highestValueIn(BUCKETS - 1);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int powerOfTwo = 63 - Long.numberOfLeadingZeros(value);
+    int shift = powerOfTwo - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return Math.min((shift + 1) * SUB_BUCKETS + subBucket, BUCKETS - 1);
+  }
+
+  private static long highestValueIn(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,186 @@
+package com.jonkimbel.catfeeder.loadtest;
+
+import com.jonkimbel.catfeeder.proto.CatFeeder.EmbeddedRequest;
+import com.jonkimbel.catfeeder.proto.CatFeeder.EmbeddedResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One simulated device. Behaves like photon/app.cpp: it checks in, waits for whichever of the
+ * check-in and feeding delays from the response runs out first, feeds when told to, and reports
+ * how long ago it fed until the backend says it has recorded the feeding.
+ *
+ * <p>Time is tracked in simulated milliseconds, which run {@code timeScale} times faster than real
+ * ones so a long test can be compressed.
+ */
+class VirtualFeeder {
+  private static final int CONNECT_TIMEOUT_MS = 5000;
+  private static final int READ_TIMEOUT_MS = 10000;
+
+  private final String host;
+  private final int port;
+  private final String path;
+  private final SimulatedClock clock;
+  private final FleetStats stats;
+
+  // Same state as the firmware's globals, in simulated ms.
+  private long nextCheckInAtMs;
+  private long nextFeedingAtMs = -1;
+  private boolean hasFed;
+  private long lastFeedingAtMs;
+
+  /** Converts between real and simulated time. */
+  interface SimulatedClock {
+    long nowMs();
+
+    /** How many real ms to wait for {@code simulatedMs} to pass. */
+    long toRealMs(long simulatedMs);
+
+    /** The {@link System#nanoTime()} at which it's {@code simulatedMs}. */
+    long toNanoTime(long simulatedMs);
+  }
+
+  /** {@code startAtMs} is when the device is switched on, in simulated ms. */
+  VirtualFeeder(String host, int port, String path, SimulatedClock clock, FleetStats stats,
+      long startAtMs) {
+    this.host = host;
+    this.port = port;
+    this.path = path;
+    this.clock = clock;
+    this.stats = stats;
+    // The firmware checks in immediately after it starts.
+    this.nextCheckInAtMs = startAtMs;
+  }
+
+  /**
+   * Feeds and checks in if either is due, then returns how many real ms to wait before calling
+   * this again.
+   */
+  long step() {
+    long now = clock.nowMs();
+    if (nextFeedingAtMs >= 0 && nextFeedingAtMs <= now) {
+      // The firmware checks in right after every feeding.
+      nextCheckInAtMs = Math.min(nextCheckInAtMs, nextFeedingAtMs);
+      nextFeedingAtMs = -1;
+      hasFed = true;
+      lastFeedingAtMs = now;
+      stats.recordFeeding();
+    }
+    if (nextCheckInAtMs <= now) {
+      checkIn(now, nextCheckInAtMs);
+    }
+
+    long nextWakeAtMs = nextFeedingAtMs >= 0
+        ? Math.min(nextFeedingAtMs, nextCheckInAtMs) : nextCheckInAtMs;
+    return clock.toRealMs(Math.max(0, nextWakeAtMs - clock.nowMs()));
+  }
+
+  /** Checks in at {@code now}, for a check-in that was due at {@code dueAtMs}. */
+  private void checkIn(long now, long dueAtMs) {
+    EmbeddedRequest.Builder request = EmbeddedRequest.newBuilder();
+    if (hasFed) {
+      request.setTimeSinceLastFeedingMs(now - lastFeedingAtMs);
+    }
+
+    // Like the firmware, any failure is treated as an empty response.
+    EmbeddedResponse response =
+        exchange(request.build().toByteArray(), clock.toNanoTime(dueAtMs));
+
+    nextCheckInAtMs = clock.nowMs() + response.getDelayUntilNextCheckInMs();
+    if (response.hasDelayUntilNextFeedingMs()) {
+      nextFeedingAtMs = clock.nowMs() + response.getDelayUntilNextFeedingMs();
+    } else {
+      nextFeedingAtMs = -1;
+    }
+    if (response.getLastFeedingTimeConsumed()) {
+      hasFed = false;
+    }
+  }
+
+  /**
+   * Sends a check-in that was due at {@code dueNanos}. Its latency is counted from then rather than
+   * from when it was sent, so a backend that's slow to answer isn't hidden by the simulator sending
+   * fewer check-ins while it waits. How late it was sent is recorded separately.
+   */
+  private EmbeddedResponse exchange(byte[] requestBody, long dueNanos) {
+    stats.recordScheduleLag((System.nanoTime() - dueNanos) / 1000);
+    byte[] response;
+    try (Socket socket = new Socket()) {
+      try {
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+      } catch (ConnectException | SocketTimeoutException e) {
+        stats.recordError(FleetStats.Error.CONNECT);
+        return EmbeddedResponse.getDefaultInstance();
+      }
+      socket.setSoTimeout(READ_TIMEOUT_MS);
+
+      // Byte for byte what http-client.cpp sends.
+      OutputStream out = socket.getOutputStream();
+      out.write(String.format("GET %s HTTP/1.0\r\nHost: %s\r\nContent-Length: %d\r\n\r\n",
+          path, host, requestBody.length).getBytes(StandardCharsets.US_ASCII));
+      out.write(requestBody);
+      out.flush();
+
+      // The firmware reads until the server closes the connection.
+      response = readUntilClosed(socket.getInputStream());
+    } catch (SocketTimeoutException e) {
+      stats.recordError(FleetStats.Error.TIMEOUT);
+      return EmbeddedResponse.getDefaultInstance();
+    } catch (IOException e) {
+      stats.recordError(FleetStats.Error.IO);
+      return EmbeddedResponse.getDefaultInstance();
+    }
+    long latencyUs = (System.nanoTime() - dueNanos) / 1000;
+
+    int headerEnd = indexOf(response, "\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    String statusLine = headerEnd < 0 ? "" : new String(response, 0,
+        Math.max(0, indexOf(response, "\r\n".getBytes(StandardCharsets.US_ASCII))),
+        StandardCharsets.US_ASCII);
+    if (!statusLine.matches("HTTP/1\\.[01] 200( .*)?")) {
+      stats.recordError(FleetStats.Error.BAD_STATUS);
+      return EmbeddedResponse.getDefaultInstance();
+    }
+
+    try {
+      EmbeddedResponse embeddedResponse = EmbeddedResponse.parseFrom(
+          Arrays.copyOfRange(response, headerEnd + 4, response.length));
+      stats.recordSuccess(latencyUs);
+      return embeddedResponse;
+    } catch (IOException e) {
+      stats.recordError(FleetStats.Error.BAD_BODY);
+      return EmbeddedResponse.getDefaultInstance();
+    }
+  }
+
+  private static byte[] readUntilClosed(InputStream in) throws IOException {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      response.write(buffer, 0, read);
+    }
+    return response.toByteArray();
+  }
+
+  private static int indexOf(byte[] haystack, byte[] needle) {
+    outer:
+    for (int i = 0; i + needle.length <= haystack.length; i++) {
+      for (int j = 0; j < needle.length; j++) {
+        if (haystack[i + j] != needle[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}